@@ -22,6 +22,41 @@ extern "C" {
 /// @return  The EVMJIT instance.
 EXPORT struct evm_instance* evmjit_create(void);
 
+/// Compile the code ahead of its first execution.
+///
+/// Compiled code is linked against the host functions of the context, which
+/// must be the same as the ones used for executions.
+///
+/// @return  1 if the code is compiled, 0 if the compilation failed.
+EXPORT int evmjit_compile(struct evm_instance* instance, struct evm_context* context,
+                          enum evm_revision rev, uint32_t flags, struct evm_hash const* code_hash,
+                          uint8_t const* code, size_t code_size);
+
+/// Compile codes ahead of their first execution, as evmjit_compile() does.
+///
+/// The codes are compiled by all compiler threads of the instance, and the
+/// calling thread waits for them.
+///
+/// @return  The number of codes compiled.
+EXPORT size_t evmjit_compile_all(struct evm_instance* instance, struct evm_context* context,
+                                 enum evm_revision rev, uint32_t flags, struct evm_hash const* code_hashes,
+                                 uint8_t const* const* codes, size_t const* code_sizes, size_t count);
+
+/// Compiled code and the number of its executions.
+struct evmjit_hot_code
+{
+    struct evm_hash code_hash;
+    enum evm_revision rev;
+    uint32_t flags;
+    uint64_t hits;
+};
+
+/// Get the most executed compiled code, most executed first.
+///
+/// @return  The number of entries written.
+EXPORT size_t evmjit_hot_set(struct evm_instance* instance, struct evmjit_hot_code* entries,
+                             size_t max_entries);
+
 #if __cplusplus
 }
 #endif
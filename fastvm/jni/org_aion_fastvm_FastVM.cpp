@@ -1,6 +1,8 @@
 #include <cstdlib>
 #include <cstring>
 #include <algorithm>
+#include <unordered_map>
+#include <vector>
 
 #include "org_aion_fastvm_FastVM.h"
 #include "evmjit.h"
@@ -13,23 +15,111 @@ void keccak(uint8_t const *_data, uint64_t _size, uint8_t *o_hash);
 }
 }
 
-// cb_env is updated every JNI call, as it's thread-specific
-JNIEnv *cb_env;
-
-// global references
+// global references, shared by all threads
 jclass cb_cls;
 jmethodID cb_get_block_hash;
 jmethodID cb_get_code;
 jmethodID cb_get_balance;
 jmethodID cb_exists;
-jmethodID cb_get_storage;
-jmethodID cb_put_storage;
+jmethodID cb_storage_buffer;
+jmethodID cb_get_storage_buffered;
+jmethodID cb_put_storage_batch;
 jmethodID cb_selfdestruct;
 jmethodID cb_log;
 jmethodID cb_call;
 
-// do you need a stack for recursive call?
-struct evm_tx_context ctx;
+/**
+ * Identifies a storage slot: |32b - address|16b - key|
+ */
+struct storage_id {
+    uint8_t bytes[sizeof(evm_address) + sizeof(evm_word)];
+
+    bool operator==(const storage_id &other) const
+    {
+        return memcmp(bytes, other.bytes, sizeof(bytes)) == 0;
+    }
+};
+
+/**
+ * Hashes a storage slot id (FNV-1a)
+ */
+struct storage_id_hash {
+    size_t operator()(const storage_id &id) const
+    {
+        uint64_t h = 14695981039346656037ULL;
+        for (size_t i = 0; i < sizeof(id.bytes); i++) {
+            h = (h ^ id.bytes[i]) * 1099511628211ULL;
+        }
+        return (size_t)h;
+    }
+};
+
+/**
+ * A storage slot seen by the current frame, with its latest value.
+ */
+struct storage_slot {
+    struct storage_id id;
+    struct evm_word value;
+    bool dirty;
+};
+
+/**
+ * Storage cache of a single execution frame. Repeated SLOADs of a slot are
+ * served natively, and SSTOREs are kept here until the frame ends: they are
+ * written back in one upcall if it succeeds and dropped otherwise, which
+ * matches the rollback Java applies to a failed frame.
+ *
+ * Before any upcall that may observe or modify storage (CALL, CREATE,
+ * SELFDESTRUCT), the dirty slots are written back and the cache is cleared.
+ */
+struct storage_cache {
+    std::vector<struct storage_slot> slots;
+    std::unordered_map<storage_id, size_t, storage_id_hash> index;
+    size_t dirty = 0;
+};
+
+/**
+ * Host context of a single execution. The JIT hands this pointer back to every
+ * callback, so each thread (and each nested call) uses its own JNIEnv and
+ * transaction context instead of process-wide state.
+ */
+struct host_context : evm_context {
+    JNIEnv *env;
+    struct evm_tx_context tx;
+    uint8_t *code_buf;
+    struct storage_cache storage;
+};
+
+/**
+ * Returns the JNI environment of the given host context
+ */
+static inline JNIEnv *env_of(struct evm_context *context)
+{
+    return static_cast<struct host_context *>(context)->env;
+}
+
+/**
+ * Layout of the per-thread storage buffer shared with Callback:
+ * |32b - address|16b - key|16b - value|
+ */
+static const unsigned STORAGE_KEY_OFFSET = sizeof(evm_address);
+static const unsigned STORAGE_VALUE_OFFSET = STORAGE_KEY_OFFSET + sizeof(evm_word);
+
+// address of the current thread's storage buffer, looked up on first use
+static thread_local jbyte *storage_buf = nullptr;
+
+/**
+ * Returns the storage buffer of the current thread
+ */
+static jbyte *storage_buffer(JNIEnv *env)
+{
+    if (!storage_buf) {
+        jobject buffer = env->CallStaticObjectMethod(cb_cls, cb_storage_buffer);
+        storage_buf = (jbyte *)env->GetDirectBufferAddress(buffer);
+        env->DeleteLocalRef(buffer);
+    }
+    return storage_buf;
+}
 
 /* forward declaration */
 jbyteArray encode_message(JNIEnv *env, const struct evm_message *msg);
@@ -61,6 +151,7 @@ void release_result(const struct evm_result *result)
 int account_exists(struct evm_context* context,
                    const struct evm_address* address)
 {
+    JNIEnv *cb_env = env_of(context);
     jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
     cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
 
@@ -77,6 +168,7 @@ void get_balance(struct evm_word* result,
                  struct evm_context* context,
                  const struct evm_address* address)
 {
+    JNIEnv *cb_env = env_of(context);
     jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
     cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
 
@@ -98,14 +190,15 @@ size_t get_code(const uint8_t** result_code,
                 struct evm_context* context,
                 const struct evm_address* address)
 {
+    JNIEnv *cb_env = env_of(context);
     jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
     cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
 
     // code_buf are consumed immediately and only used for once.
-    static uint8_t *code_buf = nullptr;
-    if (code_buf) {
-        free(code_buf);
-        code_buf = nullptr;
+    struct host_context *host = static_cast<struct host_context *>(context);
+    if (host->code_buf) {
+        free(host->code_buf);
+        host->code_buf = nullptr;
     }
 
     jbyteArray code = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_code, addr);
@@ -113,10 +206,10 @@ size_t get_code(const uint8_t** result_code,
 
     if (result_code) {
         jbyte *code_ptr = cb_env->GetByteArrayElements(code, NULL);
-        code_buf = alloc_and_copy(code_ptr, code_size);
+        host->code_buf = alloc_and_copy(code_ptr, code_size);
         cb_env->ReleaseByteArrayElements(code, code_ptr, JNI_ABORT);
 
-        *result_code = code_buf;
+        *result_code = host->code_buf;
     }
 
     cb_env->DeleteLocalRef(code);
@@ -124,6 +217,109 @@ size_t get_code(const uint8_t** result_code,
     return code_size;
 }
 
+/**
+ * Returns the id of the slot at the given address and key
+ */
+static inline struct storage_id make_storage_id(const struct evm_address *address,
+                                                const struct evm_word *key)
+{
+    struct storage_id id;
+    memcpy(id.bytes, address->bytes, sizeof(evm_address));
+    memcpy(id.bytes + sizeof(evm_address), key->bytes, sizeof(evm_word));
+    return id;
+}
+
+/**
+ * Returns the cached slot with the given id, or nullptr
+ */
+static struct storage_slot *find_slot(struct storage_cache *cache,
+                                      const struct storage_id &id)
+{
+    auto it = cache->index.find(id);
+    return it == cache->index.end() ? nullptr : &cache->slots[it->second];
+}
+
+/**
+ * Adds a slot to the cache and returns it
+ */
+static struct storage_slot *add_slot(struct storage_cache *cache,
+                                     const struct storage_id &id,
+                                     const struct evm_word *value,
+                                     bool dirty)
+{
+    struct storage_slot slot;
+    slot.id = id;
+    slot.value = *value;
+    slot.dirty = dirty;
+
+    cache->index.emplace(id, cache->slots.size());
+    cache->slots.push_back(slot);
+    return &cache->slots.back();
+}
+
+/**
+ * Writes the dirty slots of the frame back to the kernel in a single upcall
+ */
+static void flush_storage(struct host_context *host)
+{
+    struct storage_cache *cache = &host->storage;
+    if (cache->dirty == 0) {
+        return;
+    }
+
+    JNIEnv *env = host->env;
+    const unsigned entry_len = STORAGE_VALUE_OFFSET + sizeof(evm_word);
+    jbyteArray entries = env->NewByteArray(cache->dirty * entry_len);
+
+    jsize offset = 0;
+    for (auto &slot : cache->slots) {
+        if (slot.dirty) {
+            env->SetByteArrayRegion(entries, offset, sizeof(slot.id.bytes), (const jbyte *)slot.id.bytes);
+            env->SetByteArrayRegion(entries, offset + STORAGE_VALUE_OFFSET, sizeof(evm_word),
+                    (const jbyte *)slot.value.bytes);
+            offset += entry_len;
+            slot.dirty = false;
+        }
+    }
+    cache->dirty = 0;
+
+    env->CallStaticVoidMethod(cb_cls, cb_put_storage_batch, entries);
+    env->DeleteLocalRef(entries);
+}
+
+/**
+ * Writes back the dirty slots and forgets all cached values, before the
+ * storage may be read or changed outside of this frame
+ */
+static void invalidate_storage(struct host_context *host)
+{
+    flush_storage(host);
+    host->storage.slots.clear();
+    host->storage.index.clear();
+}
+
+/**
+ * Adds the slots loaded ahead of the execution to the cache, in the format
+ * |32b - address|16b - key|16b - value| repeated
+ */
+static void seed_storage(JNIEnv *env, struct storage_cache *cache, jbyteArray storage)
+{
+    const unsigned entry_len = STORAGE_VALUE_OFFSET + sizeof(evm_word);
+    jsize len = env->GetArrayLength(storage);
+    jbyte *ptr = env->GetByteArrayElements(storage, NULL);
+
+    cache->slots.reserve(len / entry_len);
+    for (unsigned offset = 0; offset + entry_len <= (unsigned)len; offset += entry_len) {
+        struct storage_id id;
+        memcpy(id.bytes, ptr + offset, sizeof(id.bytes));
+        if (cache->index.find(id) == cache->index.end()) {
+            add_slot(cache, id, (const struct evm_word *)(ptr + offset + STORAGE_VALUE_OFFSET), false);
+        }
+    }
+
+    env->ReleaseByteArrayElements(storage, ptr, JNI_ABORT);
+}
+
 /**
  * evm_get_storage_fn
  */
@@ -132,19 +328,23 @@ void get_storage(struct evm_word* result,
                  const struct evm_address* address,
                  const struct evm_word* key)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-    jbyteArray k = cb_env->NewByteArray(sizeof(evm_word));
-    cb_env->SetByteArrayRegion(k, 0, sizeof(evm_word), (const jbyte *)key->bytes);
-    jbyteArray v = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_storage, addr, k);
+    struct host_context *host = static_cast<struct host_context *>(context);
+    struct storage_id id = make_storage_id(address, key);
+    struct storage_slot *slot = find_slot(&host->storage, id);
+    if (slot) {
+        *result = slot->value;
+        return;
+    }
 
-    jbyte *v_ptr = cb_env->GetByteArrayElements(v, NULL);
-    memcpy(result->bytes, v_ptr, sizeof(evm_word));
-    cb_env->ReleaseByteArrayElements(v, v_ptr, JNI_ABORT);
+    JNIEnv *cb_env = host->env;
+    jbyte *buf = storage_buffer(cb_env);
+    memcpy(buf, address->bytes, sizeof(evm_address));
+    memcpy(buf + STORAGE_KEY_OFFSET, key->bytes, sizeof(evm_word));
 
-    cb_env->DeleteLocalRef(addr);
-    cb_env->DeleteLocalRef(k);
-    cb_env->DeleteLocalRef(v);
+    cb_env->CallStaticVoidMethod(cb_cls, cb_get_storage_buffered);
+
+    memcpy(result->bytes, buf + STORAGE_VALUE_OFFSET, sizeof(evm_word));
+    add_slot(&host->storage, id, result, false);
 }
 
 /**
@@ -155,18 +355,19 @@ void set_storage(struct evm_context* context,
                  const struct evm_word* key,
                  const struct evm_word* value)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-    jbyteArray k = cb_env->NewByteArray(sizeof(evm_word));
-    cb_env->SetByteArrayRegion(k, 0, sizeof(evm_word), (const jbyte *)key->bytes);
-    jbyteArray v = cb_env->NewByteArray(sizeof(evm_word));
-    cb_env->SetByteArrayRegion(v, 0, sizeof(evm_word), (const jbyte *)value->bytes);
-
-    cb_env->CallStaticVoidMethod(cb_cls, cb_put_storage, addr, k, v);
-
-    cb_env->DeleteLocalRef(addr);
-    cb_env->DeleteLocalRef(k);
-    cb_env->DeleteLocalRef(v);
+    struct host_context *host = static_cast<struct host_context *>(context);
+    struct storage_id id = make_storage_id(address, key);
+    struct storage_slot *slot = find_slot(&host->storage, id);
+    if (!slot) {
+        add_slot(&host->storage, id, value, true);
+        host->storage.dirty++;
+    } else {
+        slot->value = *value;
+        if (!slot->dirty) {
+            slot->dirty = true;
+            host->storage.dirty++;
+        }
+    }
 }
 
 /**
@@ -175,7 +376,7 @@ void set_storage(struct evm_context* context,
 void get_tx_context(struct evm_tx_context* result,
                     struct evm_context* context)
 {
-    memcpy(result, &ctx, sizeof(evm_tx_context));
+    memcpy(result, &static_cast<struct host_context *>(context)->tx, sizeof(evm_tx_context));
 }
 
 /**
@@ -185,6 +386,7 @@ void get_block_hash(struct evm_hash* result,
                     struct evm_context* context,
                     int64_t number)
 {
+    JNIEnv *cb_env = env_of(context);
     jbyteArray block_hash = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_block_hash, number);
 
     jbyte *block_hash_ptr = cb_env->GetByteArrayElements(block_hash, NULL);
@@ -201,6 +403,9 @@ void selfdestruct(struct evm_context* context,
                   const struct evm_address* address,
                   const struct evm_address* beneficiary)
 {
+    invalidate_storage(static_cast<struct host_context *>(context));
+
+    JNIEnv *cb_env = env_of(context);
     jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
     cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
     jbyteArray bene = cb_env->NewByteArray(sizeof(evm_address));
@@ -222,6 +427,7 @@ void log(struct evm_context* context,
          const struct evm_word topics[],
          size_t topics_count)
 {
+    JNIEnv *cb_env = env_of(context);
     jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
     cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
     jbyteArray t = cb_env->NewByteArray(sizeof(evm_word) * topics_count);
@@ -243,6 +449,10 @@ void call(struct evm_result* result,
           struct evm_context* context,
           const struct evm_message* msg)
 {
+    // the callee may read or change the storage of this contract
+    invalidate_storage(static_cast<struct host_context *>(context));
+
+    JNIEnv *cb_env = env_of(context);
     jbyteArray m = encode_message(cb_env, msg);
 
     jbyteArray r = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_call, m);
@@ -400,13 +610,9 @@ static const struct evm_context_fn_table ctx_fn_table = {
     log
 };
 
-struct evm_context vm_context = { &ctx_fn_table };
-
 JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_init
   (JNIEnv *env, jclass cls)
 {
-    cb_env = env;
-
     jclass cb_cls_local = env->FindClass("org/aion/fastvm/Callback");
     cb_cls = (jclass) env->NewGlobalRef(cb_cls_local);
 
@@ -414,8 +620,9 @@ JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_init
     cb_get_code = env->GetStaticMethodID(cb_cls, "getCode", "([B)[B");
     cb_get_balance = env->GetStaticMethodID(cb_cls, "getBalance", "([B)[B");
     cb_exists = env->GetStaticMethodID(cb_cls, "exists", "([B)Z");
-    cb_get_storage = env->GetStaticMethodID(cb_cls, "getStorage", "([B[B)[B");
-    cb_put_storage = env->GetStaticMethodID(cb_cls, "putStorage", "([B[B[B)V");
+    cb_storage_buffer = env->GetStaticMethodID(cb_cls, "storageBuffer", "()Ljava/nio/ByteBuffer;");
+    cb_get_storage_buffered = env->GetStaticMethodID(cb_cls, "getStorage", "()V");
+    cb_put_storage_batch = env->GetStaticMethodID(cb_cls, "putStorageBatch", "([B)V");
     cb_selfdestruct = env->GetStaticMethodID(cb_cls, "selfDestruct", "([B[B)V");
     cb_log = env->GetStaticMethodID(cb_cls, "log", "([B[B[B)V");
     cb_call = env->GetStaticMethodID(cb_cls, "call", "([B)[B");
@@ -426,31 +633,60 @@ JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_init
 JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_create
   (JNIEnv *env, jclass cls)
 {
-    cb_env = env;
-
     struct evm_instance *instance = evmjit_create();;
     return (jlong)instance;
 }
 
-JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
-  (JNIEnv *env, jclass cls, jlong instance, jbyteArray code, jbyteArray context, jint revision)
+/**
+ * Executes the code with the given encoded execution context and the storage
+ * slots loaded ahead of it, if any. The caller must release the result, and
+ * keep the context alive until then.
+ */
+struct evm_result execute(JNIEnv *env, jlong instance, jbyteArray code, jbyteArray code_hash,
+        jbyte *context_ptr, jbyteArray storage, jint revision)
 {
-    cb_env = env;
+    struct host_context host;
+    host.fn_table = &ctx_fn_table;
+    host.env = env;
+    host.code_buf = nullptr;
+    if (storage) {
+        seed_storage(env, &host.storage, storage);
+    }
 
     struct evm_instance *inst = (struct evm_instance *)instance;
     jbyte *code_ptr = (jbyte *)env->GetByteArrayElements(code, NULL);
     jsize code_size = env->GetArrayLength(code);
 
-    // parse execution context and compute code hash
+    // parse execution context and take the code hash, computing it if not provided
     struct evm_message msg;
-    jbyte *context_ptr = (jbyte *)env->GetByteArrayElements(context, NULL);
-    parse_context(env, context_ptr, &msg, &ctx);
-    dev::evmjit::keccak((const uint8_t*) code_ptr, code_size, msg.code_hash.bytes);
+    parse_context(env, context_ptr, &msg, &host.tx);
+    if (code_hash) {
+        env->GetByteArrayRegion(code_hash, 0, sizeof(evm_hash), (jbyte *)msg.code_hash.bytes);
+    } else {
+        dev::evmjit::keccak((const uint8_t*) code_ptr, code_size, msg.code_hash.bytes);
+    }
 
     // execute
-    struct evm_result result = inst->execute(inst, &vm_context, static_cast<evm_revision>(revision), &msg,
+    struct evm_result result = inst->execute(inst, &host, static_cast<evm_revision>(revision), &msg,
             (uint8_t *)code_ptr, code_size);
 
+    // write back the storage changes of a successful frame; others are rolled back anyway
+    if (result.status_code == EVM_SUCCESS) {
+        flush_storage(&host);
+    }
+
+    free(host.code_buf);
+    env->ReleaseByteArrayElements(code, code_ptr, JNI_ABORT);
+    return result;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
+  (JNIEnv *env, jclass cls, jlong instance, jbyteArray code, jbyteArray code_hash, jbyteArray context,
+   jbyteArray storage, jint revision)
+{
+    jbyte *context_ptr = (jbyte *)env->GetByteArrayElements(context, NULL);
+    struct evm_result result = execute(env, instance, code, code_hash, context_ptr, storage, revision);
+
     // encode execution result
     jbyteArray ret = encode_result(env, &result);
 
@@ -458,17 +694,99 @@ JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
     if (result.release) {
         result.release(&result);
     }
-
     env->ReleaseByteArrayElements(context, context_ptr, JNI_ABORT);
-    env->ReleaseByteArrayElements(code, code_ptr, 0 );
+    return ret;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_runDirect
+  (JNIEnv *env, jclass cls, jlong instance, jbyteArray code, jbyteArray code_hash, jobject buffer,
+   jbyteArray storage, jint revision)
+{
+    jbyte *buf = (jbyte *)env->GetDirectBufferAddress(buffer);
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+    struct evm_result result = execute(env, instance, code, code_hash, buf, storage, revision);
+
+    // write the result in place of the context, or fall back to an array if it does not fit
+    jbyteArray ret = NULL;
+    if (4 + 8 + 4 + (jlong)result.output_size <= capacity) {
+        unsigned offset = 0;
+        write_int(buf + offset, result.status_code); offset += 4; // code
+        write_long(buf + offset, result.gas_left); offset += 8; // gas left
+        write_int(buf + offset, result.output_size); offset += 4; // output size
+        memcpy(buf + offset, result.output_data, result.output_size); // output
+    } else {
+        ret = encode_result(env, &result);
+    }
+
+    // release
+    if (result.release) {
+        result.release(&result);
+    }
+    return ret;
+}
+
+JNIEXPORT jint JNICALL Java_org_aion_fastvm_FastVM_compile
+  (JNIEnv *env, jclass cls, jlong instance, jobjectArray codes, jobjectArray code_hashes, jint revision,
+   jint flags)
+{
+    // copy the codes, the compiler threads cannot access Java arrays
+    jsize count = env->GetArrayLength(codes);
+    std::vector<std::vector<uint8_t>> code_bufs(count);
+    std::vector<struct evm_hash> hashes(count);
+    for (jsize i = 0; i < count; i++) {
+        jbyteArray code = (jbyteArray)env->GetObjectArrayElement(codes, i);
+        jbyteArray code_hash = (jbyteArray)env->GetObjectArrayElement(code_hashes, i);
+        code_bufs[i].resize(env->GetArrayLength(code));
+        env->GetByteArrayRegion(code, 0, code_bufs[i].size(), (jbyte *)code_bufs[i].data());
+        env->GetByteArrayRegion(code_hash, 0, sizeof(evm_hash), (jbyte *)hashes[i].bytes);
+        env->DeleteLocalRef(code);
+        env->DeleteLocalRef(code_hash);
+    }
+
+    // compiled code is linked against the callbacks, but does not call them
+    struct host_context host;
+    host.fn_table = &ctx_fn_table;
+    host.env = nullptr;
+    host.code_buf = nullptr;
+
+    std::vector<const uint8_t *> code_ptrs(count);
+    std::vector<size_t> code_sizes(count);
+    for (jsize i = 0; i < count; i++) {
+        code_ptrs[i] = code_bufs[i].data();
+        code_sizes[i] = code_bufs[i].size();
+    }
+
+    // compiled by the compiler threads of the instance, the calling thread waits
+    struct evm_instance *inst = (struct evm_instance *)instance;
+    return (jint)evmjit_compile_all(inst, &host, static_cast<evm_revision>(revision), flags, hashes.data(),
+            code_ptrs.data(), code_sizes.data(), count);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_hotSet
+  (JNIEnv *env, jclass cls, jlong instance, jint max)
+{
+    std::vector<struct evmjit_hot_code> entries(max > 0 ? max : 0);
+    size_t count = evmjit_hot_set((struct evm_instance *)instance, entries.data(), entries.size());
+
+    // encode as |32b - code hash|4b - revision|4b - flags|8b - hits| repeated
+    const unsigned entry_size = sizeof(evm_hash) + 4 + 4 + 8;
+    std::vector<jbyte> buf(count * entry_size);
+    for (size_t i = 0; i < count; i++) {
+        jbyte *p = buf.data() + i * entry_size;
+        memcpy(p, entries[i].code_hash.bytes, sizeof(evm_hash)); p += sizeof(evm_hash);
+        write_int(p, entries[i].rev); p += 4;
+        write_int(p, entries[i].flags); p += 4;
+        write_long(p, entries[i].hits);
+    }
+
+    jbyteArray ret = env->NewByteArray(buf.size());
+    env->SetByteArrayRegion(ret, 0, buf.size(), buf.data());
     return ret;
 }
 
 JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_destroy
   (JNIEnv *env, jclass cls, jlong handler)
 {
-    cb_env = env;
-
     struct evm_instance *instance = (struct evm_instance *)handler;
     instance->destroy(instance);
 }
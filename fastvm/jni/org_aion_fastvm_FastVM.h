@@ -26,10 +26,34 @@ JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_create
 /*
  * Class:     org_aion_fastvm_FastVM
  * Method:    run
- * Signature: (J[B[BI)[B
+ * Signature: (J[B[B[B[BI)[B
  */
 JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
-  (JNIEnv *, jclass, jlong, jbyteArray, jbyteArray, jint);
+  (JNIEnv *, jclass, jlong, jbyteArray, jbyteArray, jbyteArray, jbyteArray, jint);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    runDirect
+ * Signature: (J[B[BLjava/nio/ByteBuffer;[BI)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_runDirect
+  (JNIEnv *, jclass, jlong, jbyteArray, jbyteArray, jobject, jbyteArray, jint);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    compile
+ * Signature: (J[[B[[BII)I
+ */
+JNIEXPORT jint JNICALL Java_org_aion_fastvm_FastVM_compile
+  (JNIEnv *, jclass, jlong, jobjectArray, jobjectArray, jint, jint);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    hotSet
+ * Signature: (JI)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_hotSet
+  (JNIEnv *, jclass, jlong, jint);
 
 /*
  * Class:     org_aion_fastvm_FastVM
@@ -54,6 +54,8 @@ llvm::Function* createUDivRemFunc(llvm::Type* _type, llvm::Module& _module, char
 	y->setName("y");
 
 	auto entryBB = llvm::BasicBlock::Create(_module.getContext(), "Entry", func);
+	auto narrowBB = llvm::BasicBlock::Create(_module.getContext(), "Narrow", func);
+	auto narrowDivBB = llvm::BasicBlock::Create(_module.getContext(), "NarrowDiv", func);
 	auto mainBB = llvm::BasicBlock::Create(_module.getContext(), "Main", func);
 	auto loopBB = llvm::BasicBlock::Create(_module.getContext(), "Loop", func);
 	auto continueBB = llvm::BasicBlock::Create(_module.getContext(), "Continue", func);
@@ -62,7 +64,36 @@ llvm::Function* createUDivRemFunc(llvm::Type* _type, llvm::Module& _module, char
 	auto builder = IRBuilder{entryBB};
 	auto yLEx = builder.CreateICmpULE(y, x);
 	auto r0 = x;
-	builder.CreateCondBr(yLEx, mainBB, returnBB);
+	builder.CreateCondBr(yLEx, narrowBB, returnBB);
+
+	// Most operands fit in half of the type. These are divided with the native
+	// 64-bit division, or with the 128-bit function for the 256-bit type.
+	builder.SetInsertPoint(narrowBB);
+	auto halfWidth = _type->getIntegerBitWidth() / 2;
+	auto xIsNarrow = builder.CreateICmpEQ(builder.CreateLShr(x, halfWidth), zero, "x.isnarrow");
+	auto yNonZero = builder.CreateICmpNE(y, zero, "y.nonzero");
+	builder.CreateCondBr(builder.CreateAnd(xIsNarrow, yNonZero), narrowDivBB, mainBB);
+
+	builder.SetInsertPoint(narrowDivBB);
+	auto narrowType = builder.getIntNTy(halfWidth);
+	auto xNarrow = builder.CreateTrunc(x, narrowType);
+	auto yNarrow = builder.CreateTrunc(y, narrowType);
+	llvm::Value* qNarrow = nullptr;
+	llvm::Value* rNarrow = nullptr;
+	if (_type == Type::Word)
+	{
+		qNarrow = builder.CreateUDiv(xNarrow, yNarrow);
+		rNarrow = builder.CreateURem(xNarrow, yNarrow);
+	}
+	else
+	{
+		auto udivrem = builder.CreateCall(Arith128::getUDivRem128Func(_module), {xNarrow, yNarrow});
+		qNarrow = builder.CreateExtractElement(udivrem, uint64_t(0));
+		rNarrow = builder.CreateExtractElement(udivrem, uint64_t(1));
+	}
+	auto narrowRet = builder.CreateInsertElement(llvm::UndefValue::get(retType), builder.CreateZExt(qNarrow, _type), uint64_t(0));
+	narrowRet = builder.CreateInsertElement(narrowRet, builder.CreateZExt(rNarrow, _type), 1);
+	builder.CreateRet(narrowRet);
 
 	builder.SetInsertPoint(mainBB);
 	auto ctlzIntr = llvm::Intrinsic::getDeclaration(&_module, llvm::Intrinsic::ctlz, _type);
@@ -400,6 +431,20 @@ llvm::Value* Arith128::exp(llvm::Value* _arg1, llvm::Value* _arg2)
 			}
 			return Constant::get(r);
 		}
+
+		// A power of 2 base, as in the shifts generated by Solidity, is a shift.
+		auto b = c1->getValue();
+		if (b.isPowerOf2())
+		{
+			auto log2 = b.logBase2();
+			if (log2 == 0)
+				return Constant::get(1);
+
+			auto inRange = m_builder.CreateICmpULE(_arg2, Constant::get(127 / log2), "e.inrange");
+			auto shift = m_builder.CreateMul(_arg2, Constant::get(log2));
+			auto r = m_builder.CreateShl(Constant::get(1), shift);
+			return m_builder.CreateSelect(inRange, r, Constant::get(0));
+		}
 	}
 
 	return m_builder.CreateCall(getExpFunc(), {_arg1, _arg2});
@@ -153,7 +153,7 @@ llvm::Function* Array::createFreeFunc()
 	func->setDoesNotThrow();
 	func->addAttribute(1, llvm::Attribute::NoCapture);
 
-	auto freeFunc = llvm::Function::Create(llvm::FunctionType::get(Type::Void, Type::BytePtr, false), llvm::Function::ExternalLinkage, "free", getModule());
+	auto freeFunc = llvm::Function::Create(llvm::FunctionType::get(Type::Void, Type::BytePtr, false), llvm::Function::ExternalLinkage, "evm.release", getModule());
 	freeFunc->setDoesNotThrow();
 	freeFunc->addAttribute(1, llvm::Attribute::NoCapture);
 
@@ -172,14 +172,14 @@ llvm::Function* Array::createFreeFunc()
 
 llvm::Function* Array::getReallocFunc()
 {
-	if (auto func = getModule()->getFunction("realloc"))
+	// Memory buffers come from the pool (see MemoryPool). The pool returns the
+	// same buffer if its capacity is enough, so the result is not NoAlias.
+	if (auto func = getModule()->getFunction("evm.realloc"))
 		return func;
 
 	llvm::Type* reallocArgTypes[] = {Type::BytePtr, Type::Size};
-	auto reallocFunc = llvm::Function::Create(llvm::FunctionType::get(Type::BytePtr, reallocArgTypes, false), llvm::Function::ExternalLinkage, "realloc", getModule());
+	auto reallocFunc = llvm::Function::Create(llvm::FunctionType::get(Type::BytePtr, reallocArgTypes, false), llvm::Function::ExternalLinkage, "evm.realloc", getModule());
 	reallocFunc->setDoesNotThrow();
-	reallocFunc->addAttribute(0, llvm::Attribute::NoAlias);
-	reallocFunc->addAttribute(1, llvm::Attribute::NoCapture);
 	return reallocFunc;
 }
 
@@ -217,7 +217,7 @@ llvm::Function* Array::createExtendFunc()
 llvm::Type* Array::getType()
 {
 	llvm::Type* elementTys[] = {Type::WordPtr, Type::Size, Type::Size};
-	static auto arrayTy = llvm::StructType::create(elementTys, "Array");
+	static thread_local auto arrayTy = llvm::StructType::create(elementTys, "Array");
 	return arrayTy;
 }
 
@@ -30,8 +30,9 @@ BasicBlock::BasicBlock(instr_idx _firstInstrIdx, code_iterator _begin, code_iter
 	m_llvmBB(llvm::BasicBlock::Create(_mainFunc->getContext(), {".", std::to_string(_firstInstrIdx)}, _mainFunc))
 {}
 
-LocalStack::LocalStack(IRBuilder& _builder, RuntimeManager& _runtimeManager):
-	CompilerHelper(_builder)
+LocalStack::LocalStack(IRBuilder& _builder, RuntimeManager& _runtimeManager, std::vector<llvm::Value*> _entryItems):
+	CompilerHelper(_builder),
+	m_entryItems(std::move(_entryItems))
 {
 	// Call stack.prepare. min, max, size args will be filled up in finalize().
 	auto undef = llvm::UndefValue::get(Type::Size);
@@ -90,10 +91,15 @@ llvm::Value* LocalStack::get(size_t _index)
 
 	if (!item)
 	{
-		// Fetch an item from global stack
+		// Fetch an item from global stack, unless its value is already known
 		ssize_t globalIdx = -static_cast<ssize_t>(idx) - 1;
-		auto slot = m_builder.CreateConstGEP1_64(m_sp, globalIdx);
-		item = m_builder.CreateAlignedLoad(slot, 16); // TODO: Handle malloc alignment. Also for 32-bit systems.
+		if (idx < m_entryItems.size() && m_entryItems[m_entryItems.size() - 1 - idx])
+			item = m_entryItems[m_entryItems.size() - 1 - idx];
+		else
+		{
+			auto slot = m_builder.CreateConstGEP1_64(m_sp, globalIdx);
+			item = m_builder.CreateAlignedLoad(slot, 16); // TODO: Handle malloc alignment. Also for 32-bit systems.
+		}
 		m_minSize = std::min(m_minSize, globalIdx); 	// remember required stack size
 	}
 
@@ -142,6 +148,27 @@ void LocalStack::finalize()
 	}
 }
 
+std::vector<llvm::Value*> LocalStack::exitItems() const
+{
+	// The global stack of the block begins where the items known at the
+	// beginning or the items fetched by the block begin, whichever is deeper.
+	auto entrySize = static_cast<ssize_t>(m_entryItems.size());
+	auto inputSize = static_cast<ssize_t>(m_input.size());
+	std::vector<llvm::Value*> items;
+	auto inputIt = m_input.rbegin();
+	auto localIt = m_local.begin();
+	for (auto globalIdx = -std::max(entrySize, inputSize); globalIdx < size(); ++globalIdx)
+	{
+		if (globalIdx < -inputSize)
+			items.push_back(m_entryItems[entrySize + globalIdx]);
+		else if (globalIdx < -m_globalPops)
+			items.push_back(*inputIt++);
+		else
+			items.push_back(*localIt++);
+	}
+	return items;
+}
+
 
 llvm::Function* LocalStack::getStackPrepareFunc()
 {
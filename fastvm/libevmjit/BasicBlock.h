@@ -19,7 +19,10 @@ class RuntimeManager;
 class LocalStack: public CompilerHelper
 {
 public:
-	explicit LocalStack(IRBuilder& _builder, RuntimeManager& _runtimeManager);
+	/// @param _entryItems Items of the global stack known at the beginning of
+	/// the block, the last one on the top of the stack. Nulls are unknown items.
+	explicit LocalStack(IRBuilder& _builder, RuntimeManager& _runtimeManager,
+		std::vector<llvm::Value*> _entryItems = {});
 
 	/// Pushes value on stack
 	void push(llvm::Value* _value);
@@ -41,6 +44,14 @@ public:
 	/// Finalize local stack: check the requirements and update of the global stack.
 	void finalize();
 
+	/// Items of the global stack known at the end of the block, in the same
+	/// layout as the entry items.
+	std::vector<llvm::Value*> exitItems() const;
+
+	/// Top of the global stack at the beginning of the block. Items above it
+	/// are only written when the block is finalized.
+	llvm::Value* sp() const { return m_sp; }
+
 private:
 	/// Gets _index'th value from top (counting from 0)
 	llvm::Value* get(size_t _index);
@@ -57,6 +68,10 @@ private:
 	/// Local stack items that has not been pushed to global stack. First item is just above global stack.
 	std::vector<llvm::Value*> m_local;
 
+	/// Items of the global stack known at the beginning of the block. They are
+	/// used instead of loading the items from the global stack.
+	std::vector<llvm::Value*> m_entryItems;
+
 	llvm::CallInst* m_sp = nullptr; ///< Call to stack.prepare function which returns stack pointer for current basic block.
 
 	ssize_t m_globalPops = 0; 	///< Number of items poped from global stack. In other words: global - local stack overlap.
@@ -71,6 +86,16 @@ public:
 
 	llvm::BasicBlock* llvm() { return m_llvmBB; }
 
+	/// LLVM block with the instructions of the block, other than the gas check
+	/// split off the beginning of the block (see Compiler::coalesceGasChecks()).
+	llvm::BasicBlock* body() { return m_bodyBB; }
+	void setBody(llvm::BasicBlock* _bb) { m_bodyBB = _bb; }
+
+	/// Gas checks of the cost-blocks the block begins and ends with, if any.
+	llvm::CallInst* entryGasCheck() const { return m_entryGasCheck; }
+	llvm::CallInst* exitGasCheck() const { return m_exitGasCheck; }
+	void setGasChecks(llvm::CallInst* _entry, llvm::CallInst* _exit) { m_entryGasCheck = _entry; m_exitGasCheck = _exit; }
+
 	instr_idx firstInstrIdx() const { return m_firstInstrIdx; }
 	code_iterator begin() const { return m_begin; }
 	code_iterator end() const { return m_end; }
@@ -81,6 +106,10 @@ private:
 	code_iterator const m_end = {};			///< Iterator pointing code end of the block
 
 	llvm::BasicBlock* const m_llvmBB;		///< Reference to the LLVM BasicBlock
+	llvm::BasicBlock* m_bodyBB = m_llvmBB;	///< LLVM BasicBlock with the block's terminator
+
+	llvm::CallInst* m_entryGasCheck = nullptr;
+	llvm::CallInst* m_exitGasCheck = nullptr;
 };
 
 }
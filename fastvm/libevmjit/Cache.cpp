@@ -1,6 +1,9 @@
 #include "Cache.h"
 
+#include <algorithm>
+#include <chrono>
 #include <mutex>
+#include <vector>
 
 #include "preprocessor/llvm_includes_start.h"
 #include <llvm/IR/Module.h>
@@ -9,11 +12,15 @@
 #include <llvm/ExecutionEngine/ExecutionEngine.h>
 #include <llvm/Support/Path.h>
 #include <llvm/Support/FileSystem.h>
+#include <llvm/Support/Process.h>
 #include <llvm/Support/raw_os_ostream.h>
 #include "preprocessor/llvm_includes_end.h"
 
+#include <unistd.h>
+
 #include "ExecStats.h"
 #include "Utils.h"
+#include "BuildInfo.gen.h"
 
 namespace dev
 {
@@ -25,38 +32,197 @@ namespace
 	/// The ABI version of jitted codes. It reflects how a generated code
 	/// communicates with outside world. When this communication changes old
 	/// cached code must be invalidated.
-	const auto c_internalABIVersion = 4;
+	const auto c_internalABIVersion = 5;
+
+	/// Temporary files older than this are leftovers of crashed writers.
+	const auto c_tmpFileLifetime = std::chrono::hours(1);
 
 	using Guard = std::lock_guard<std::mutex>;
 	std::mutex x_cacheMutex;
 	CacheMode g_mode;
-	std::unique_ptr<llvm::MemoryBuffer> g_lastObject;
+	std::string g_dir;
+	uint64_t g_sizeLimit = 0;
+	uint64_t g_size = 0;  ///< Size of the cache directory, as known by this process.
 	JITListener* g_listener;
 
+	/// Objects loaded for fake modules, until the engine asks for them.
+	std::unordered_map<std::string, std::unique_ptr<llvm::MemoryBuffer>> g_loadedObjects;
+
+	/// Identifies the build of the library. Compiled code depends on the
+	/// layout of the runtime structures and on the host functions of the build
+	/// that compiled it, so objects of other builds are never loaded, even if
+	/// c_internalABIVersion was not changed along with them.
+	std::string const& getBuildId()
+	{
+		static const auto buildId = []
+		{
+			std::string build = std::to_string(c_internalABIVersion) + ' ' + EVMJIT_VERSION + ' ' +
+				LLVM_VERSION + ' ' + __DATE__ + ' ' + __TIME__;
+			uint64_t hash = 14695981039346656037ull;  // FNV-1a
+			for (auto c: build)
+			{
+				hash ^= static_cast<uint8_t>(c);
+				hash *= 1099511628211ull;
+			}
+			static const auto hexChars = "0123456789abcdef";
+			std::string id = std::to_string(c_internalABIVersion) + '-';
+			for (auto shift = 60; shift >= 0; shift -= 4)
+				id.push_back(hexChars[(hash >> shift) & 0xf]);
+			return id;
+		}();
+		return buildId;
+	}
+
 	std::string getVersionedCacheDir()
 	{
 		llvm::SmallString<256> path;
-		llvm::sys::path::append(path, "cache", std::to_string(c_internalABIVersion));
+		llvm::sys::path::append(path, g_dir, getBuildId());
 		return path.str();
 	}
 
+	bool isTmpFile(llvm::StringRef _path)
+	{
+		return _path.endswith(".tmp");
+	}
+
+	/// Object file mapped from the cache directory.
+	class MappedObject: public llvm::MemoryBuffer
+	{
+	public:
+		explicit MappedObject(std::unique_ptr<llvm::sys::fs::mapped_file_region> _region):
+			m_region(std::move(_region))
+		{
+			init(m_region->const_data(), m_region->const_data() + m_region->size(), false);
+		}
+
+		BufferKind getBufferKind() const override { return MemoryBuffer_MMap; }
+
+	private:
+		std::unique_ptr<llvm::sys::fs::mapped_file_region> m_region;
+	};
+
+	/// Maps the cached object file into memory and marks it as recently used.
+	/// Cached files are only replaced by rename or removed, never modified,
+	/// so the mapping stays valid when other processes update the cache.
+	std::unique_ptr<llvm::MemoryBuffer> mapObject(std::string const& _path)
+	{
+		int fd;
+		if (auto err = llvm::sys::fs::openFileForRead(_path, fd))
+		{
+			if (err != std::errc::no_such_file_or_directory)
+				DLOG(cache) << "Cannot open " << _path << " (error: " << err.message() << ")\n";
+			return nullptr;
+		}
+
+		std::unique_ptr<llvm::MemoryBuffer> object;
+		llvm::sys::fs::file_status status;
+		if (!llvm::sys::fs::status(fd, status) && status.getSize() > 0)
+		{
+			std::error_code err;
+			auto region = llvm::make_unique<llvm::sys::fs::mapped_file_region>(
+				fd, llvm::sys::fs::mapped_file_region::readonly, status.getSize(), 0, err);
+			if (!err)
+				object = llvm::make_unique<MappedObject>(std::move(region));
+
+			// The modification time orders objects for eviction.
+			auto now = std::chrono::time_point_cast<std::chrono::nanoseconds>(std::chrono::system_clock::now());
+			llvm::sys::fs::setLastModificationAndAccessTime(fd, now);
+		}
+		llvm::sys::Process::SafelyCloseFileDescriptor(fd);
+
+		// Files are written atomically, but the directory may be shared with
+		// other tools. Do not pass garbage to the engine.
+		if (object && llvm::sys::fs::identify_magic(object->getBuffer()) == llvm::sys::fs::file_magic::unknown)
+		{
+			DLOG(cache) << _path << ": not an object file\n";
+			llvm::sys::fs::remove(_path);
+			return nullptr;
+		}
+		return object;
+	}
+
+	/// Removes the least recently used objects if the cache directory is above
+	/// the size limit. Other processes may use the same directory, so its
+	/// content is scanned instead of trusting g_size.
+	/// Returns the size of the remaining objects.
+	uint64_t evictObjects(uint64_t _sizeLimit)
+	{
+		struct File
+		{
+			std::string path;
+			uint64_t size;
+			llvm::sys::TimePoint<> lastUse;
+		};
+
+		auto now = std::chrono::system_clock::now();
+		std::vector<File> files;
+		uint64_t size = 0;
+		std::error_code err;
+		auto cachePath = getVersionedCacheDir();
+		for (auto it = llvm::sys::fs::directory_iterator{cachePath, err}; it != decltype(it){}; it.increment(err))
+		{
+			llvm::sys::fs::file_status status;
+			if (it->status(status) || status.type() != llvm::sys::fs::file_type::regular_file)
+				continue;
+
+			if (isTmpFile(it->path()))
+			{
+				if (now - status.getLastModificationTime() > c_tmpFileLifetime)
+					llvm::sys::fs::remove(it->path());
+				continue;
+			}
+			files.push_back({it->path(), status.getSize(), status.getLastModificationTime()});
+			size += status.getSize();
+		}
+
+		if (!_sizeLimit || size <= _sizeLimit)
+			return size;
+
+		// Evict down to 90% of the limit, not to scan again on the next write.
+		auto targetSize = _sizeLimit / 10 * 9;
+		std::sort(files.begin(), files.end(),
+			[](File const& _a, File const& _b) { return _a.lastUse < _b.lastUse; });
+		for (auto& file: files)
+		{
+			if (size <= targetSize)
+				break;
+			// Fails only if another process has removed it already.
+			llvm::sys::fs::remove(file.path);
+			size -= file.size;
+			DLOG(cache) << file.path << ": evicted\n";
+		}
+		return size;
+	}
+
+	void clearDir()
+	{
+		auto cachePath = getVersionedCacheDir();
+		std::error_code err;
+		for (auto it = llvm::sys::fs::directory_iterator{cachePath, err}; it != decltype(it){}; it.increment(err))
+			llvm::sys::fs::remove(it->path());
+		g_size = 0;
+	}
 }
 
-ObjectCache* Cache::init(CacheMode _mode, JITListener* _listener)
+ObjectCache* Cache::init(CacheMode _mode, JITListener* _listener, std::string const& _dir, uint64_t _sizeLimit)
 {
-	DLOG(cache) << "Cache dir: " << getVersionedCacheDir() << "\n";
-
 	Guard g{x_cacheMutex};
 
 	g_mode = _mode;
 	g_listener = _listener;
+	g_dir = _dir;
+	g_sizeLimit = _sizeLimit;
+	DLOG(cache) << "Cache dir: " << getVersionedCacheDir() << "\n";
 
 	if (g_mode == CacheMode::clear)
 	{
-		Cache::clear();
+		clearDir();
 		g_mode = CacheMode::off;
 	}
 
+	if (g_mode == CacheMode::on || g_mode == CacheMode::write)
+		g_size = evictObjects(g_sizeLimit);
+
 	if (g_mode != CacheMode::off)
 	{
 		static ObjectCache objectCache;
@@ -68,11 +234,7 @@ ObjectCache* Cache::init(CacheMode _mode, JITListener* _listener)
 void Cache::clear()
 {
 	Guard g{x_cacheMutex};
-
-	auto cachePath = getVersionedCacheDir();
-	std::error_code err;
-	for (auto it = llvm::sys::fs::directory_iterator{cachePath, err}; it != decltype(it){}; it.increment(err))
-		llvm::sys::fs::remove(it->path());
+	clearDir();
 }
 
 void Cache::preload(llvm::ExecutionEngine& _ee, std::unordered_map<std::string, uint64_t>& _funcCache,
@@ -88,6 +250,8 @@ void Cache::preload(llvm::ExecutionEngine& _ee, std::unordered_map<std::string,
 	std::error_code err;
 	for (auto it = llvm::sys::fs::directory_iterator{cachePath, err}; it != decltype(it){}; it.increment(err))
 	{
+		if (isTmpFile(it->path()))
+			continue;
 		auto name = it->path().substr(cachePath.size() + 1);
 		if (auto module = getObject(name, _llvmContext))
 		{
@@ -115,21 +279,16 @@ std::unique_ptr<llvm::Module> Cache::getObject(std::string const& id, llvm::LLVM
 
 	DLOG(cache) << id << ": search\n";
 
-	// if (!CHECK(!g_lastObject))
-	// disable the original assert as it will fail if we only compile but not execute.
-	if (!g_lastObject)
-		g_lastObject = nullptr;
-
 	llvm::SmallString<256> cachePath{getVersionedCacheDir()};
 	llvm::sys::path::append(cachePath, id);
 
-	if (auto r = llvm::MemoryBuffer::getFile(cachePath, -1, false))
-		g_lastObject = llvm::MemoryBuffer::getMemBufferCopy(r.get()->getBuffer());
-	else if (r.getError() != std::make_error_code(std::errc::no_such_file_or_directory))
-		DLOG(cache) << r.getError().message(); // TODO: Add warning log
-
-	if (g_lastObject)  // if object found create fake module
+	// Keep the object, the file may be evicted by another process before the
+	// engine asks for it.
+	if (auto object = mapObject(cachePath.str()))
 	{
+		g_loadedObjects[id] = std::move(object);
+
+		// Create fake module
 		DLOG(cache) << id << ": found\n";
 		auto module = llvm::make_unique<llvm::Module>(id, _llvmContext);
 		auto mainFuncType = llvm::FunctionType::get(llvm::Type::getVoidTy(_llvmContext), {}, false);
@@ -163,20 +322,57 @@ void ObjectCache::notifyObjectCompiled(llvm::Module const* _module, llvm::Memory
 		return;
 	}
 
-	llvm::sys::path::append(cachePath, id);
+	llvm::SmallString<256> tmpPath;
+	int fd;
+	if (auto err = llvm::sys::fs::createUniqueFile(llvm::Twine{cachePath} + "/" + id + "-%%%%%%%%.tmp", fd, tmpPath))
+	{
+		DLOG(cache) << "Cannot create cache file (error: " << err.message() << ")\n";
+		return;
+	}
 
 	DLOG(cache) << id << ": write\n";
-	std::error_code error;
-	llvm::raw_fd_ostream cacheFile(cachePath, error, llvm::sys::fs::F_None);
-	cacheFile << _object.getBuffer();
+	// Write a temporary file and rename it, so that other processes never
+	// see a partially written object. Flush it first, so that a crash cannot
+	// leave an empty object under the final name either.
+	{
+		llvm::raw_fd_ostream tmpFile(fd, false);
+		tmpFile << _object.getBuffer();
+		tmpFile.flush();
+		if (tmpFile.has_error() || ::fsync(fd) != 0)
+		{
+			tmpFile.clear_error();
+			llvm::sys::Process::SafelyCloseFileDescriptor(fd);
+			llvm::sys::fs::remove(tmpPath);
+			return;
+		}
+	}
+	llvm::sys::Process::SafelyCloseFileDescriptor(fd);
+
+	llvm::sys::path::append(cachePath, id);
+	if (auto err = llvm::sys::fs::rename(tmpPath, cachePath))
+	{
+		DLOG(cache) << id << ": cannot write (error: " << err.message() << ")\n";
+		llvm::sys::fs::remove(tmpPath);
+		return;
+	}
+
+	g_size += _object.getBufferSize();
+	if (g_sizeLimit && g_size > g_sizeLimit)
+		g_size = evictObjects(g_sizeLimit);
 }
 
 std::unique_ptr<llvm::MemoryBuffer> ObjectCache::getObject(llvm::Module const* _module)
 {
 	Guard g{x_cacheMutex};
 
+	auto it = g_loadedObjects.find(_module->getModuleIdentifier());
+	if (it == g_loadedObjects.end())
+		return nullptr;
+
 	DLOG(cache) << _module->getModuleIdentifier() << ": use\n";
-	return std::move(g_lastObject);
+	auto object = std::move(it->second);
+	g_loadedObjects.erase(it);
+	return object;
 }
 
 }
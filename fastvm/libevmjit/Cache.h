@@ -46,7 +46,10 @@ public:
 class Cache
 {
 public:
-	static ObjectCache* init(CacheMode _mode, JITListener* _listener);
+	/// Sets up the cache in the given directory. The cache directory can be
+	/// shared by several processes. If the size limit is not 0, the least
+	/// recently used objects are removed when the cache is above it.
+	static ObjectCache* init(CacheMode _mode, JITListener* _listener, std::string const& _dir, uint64_t _sizeLimit);
 	static std::unique_ptr<llvm::Module> getObject(std::string const& id, llvm::LLVMContext& _llvmContext);
 
 	/// Clears cache storage
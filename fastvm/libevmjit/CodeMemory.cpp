@@ -0,0 +1,161 @@
+#include "CodeMemory.h"
+
+#include <cassert>
+
+namespace dev
+{
+namespace evmjit
+{
+
+namespace
+{
+	using Memory = llvm::sys::Memory;
+
+	const unsigned c_defaultAlignment = 16;
+}
+
+ModuleMemory::ModuleMemory(std::shared_ptr<std::atomic<size_t>> _totalSize):
+	m_totalSize(std::move(_totalSize))
+{}
+
+ModuleMemory::~ModuleMemory()
+{
+	for (auto& frame: m_ehFrames)
+		llvm::RTDyldMemoryManager::deregisterEHFramesInProcess(frame.addr, frame.size);
+	for (auto& pool: m_pools)
+		Memory::releaseMappedMemory(pool.block);
+	*m_totalSize -= m_size;
+}
+
+bool ModuleMemory::addPool(uintptr_t _size, unsigned _flags)
+{
+	std::error_code ec;
+	auto block = Memory::allocateMappedMemory(_size, nullptr, Memory::MF_READ | Memory::MF_WRITE, ec);
+	if (ec)
+		return false;
+
+	auto base = static_cast<uint8_t*>(block.base());
+	m_pools.push_back({block, _flags, base, false});
+	m_size += block.size();
+	*m_totalSize += block.size();
+	return true;
+}
+
+uint8_t* ModuleMemory::allocate(uintptr_t _size, unsigned _alignment, unsigned _flags)
+{
+	if (_alignment == 0)
+		_alignment = c_defaultAlignment;
+	assert((_alignment & (_alignment - 1)) == 0 && "Alignment must be a power of 2");
+
+	for (int attempt = 0; attempt < 2; ++attempt)
+	{
+		for (auto& pool: m_pools)
+		{
+			if (pool.flags != _flags || pool.finalized)
+				continue;
+			auto addr = (reinterpret_cast<uintptr_t>(pool.next) + _alignment - 1) & ~uintptr_t(_alignment - 1);
+			auto end = reinterpret_cast<uintptr_t>(pool.block.base()) + pool.block.size();
+			if (addr + _size > end)
+				continue;
+			pool.next = reinterpret_cast<uint8_t*>(addr + _size);
+			return reinterpret_cast<uint8_t*>(addr);
+		}
+
+		// The reserved space is too small, map a pool for this section only.
+		if (!addPool(_size + _alignment, _flags))
+			return nullptr;
+	}
+	return nullptr;
+}
+
+CodeMemoryManager::CodeMemoryManager(std::shared_ptr<std::atomic<size_t>> _totalSize):
+	m_totalSize(std::move(_totalSize))
+{}
+
+void CodeMemoryManager::beginModule()
+{
+	assert(!m_current && "Module compilation already in progress");
+	m_current = std::make_shared<ModuleMemory>(m_totalSize);
+}
+
+std::shared_ptr<ModuleMemory> CodeMemoryManager::endModule()
+{
+	return std::move(m_current);
+}
+
+ModuleMemory& CodeMemoryManager::current()
+{
+	// Memory allocated outside of beginModule() and endModule() is released
+	// with the next module.
+	if (!m_current)
+		m_current = std::make_shared<ModuleMemory>(m_totalSize);
+	return *m_current;
+}
+
+void CodeMemoryManager::reserveAllocationSpace(uintptr_t _codeSize, uint32_t _codeAlign,
+	uintptr_t _roDataSize, uint32_t _roDataAlign, uintptr_t _rwDataSize, uint32_t _rwDataAlign)
+{
+	// Map one pool per memory protection, large enough for all sections of
+	// the module. Allocation falls back to mapping more pools if it fails.
+	auto& memory = current();
+	auto sizeBefore = memory.size();
+	if (_codeSize)
+		memory.addPool(_codeSize + _codeAlign, Memory::MF_READ | Memory::MF_EXEC);
+	if (_roDataSize)
+		memory.addPool(_roDataSize + _roDataAlign, Memory::MF_READ);
+	if (_rwDataSize)
+		memory.addPool(_rwDataSize + _rwDataAlign, Memory::MF_READ | Memory::MF_WRITE);
+	reportMemorySize(memory.size() - sizeBefore);
+}
+
+uint8_t* CodeMemoryManager::allocateCodeSection(uintptr_t _size, unsigned _alignment,
+	unsigned /*_sectionID*/, llvm::StringRef /*_sectionName*/)
+{
+	auto& memory = current();
+	auto sizeBefore = memory.size();
+	auto addr = memory.allocate(_size, _alignment, Memory::MF_READ | Memory::MF_EXEC);
+	reportMemorySize(memory.size() - sizeBefore);
+	return addr;
+}
+
+uint8_t* CodeMemoryManager::allocateDataSection(uintptr_t _size, unsigned _alignment,
+	unsigned /*_sectionID*/, llvm::StringRef /*_sectionName*/, bool _isReadOnly)
+{
+	auto& memory = current();
+	auto sizeBefore = memory.size();
+	auto flags = _isReadOnly ? Memory::MF_READ : Memory::MF_READ | Memory::MF_WRITE;
+	auto addr = memory.allocate(_size, _alignment, flags);
+	reportMemorySize(memory.size() - sizeBefore);
+	return addr;
+}
+
+bool CodeMemoryManager::finalizeMemory(std::string* _errMsg)
+{
+	if (!m_current)
+		return false;
+
+	for (auto& pool: m_current->m_pools)
+	{
+		if (pool.finalized)
+			continue;
+		if (auto ec = Memory::protectMappedMemory(pool.block, pool.flags))
+		{
+			if (_errMsg)
+				*_errMsg = ec.message();
+			return true;
+		}
+		if (pool.flags & Memory::MF_EXEC)
+			Memory::InvalidateInstructionCache(pool.block.base(), pool.block.size());
+		pool.finalized = true;
+	}
+	return false;
+}
+
+void CodeMemoryManager::registerEHFrames(uint8_t* _addr, uint64_t /*_loadAddr*/, size_t _size)
+{
+	llvm::RTDyldMemoryManager::registerEHFramesInProcess(_addr, _size);
+	current().m_ehFrames.push_back({_addr, _size});
+}
+
+}
+}
@@ -0,0 +1,110 @@
+#pragma once
+
+#include <atomic>
+#include <memory>
+#include <vector>
+
+#include "preprocessor/llvm_includes_start.h"
+#include <llvm/ExecutionEngine/RTDyldMemoryManager.h>
+#include <llvm/Support/Memory.h>
+#include "preprocessor/llvm_includes_end.h"
+
+namespace dev
+{
+namespace evmjit
+{
+
+/// Sections of one compiled module. The memory is unmapped, and the EH frames
+/// of the module deregistered, when the module memory is destroyed.
+class ModuleMemory
+{
+public:
+	explicit ModuleMemory(std::shared_ptr<std::atomic<size_t>> _totalSize);
+	~ModuleMemory();
+
+	ModuleMemory(ModuleMemory const&) = delete;
+	ModuleMemory& operator=(ModuleMemory const&) = delete;
+
+	/// Size of the memory mapped for the module.
+	size_t size() const { return m_size; }
+
+private:
+	friend class CodeMemoryManager;
+
+	/// Mapped memory that sections are allocated from.
+	struct Pool
+	{
+		llvm::sys::MemoryBlock block;
+		unsigned flags;  ///< Memory protection after finalization.
+		uint8_t* next;   ///< Free memory.
+		bool finalized;
+	};
+
+	struct EHFrame
+	{
+		uint8_t* addr;
+		size_t size;
+	};
+
+	uint8_t* allocate(uintptr_t _size, unsigned _alignment, unsigned _flags);
+	bool addPool(uintptr_t _size, unsigned _flags);
+
+	std::vector<Pool> m_pools;
+	std::vector<EHFrame> m_ehFrames;
+	size_t m_size = 0;
+	std::shared_ptr<std::atomic<size_t>> m_totalSize;
+};
+
+/// Memory manager that allocates the sections of every compiled module
+/// separately, so the memory of a module can be released when its code is no
+/// longer used, without destroying the execution engine.
+///
+/// Compilation of a module must be enclosed by beginModule() and endModule(),
+/// and only one module can be compiled at a time.
+class CodeMemoryManager: public llvm::RTDyldMemoryManager
+{
+public:
+	/// The total size is shared by the managers of all execution engines.
+	explicit CodeMemoryManager(std::shared_ptr<std::atomic<size_t>> _totalSize);
+
+	/// Starts collecting the sections of a new module.
+	void beginModule();
+
+	/// Returns the sections of the module compiled since beginModule().
+	std::shared_ptr<ModuleMemory> endModule();
+
+	/// Size of the memory of all modules that are still alive, in all managers
+	/// sharing the total size.
+	size_t totalMemorySize() const { return *m_totalSize; }
+
+	bool needsToReserveAllocationSpace() override { return true; }
+
+	void reserveAllocationSpace(uintptr_t _codeSize, uint32_t _codeAlign, uintptr_t _roDataSize,
+		uint32_t _roDataAlign, uintptr_t _rwDataSize, uint32_t _rwDataAlign) override;
+
+	uint8_t* allocateCodeSection(uintptr_t _size, unsigned _alignment, unsigned _sectionID,
+		llvm::StringRef _sectionName) override;
+
+	uint8_t* allocateDataSection(uintptr_t _size, unsigned _alignment, unsigned _sectionID,
+		llvm::StringRef _sectionName, bool _isReadOnly) override;
+
+	bool finalizeMemory(std::string* _errMsg) override;
+
+	void registerEHFrames(uint8_t* _addr, uint64_t _loadAddr, size_t _size) override;
+
+	/// EH frames are deregistered by the module memory they belong to.
+	void deregisterEHFrames(uint8_t*, uint64_t, size_t) override {}
+
+protected:
+	/// Called after memory is mapped for the current module.
+	virtual void reportMemorySize(size_t) {}
+
+private:
+	ModuleMemory& current();
+
+	std::shared_ptr<ModuleMemory> m_current;
+	std::shared_ptr<std::atomic<size_t>> m_totalSize;
+};
+
+}
+}
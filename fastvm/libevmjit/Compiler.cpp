@@ -4,6 +4,7 @@
 #include <fstream>
 #include <chrono>
 #include <sstream>
+#include <unordered_map>
 
 #include "preprocessor/llvm_includes_start.h"
 #include <llvm/IR/CFG.h>
@@ -13,6 +14,7 @@
 
 #include "JIT.h"
 #include "Instruction.h"
+#include "JumpTargets.h"
 #include "Type.h"
 #include "Memory.h"
 #include "Ext.h"
@@ -118,11 +120,40 @@ std::vector<BasicBlock> Compiler::createBasicBlocks(code_iterator _codeBegin, co
 	return blocks;
 }
 
-void Compiler::resolveJumps()
+void Compiler::resolveJumps(std::unordered_map<llvm::BasicBlock*, std::vector<uint64_t>> const& _jumpTargets)
 {
 	auto jumpTable = llvm::cast<llvm::SwitchInst>(m_jumpTableBB->getTerminator());
 	auto jumpTableInput = llvm::cast<llvm::PHINode>(m_jumpTableBB->begin());
 
+	// Creates a block switching over the known destinations of a dynamic jump,
+	// so that the jump does not go through the jump table of all destinations.
+	// Other destinations still go to the jump table, e.g. if the analysis
+	// missed some. Returns null if no destination is a valid one.
+	auto createTargetsSwitch = [&](llvm::Value* _destIdx, llvm::BasicBlock* _jumpBB) -> llvm::BasicBlock*
+	{
+		auto found = _jumpTargets.find(_jumpBB);
+		if (found == _jumpTargets.end())
+			return nullptr;
+
+		auto targetsBB = llvm::BasicBlock::Create(m_mainFunc->getContext(), {_jumpBB->getName(), ".targets"}, m_mainFunc, m_jumpTableBB);
+		auto targets = IRBuilder{targetsBB}.CreateSwitch(_destIdx, m_jumpTableBB, found->second.size());
+		for (auto target: found->second)
+		{
+			auto caseValue = llvm::ConstantInt::get(Type::Word, target);
+			auto destBB = jumpTable->findCaseValue(caseValue).getCaseSuccessor();
+			if (destBB != jumpTable->getDefaultDest())
+				targets->addCase(caseValue, destBB);
+		}
+
+		if (targets->getNumCases() == 0)
+		{
+			targetsBB->eraseFromParent();
+			return nullptr;
+		}
+		jumpTableInput->addIncoming(_destIdx, targetsBB);
+		return targetsBB;
+	};
+
 	// Iterate through all EVM instructions blocks (skip first one and last 4 - special blocks).
 	for (auto it = std::next(m_mainFunc->begin()), end = std::prev(m_mainFunc->end(), 4); it != end; ++it)
 	{
@@ -145,6 +176,8 @@ void Compiler::resolveJumps()
 				auto bb = jumpTable->findCaseValue(constant).getCaseSuccessor();
 				jump->setSuccessor(0, bb);
 			}
+			else if (auto targetsBB = createTargetsSwitch(destIdx, currentBlockPtr))
+				jump->setSuccessor(0, targetsBB);
 			else
 				jumpTableInput->addIncoming(destIdx, currentBlockPtr); // Fill up PHI node
 
@@ -163,7 +196,115 @@ void Compiler::resolveJumps()
 	}
 }
 
-std::unique_ptr<llvm::Module> Compiler::compile(code_iterator _begin, code_iterator _end, std::string const& _id)
+namespace
+{
+	int64_t getGasCheckCost(llvm::CallInst* _check)
+	{
+		return llvm::cast<llvm::ConstantInt>(_check->getArgOperand(1))->getSExtValue();
+	}
+
+	void setGasCheckCost(llvm::CallInst* _check, int64_t _cost)
+	{
+		_check->setArgOperand(1, llvm::ConstantInt::get(Type::Gas, _cost));
+	}
+}
+
+void Compiler::coalesceGasChecks(std::vector<BasicBlock>& _blocks)
+{
+	// A block entered from a single predecessor, or only through jumps with a
+	// known destination, pays the cost of its first cost-block in advance, in
+	// the check of the last cost-block of the predecessor. The check of the
+	// block itself is kept for the other predecessors (e.g. the jump table).
+	//
+	// Gas is not observed between the two checks (see
+	// GasMeter::endCodeBlock()), and running out of gas earlier only makes
+	// instructions not run that would be reverted anyway, so the execution
+	// result is the same. For a JUMPI both destinations are known, so the
+	// smaller cost of the two is paid in advance.
+	//
+	// Blocks are visited in reverse order, so that forward destinations have
+	// coalesced their own successors before their cost is paid in advance.
+	// Backward destinations are only coalesced if their entry check is not
+	// modified later, i.e. if the entry and exit checks are different.
+	std::unordered_map<llvm::BasicBlock*, BasicBlock*> blockMap;
+	for (auto& block: _blocks)
+		blockMap[block.llvm()] = &block;
+
+	for (auto it = _blocks.rbegin(); it != _blocks.rend(); ++it)
+	{
+		auto& block = *it;
+		auto exitCheck = block.exitGasCheck();
+		auto jump = llvm::dyn_cast_or_null<llvm::BranchInst>(block.body()->getTerminator());
+		if (!exitCheck || !jump)
+			continue;
+
+		auto getDest = [&](unsigned _idx) -> BasicBlock*
+		{
+			auto found = blockMap.find(jump->getSuccessor(_idx));
+			if (found == blockMap.end() || found->second == &block || !found->second->entryGasCheck())
+				return nullptr;
+			auto dest = found->second;
+			if (dest->firstInstrIdx() <= block.firstInstrIdx() && dest->entryGasCheck() == dest->exitGasCheck())
+				return nullptr;
+			return dest;
+		};
+
+		BasicBlock* dests[2] = {getDest(0), jump->isConditional() ? getDest(1) : nullptr};
+		if (!dests[0] || (jump->isConditional() && (!dests[1] || dests[0] == dests[1])))
+			continue;
+
+		auto prepaid = getGasCheckCost(dests[0]->entryGasCheck());
+		if (dests[1])
+			prepaid = std::min(prepaid, getGasCheckCost(dests[1]->entryGasCheck()));
+		setGasCheckCost(exitCheck, getGasCheckCost(exitCheck) + prepaid);
+
+		for (unsigned i = 0; i < jump->getNumSuccessors(); ++i)
+		{
+			auto& dest = *dests[i];
+			auto entryCheck = dest.entryGasCheck();
+			auto remaining = getGasCheckCost(entryCheck) - prepaid;
+			if (dest.llvm()->getSinglePredecessor() == block.body())
+			{
+				// The check is only reached from this block, update it in place.
+				if (remaining != 0)
+					setGasCheckCost(entryCheck, remaining);
+				else
+				{
+					entryCheck->eraseFromParent();
+					dest.setGasChecks(nullptr, dest.exitGasCheck() == entryCheck ? nullptr : dest.exitGasCheck());
+				}
+			}
+			else
+				jump->setSuccessor(i, bypassGasCheck(dest, remaining));
+		}
+	}
+}
+
+llvm::BasicBlock* Compiler::bypassGasCheck(BasicBlock& _block, int64_t _remaining)
+{
+	auto entryCheck = _block.entryGasCheck();
+	if (_block.body() == _block.llvm())
+	{
+		// Split the check off the block. It only depends on values of the
+		// entry block, so it can be moved before the stack preparation.
+		entryCheck->moveBefore(&_block.llvm()->front());
+		_block.setBody(_block.llvm()->splitBasicBlock(std::next(entryCheck->getIterator()),
+			{_block.llvm()->getName(), ".body"}));
+	}
+
+	if (_remaining == 0)
+		return _block.body();
+
+	auto checkBB = llvm::BasicBlock::Create(m_mainFunc->getContext(), {_block.llvm()->getName(), ".gas"}, m_mainFunc, _block.body());
+	auto check = llvm::cast<llvm::CallInst>(entryCheck->clone());
+	setGasCheckCost(check, _remaining);
+	checkBB->getInstList().push_back(check);
+	IRBuilder{checkBB}.CreateBr(_block.body());
+	return checkBB;
+}
+
+std::unique_ptr<llvm::Module> Compiler::compile(code_iterator _begin, code_iterator _end, std::string const& _id,
+	std::set<instr_idx> const* _blocks)
 {
 	auto module = llvm::make_unique<llvm::Module>(_id, m_builder.getContext()); // TODO: Provide native DataLayout
 
@@ -211,8 +352,23 @@ std::unique_ptr<llvm::Module> Compiler::compile(code_iterator _begin, code_itera
 	runtimeManager.setJmpBuf(jmpBuf);
 	m_builder.CreateCondBr(normalFlow, entryBB->getNextNode(), abortBB, Type::expectTrue);
 
+	// Compiled code is only entered at its beginning, so a block that does not
+	// begin with JUMPDEST is only entered from the JUMPI of the previous block.
+	// The stack items of the previous block are passed to it as values.
+	std::vector<llvm::Value*> stackItems;
 	for (auto& block: blocks)
-		compileBasicBlock(block, runtimeManager, arith, memory, ext, gasMeter);
+	{
+		if (Instruction(*block.begin()) == Instruction::JUMPDEST)
+			stackItems.clear();
+
+		if (!_blocks || _blocks->count(block.firstInstrIdx()))
+			compileBasicBlock(block, runtimeManager, arith, memory, ext, gasMeter, stackItems);
+		else
+		{
+			compileSuspendBlock(block, runtimeManager);
+			stackItems.clear();
+		}
+	}
 
 	// Code for special blocks:
 	m_builder.SetInsertPoint(stopBB);
@@ -221,11 +377,37 @@ std::unique_ptr<llvm::Module> Compiler::compile(code_iterator _begin, code_itera
 	m_builder.SetInsertPoint(abortBB);
 	runtimeManager.exit(ReturnCode::OutOfGas);
 
-	resolveJumps();
+	auto targetsByIdx = findJumpTargets(blocks);
+	std::unordered_map<llvm::BasicBlock*, std::vector<uint64_t>> jumpTargets;
+	for (auto& block: blocks)
+	{
+		auto found = targetsByIdx.find(block.firstInstrIdx());
+		if (found != targetsByIdx.end())
+			jumpTargets[block.llvm()] = std::move(found->second);
+	}
+
+	resolveJumps(jumpTargets);
+	if (m_options.coalesceGasChecks)
+		coalesceGasChecks(blocks);
 
 	return module;
 }
 
+void Compiler::compileSuspendBlock(BasicBlock& _basicBlock, RuntimeManager& _runtimeManager)
+{
+	m_builder.SetInsertPoint(_basicBlock.llvm());
+
+	// Jumps to the block must stay valid.
+	if (Instruction(*_basicBlock.begin()) == Instruction::JUMPDEST)
+	{
+		auto jumpTable = llvm::cast<llvm::SwitchInst>(m_jumpTableBB->getTerminator());
+		jumpTable->addCase(Constant::get(_basicBlock.firstInstrIdx()), _basicBlock.llvm());
+	}
+
+	// Nothing of the block has been executed yet, gas included.
+	_runtimeManager.suspend(_basicBlock.firstInstrIdx());
+}
+
 /**
  * Push any LLVM IntegerType in the range (i128, i256] into the stack, as two items.
  */
@@ -252,10 +434,14 @@ llvm::Value * Compiler::popWord256(LocalStack& stack)
 }
 
 void Compiler::compileBasicBlock(BasicBlock& _basicBlock, RuntimeManager& _runtimeManager,
-								 Arith128& _arith, Memory& _memory, Ext& _ext, GasMeter& _gasMeter)
+								 Arith128& _arith, Memory& _memory, Ext& _ext, GasMeter& _gasMeter,
+								 std::vector<llvm::Value*>& _stackItems)
 {
 	m_builder.SetInsertPoint(_basicBlock.llvm());
-	LocalStack stack{m_builder, _runtimeManager};
+	LocalStack stack{m_builder, _runtimeManager, std::move(_stackItems)};
+	_stackItems.clear();
+	bool aborted = false;
+	_gasMeter.beginCodeBlock();
 
 	for (auto it = _basicBlock.begin(); it != _basicBlock.end(); ++it)
 	{
@@ -874,6 +1060,7 @@ void Compiler::compileBasicBlock(BasicBlock& _basicBlock, RuntimeManager& _runti
 			auto createGas = m_builder.CreateSub(gas, gasKept, "create.gas", true, true);
 			llvm::Value* r = nullptr;
 			llvm::Value* pAddr = nullptr;
+			_runtimeManager.setStackTop(stack.sp());
 			std::tie(r, pAddr) = _ext.create(createGas, endowment, initOff, initSize);
 
 			auto ret =
@@ -979,6 +1166,7 @@ void Compiler::compileBasicBlock(BasicBlock& _basicBlock, RuntimeManager& _runti
 				default: LLVM_BUILTIN_UNREACHABLE;
 				}
 			}();
+			_runtimeManager.setStackTop(stack.sp());
 			auto r = _ext.call(kind, gas, address, value, inOff, inSize, outOff,
 							   outSize);
 			auto ret =
@@ -1074,12 +1262,19 @@ void Compiler::compileBasicBlock(BasicBlock& _basicBlock, RuntimeManager& _runti
 		default: // Invalid instruction - abort
 			_runtimeManager.exit(ReturnCode::OutOfGas);
 			it = _basicBlock.end() - 1; // finish block compilation
+			aborted = true;
 		}
 	}
 
-	_gasMeter.commitCostBlock();
+	auto gasChecks = _gasMeter.endCodeBlock();
+	_basicBlock.setGasChecks(gasChecks.first, gasChecks.second);
 
 	stack.finalize();
+
+	// The global stack is still updated, as it is read after dynamic jumps,
+	// calls and suspensions.
+	if (!aborted && Instruction(*(_basicBlock.end() - 1)) == Instruction::JUMPI)
+		_stackItems = stack.exitItems();
 }
 
 
@@ -1,5 +1,8 @@
 #pragma once
 
+#include <set>
+#include <unordered_map>
+
 #include "JIT.h"
 #include "BasicBlock.h"
 
@@ -21,19 +24,42 @@ public:
 
 		/// Dump CFG as a .dot file for graphviz
 		bool dumpCFG = false;
+
+		/// Pay the gas of blocks in advance in the gas checks of their predecessors
+		bool coalesceGasChecks = true;
 	};
 
 	Compiler(Options const& _options, evm_revision _rev, bool _staticCall, llvm::LLVMContext& _llvmContext);
 
-	std::unique_ptr<llvm::Module> compile(code_iterator _begin, code_iterator _end, std::string const& _id);
+	/// Compiles the code. If the blocks are given, only the blocks starting at
+	/// these code indexes are compiled, the other ones suspend the execution.
+	std::unique_ptr<llvm::Module> compile(code_iterator _begin, code_iterator _end, std::string const& _id,
+		std::set<instr_idx> const* _blocks = nullptr);
 
 private:
 
 	std::vector<BasicBlock> createBasicBlocks(code_iterator _begin, code_iterator _end);
 
-	void compileBasicBlock(BasicBlock& _basicBlock, class RuntimeManager& _runtimeManager, class Arith128& _arith, class Memory& _memory, class Ext& _ext, class GasMeter& _gasMeter);
+	/// Compiles a block. The stack items are the items known at the beginning
+	/// of the block, replaced with the items known at the end of it if the
+	/// next block is only entered from this one.
+	void compileBasicBlock(BasicBlock& _basicBlock, class RuntimeManager& _runtimeManager, class Arith128& _arith, class Memory& _memory, class Ext& _ext, class GasMeter& _gasMeter,
+		std::vector<llvm::Value*>& _stackItems);
+
+	/// Compiles a block that suspends the execution when it is reached.
+	void compileSuspendBlock(BasicBlock& _basicBlock, class RuntimeManager& _runtimeManager);
+
+	/// Resolves the jumps to their destination blocks. A dynamic jump with
+	/// known destinations (see findJumpTargets()) is resolved to a switch over
+	/// them, falling back to the jump table.
+	void resolveJumps(std::unordered_map<llvm::BasicBlock*, std::vector<uint64_t>> const& _jumpTargets);
+
+	/// Pays the gas of blocks in advance in the gas checks of their predecessors.
+	void coalesceGasChecks(std::vector<BasicBlock>& _blocks);
 
-	void resolveJumps();
+	/// Returns a block that enters the block bypassing its entry gas check, and
+	/// checks the remaining cost instead.
+	llvm::BasicBlock* bypassGasCheck(BasicBlock& _block, int64_t _remaining);
 
 	void pushWord256(LocalStack& stack, llvm::Value *hash);
 	llvm::Value * popWord256(LocalStack& stack);
@@ -37,7 +37,7 @@ llvm::FunctionType* getFunctionType(llvm::Type* _returnType, std::initializer_li
 
 std::array<FuncDesc, sizeOf<EnvFunc>::value> const& getEnvFuncDescs()
 {
-	static std::array<FuncDesc, sizeOf<EnvFunc>::value> descs{{
+	static thread_local std::array<FuncDesc, sizeOf<EnvFunc>::value> descs{{
 		FuncDesc{"env_sha3", getFunctionType(Type::Void, {Type::BytePtr, Type::Size, Type::Word256Ptr})},
 	}};
 
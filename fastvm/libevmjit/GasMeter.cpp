@@ -59,9 +59,12 @@ void GasMeter::count(Instruction _inst)
 	{
 		// Create gas check call with mocked block cost at begining of current cost-block
 		m_checkCall = m_builder.CreateCall(m_gasCheckFunc, {m_runtimeManager.getGasPtr(), llvm::UndefValue::get(Type::Gas), m_runtimeManager.getJmpBuf()});
+		if (m_codeBlockBegin)
+			m_entryCheckCall = m_checkCall;
 	}
+	m_codeBlockBegin = false;
 
-	m_blockCost += getStepCost(_inst);
+	m_blockCost += getStepCost(_inst, m_rev);
 }
 
 void GasMeter::count(llvm::Value* _cost, llvm::Value* _jmpBuf, llvm::Value* _gasPtr)
@@ -139,6 +142,8 @@ void GasMeter::commitCostBlock()
 	{
 		if (m_blockCost == 0) // Do not check 0
 		{
+			if (m_checkCall == m_entryCheckCall)
+				m_entryCheckCall = nullptr;
 			m_checkCall->eraseFromParent(); // Remove the gas check call
 			m_checkCall = nullptr;
 			return;
@@ -151,6 +156,22 @@ void GasMeter::commitCostBlock()
 	assert(m_blockCost == 0);
 }
 
+void GasMeter::beginCodeBlock()
+{
+	assert(!m_checkCall);
+	m_entryCheckCall = nullptr;
+	m_codeBlockBegin = true;
+}
+
+std::pair<llvm::CallInst*, llvm::CallInst*> GasMeter::endCodeBlock()
+{
+	// Gas is not observed after the check of the last cost-block, otherwise
+	// the cost-block would have been committed before.
+	auto exitCheckCall = m_blockCost != 0 ? m_checkCall : nullptr;
+	commitCostBlock();
+	return {m_entryCheckCall, exitCheckCall};
+}
+
 void GasMeter::countMemory(llvm::Value* _additionalMemoryInWords, llvm::Value* _jmpBuf, llvm::Value* _gasPtr)
 {
 	assert(JITSchedule::memoryGas::value != 1 && "Memory gas cost has changed. Update GasMeter.");
@@ -163,133 +184,6 @@ void GasMeter::countCopy(llvm::Value* _copyWords)
 	count(m_builder.CreateNUWMul(_copyWords, m_builder.getInt64(JITSchedule::copyGas::value)));
 }
 
-int64_t GasMeter::getStepCost(Instruction inst) const
-{
-	switch (inst)
-	{
-	// Tier 0
-	case Instruction::STOP:
-	case Instruction::RETURN:
-	case Instruction::REVERT:
-	case Instruction::SSTORE: // Handle cost of SSTORE separately in GasMeter::countSStore()
-		return JITSchedule::stepGas0::value;
-
-	// Tier 1
-	case Instruction::ADDRESS:
-	case Instruction::ORIGIN:
-	case Instruction::CALLER:
-	case Instruction::CALLVALUE:
-	case Instruction::CALLDATASIZE:
-	case Instruction::RETURNDATASIZE:
-	case Instruction::CODESIZE:
-	case Instruction::GASPRICE:
-	case Instruction::COINBASE:
-	case Instruction::TIMESTAMP:
-	case Instruction::NUMBER:
-	case Instruction::DIFFICULTY:
-	case Instruction::GASLIMIT:
-	case Instruction::POP:
-	case Instruction::PC:
-	case Instruction::MSIZE:
-	case Instruction::GAS:
-		return m_rev >= EVM_AION? 1 : JITSchedule::stepGas1::value;
-
-	// Tier 2
-	case Instruction::ADD:
-	case Instruction::SUB:
-	case Instruction::LT:
-	case Instruction::GT:
-	case Instruction::SLT:
-	case Instruction::SGT:
-	case Instruction::EQ:
-	case Instruction::ISZERO:
-	case Instruction::AND:
-	case Instruction::OR:
-	case Instruction::XOR:
-	case Instruction::NOT:
-	case Instruction::BYTE:
-	case Instruction::CALLDATALOAD:
-	case Instruction::CALLDATACOPY:
-	case Instruction::RETURNDATACOPY:
-	case Instruction::CODECOPY:
-	case Instruction::MLOAD:
-	case Instruction::MSTORE:
-	case Instruction::MSTORE8:
-	case Instruction::ANY_PUSH:
-	case Instruction::BASE_DUP:
-	case Instruction::BASE_SWAP:
-	case Instruction::EXT_DUP:
-	case Instruction::EXT_SWAP:
-		return m_rev >= EVM_AION? 1 : JITSchedule::stepGas2::value;
-
-	// Tier 3
-	case Instruction::MUL:
-	case Instruction::DIV:
-	case Instruction::SDIV:
-	case Instruction::MOD:
-	case Instruction::SMOD:
-	case Instruction::SIGNEXTEND:
-		return m_rev >= EVM_AION? 1 : JITSchedule::stepGas3::value;
-
-	// Tier 4
-	case Instruction::ADDMOD:
-	case Instruction::MULMOD:
-	case Instruction::JUMP:
-		return m_rev >= EVM_AION? 1 : JITSchedule::stepGas4::value;
-
-	// Tier 5
-	case Instruction::EXP:
-	case Instruction::JUMPI:
-		return m_rev >= EVM_AION? 1 : JITSchedule::stepGas5::value;
-
-	// Tier 6
-	case Instruction::BALANCE:
-		return m_rev >= EVM_AION ? 1000 : (m_rev >= EVM_TANGERINE_WHISTLE ? 400 : JITSchedule::stepGas6::value);
-
-	case Instruction::EXTCODESIZE:
-	case Instruction::EXTCODECOPY:
-		return m_rev >= EVM_AION ? 1000 : (m_rev >= EVM_TANGERINE_WHISTLE ? 700 : JITSchedule::stepGas6::value);
-
-	case Instruction::BLOCKHASH:
-		return JITSchedule::stepGas6::value;
-
-	case Instruction::SHA3:
-		return JITSchedule::sha3Gas::value;
-
-	case Instruction::SLOAD:
-		return m_rev >= EVM_AION ? 1000 : (m_rev >= EVM_TANGERINE_WHISTLE ? 200 : JITSchedule::sloadGas::value);
-
-	case Instruction::JUMPDEST:
-		return JITSchedule::jumpdestGas::value;
-
-	case Instruction::LOG0:
-	case Instruction::LOG1:
-	case Instruction::LOG2:
-	case Instruction::LOG3:
-	case Instruction::LOG4:
-	{
-		auto numTopics = static_cast<int64_t>(inst) - static_cast<int64_t>(Instruction::LOG0);
-		return (m_rev >= EVM_AION ? 500 : JITSchedule::logGas::value) + numTopics * (m_rev >= EVM_AION ? 500 : JITSchedule::logTopicGas::value);
-	}
-
-	case Instruction::CALL:
-	case Instruction::CALLCODE:
-	case Instruction::DELEGATECALL:
-	case Instruction::STATICCALL:
-		return m_rev >= EVM_AION ? 1000 : (m_rev >= EVM_TANGERINE_WHISTLE ? 700 : JITSchedule::callGas::value);
-
-	case Instruction::CREATE:
-		return m_rev >= EVM_AION ? 200000 : JITSchedule::createGas::value;
-
-	case Instruction::SELFDESTRUCT:
-		return  m_rev >= EVM_TANGERINE_WHISTLE ? 5000 : JITSchedule::stepGas0::value;
-
-	default:
-		// For invalid instruction just return 0.
-		return 0;
-	}
-}
-
 }
 }
 }
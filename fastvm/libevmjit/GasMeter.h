@@ -39,6 +39,14 @@ public:
 	/// Finalize cost-block by checking gas needed for the block before the block
 	void commitCostBlock();
 
+	/// Begin counting the cost of a code block
+	void beginCodeBlock();
+
+	/// Finalize the last cost-block of a code block. Returns the gas checks of
+	/// the cost-blocks the code block begins and ends with, null if the code
+	/// block does not begin or end with a checked cost-block.
+	std::pair<llvm::CallInst*, llvm::CallInst*> endCodeBlock();
+
 	/// Give back an amount of gas not used by a call
 	void giveBack(llvm::Value* _gas);
 
@@ -49,13 +57,15 @@ public:
 	void countCopy(llvm::Value* _copyWords);
 
 private:
-	int64_t getStepCost(Instruction inst) const;
-
 	/// Cumulative gas cost of a block of instructions
 	/// @TODO Handle overflow
 	int64_t m_blockCost = 0;
 
 	llvm::CallInst* m_checkCall = nullptr;
+
+	/// Gas check of the first cost-block of the current code block
+	llvm::CallInst* m_entryCheckCall = nullptr;
+	bool m_codeBlockBegin = false;
 	llvm::Function* m_gasCheckFunc = nullptr;
 
 	RuntimeManager& m_runtimeManager;
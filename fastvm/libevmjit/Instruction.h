@@ -1,5 +1,7 @@
 #pragma once
 
+#include <evm.h>
+
 #include "Common.h"
 
 namespace llvm
@@ -206,6 +208,11 @@ llvm::APInt readPushData(code_iterator& _curr, code_iterator _end);
 /// @param _curr is updated and points the last real byte skipped
 void skipPushData(code_iterator& _curr, code_iterator _end);
 
+/// Returns the base gas cost of the instruction in the given EVM revision.
+/// Dynamic costs (memory, data, SSTORE, calls) are not included.
+/// Invalid instructions cost 0.
+int64_t getStepCost(Instruction _inst, evm_revision _rev);
+
 #define ANY_PUSH	  PUSH1:  \
 	case Instruction::PUSH2:  \
 	case Instruction::PUSH3:  \
@@ -0,0 +1,1092 @@
+#include "Interpreter.h"
+
+#include <algorithm>
+#include <cstdlib>
+#include <limits>
+#include <memory>
+#include <vector>
+
+#include "Instruction.h"
+#include "MemoryPool.h"
+#include "Utils.h"
+
+namespace dev
+{
+namespace evmjit
+{
+
+namespace
+{
+
+using word = unsigned __int128;
+using sword = __int128;
+
+constexpr size_t c_stackLimit = JITSchedule::stackLimit::value;
+constexpr int64_t c_gasMax = std::numeric_limits<int64_t>::max();
+
+/// Thrown to abort the execution. The equivalent of the jump to the "Abort"
+/// block of compiled code.
+struct Abort {};
+
+/// Reads a big-endian number of up to 16 bytes.
+word load(byte const* _data, size_t _size = sizeof(word))
+{
+	word w = 0;
+	for (size_t i = 0; i < _size; ++i)
+		w = (w << 8) | _data[i];
+	return w;
+}
+
+/// Writes a word as 16 big-endian bytes.
+void store(byte* _data, word _w)
+{
+	for (size_t i = sizeof(word); i-- > 0; _w >>= 8)
+		_data[i] = static_cast<byte>(_w);
+}
+
+unsigned countLeadingZeros(word _w)
+{
+	auto high = static_cast<uint64_t>(_w >> 64);
+	auto low = static_cast<uint64_t>(_w);
+	if (high)
+		return __builtin_clzll(high);
+	return low ? 64 + __builtin_clzll(low) : 128;
+}
+
+/// Returns (_a + _b) % _m for _a, _b < _m.
+word addmodReduced(word _a, word _b, word _m)
+{
+	auto s = _a + _b;
+	if (s < _a || s >= _m)
+		s -= _m;
+	return s;
+}
+
+word addmod(word _a, word _b, word _m)
+{
+	auto s = _a + _b;
+	if (s >= _a)
+		return s % _m;
+	// The sum overflowed: s + 2^128 = s + (2^128 - 1) + 1
+	return addmodReduced(s % _m, addmodReduced(~word(0) % _m, 1 % _m, _m), _m);
+}
+
+word mulmod(word _a, word _b, word _m)
+{
+	_a %= _m;
+	word r = 0;
+	for (auto i = 128 - countLeadingZeros(_b); i-- > 0;)
+	{
+		r = addmodReduced(r, r, _m);
+		if ((_b >> i) & 1)
+			r = addmodReduced(r, _a, _m);
+	}
+	return r;
+}
+
+word exp(word _base, word _exponent)
+{
+	word r = 1;
+	for (; _exponent != 0; _exponent >>= 1)
+	{
+		if (_exponent & 1)
+			r *= _base;
+		_base *= _base;
+	}
+	return r;
+}
+
+/// Returns true if GasMeter ends a cost-block after the instruction: at the
+/// end of a code block (see Compiler::createBasicBlocks()), and before the
+/// remaining gas is observed by GAS, CREATE or a call.
+bool endsCostBlock(Instruction _inst)
+{
+	switch (_inst)
+	{
+	case Instruction::JUMP:
+	case Instruction::JUMPI:
+	case Instruction::STOP:
+	case Instruction::RETURN:
+	case Instruction::REVERT:
+	case Instruction::SELFDESTRUCT:
+	case Instruction::GAS:
+	case Instruction::CREATE:
+	case Instruction::CALL:
+	case Instruction::CALLCODE:
+	case Instruction::DELEGATECALL:
+	case Instruction::STATICCALL:
+		return true;
+	default:
+		return false;
+	}
+}
+
+class Interpreter
+{
+public:
+	Interpreter(ExecutionContext& _ctx, evm_revision _rev, bool _staticCall, CallFunc _call):
+		m_ctx(_ctx),
+		m_rt(*_ctx.m_data),
+		m_host(*_ctx.m_ctx->fn_table),
+		m_rev(_rev),
+		m_staticCall(_staticCall),
+		m_call(_call),
+		m_stack(static_cast<word*>(_ctx.m_stackBase))
+	{
+		std::memcpy(m_address.bytes, m_rt.address, sizeof(m_address.bytes));
+	}
+
+	/// Takes over the state of an execution suspended by compiled code.
+	/// Returns the code index to resume at.
+	uint64_t takeSuspended();
+
+	/// Records the code indexes of the blocks reached from now on.
+	void recordBlocks(std::vector<uint64_t>* o_blocks);
+
+	ReturnCode run(uint64_t _pc);
+
+private:
+	std::vector<bool> findJumpDests() const;
+
+	/// Records the block starting at the code index, if not recorded yet.
+	void reachBlock(uint64_t _pc);
+
+	/// Returns the sum of the step costs of the cost-block beginning at the
+	/// code index, which compiled code checks on entry to the cost-block.
+	int64_t getCostBlockCost(uint64_t _pc);
+
+	word pop();
+	void push(word _w);
+	evm_address popAddress();
+	void pushAddress(byte const* _bytes);
+
+	void useGas(int64_t _cost);
+	void useGas(word _cost);
+	void useCopyGas(uint64_t _copyWords);
+
+	void require(word _offset, word _size);
+	byte* memPtr(word _offset, word _size);
+	void copyBytes(byte const* _src, uint64_t _srcSize, word _srcIdx, word _destIdx, word _reqBytes);
+	void copyBytesNoPadding(byte const* _src, uint64_t _srcSize, word _srcIdx, word _destIdx, word _reqBytes);
+
+	evm_tx_context const& txContext();
+	word sload(word _key);
+	word balance(evm_address const& _address);
+	int64_t call(int _kind, int64_t _gas, evm_address const& _address, word _value,
+		word _inOff, word _inSize, byte* _outData, size_t _outSize);
+
+	ExecutionContext& m_ctx;
+	RuntimeData& m_rt;
+	evm_context_fn_table const& m_host;
+	evm_revision m_rev;
+	bool m_staticCall;
+	CallFunc m_call;
+	evm_address m_address;
+
+	word* m_stack;  ///< Provided by the host, like the stack of compiled code.
+	size_t m_stackSize = 0;
+
+	std::vector<uint64_t>* m_blocks = nullptr;
+	std::vector<bool> m_reached;
+
+	/// Costs of the cost-blocks by code index, -1 if not computed yet.
+	std::vector<int64_t> m_costBlockCosts;
+
+	/// RETURNDATA buffer of the last call.
+	byte const* m_returnBufData = nullptr;
+	size_t m_returnBufSize = 0;
+
+	evm_tx_context m_txCtx;
+	bool m_txCtxLoaded = false;
+};
+
+std::vector<bool> Interpreter::findJumpDests() const
+{
+	static const auto push1 = static_cast<size_t>(Instruction::PUSH1);
+	static const auto push32 = static_cast<size_t>(Instruction::PUSH32);
+
+	std::vector<bool> jumpDests(m_rt.codeSize);
+	for (size_t pc = 0; pc < m_rt.codeSize; ++pc)
+	{
+		auto op = m_rt.code[pc];
+		if (Instruction(op) == Instruction::JUMPDEST)
+			jumpDests[pc] = true;
+		else if (op >= push1 && op <= push32)
+			pc += op - push1 + 1;
+	}
+	return jumpDests;
+}
+
+uint64_t Interpreter::takeSuspended()
+{
+	m_stackSize = m_ctx.m_suspendedStackSize;
+	m_returnBufData = m_ctx.m_suspendedReturnBufData;
+	m_returnBufSize = m_ctx.m_suspendedReturnBufSize;
+	return m_ctx.m_suspendedPc;
+}
+
+void Interpreter::recordBlocks(std::vector<uint64_t>* o_blocks)
+{
+	m_blocks = o_blocks;
+	if (m_blocks)
+		m_reached.assign(m_rt.codeSize, false);
+}
+
+void Interpreter::reachBlock(uint64_t _pc)
+{
+	if (!m_blocks || _pc >= m_reached.size() || m_reached[_pc])
+		return;
+	m_reached[_pc] = true;
+	m_blocks->push_back(_pc);
+}
+
+int64_t Interpreter::getCostBlockCost(uint64_t _pc)
+{
+	static const auto push1 = static_cast<size_t>(Instruction::PUSH1);
+	static const auto push32 = static_cast<size_t>(Instruction::PUSH32);
+
+	if (m_costBlockCosts.empty())
+		m_costBlockCosts.assign(m_rt.codeSize, -1);
+	auto& cost = m_costBlockCosts[_pc];
+	if (cost >= 0)
+		return cost;
+
+	// The cost-block also ends before a JUMPDEST, where a code block begins.
+	cost = 0;
+	for (auto pc = _pc; pc < m_rt.codeSize; ++pc)
+	{
+		auto op = m_rt.code[pc];
+		cost += getStepCost(Instruction(op), m_rev);
+		if (endsCostBlock(Instruction(op)))
+			break;
+		if (op >= push1 && op <= push32)
+			pc += op - push1 + 1;
+		if (pc + 1 < m_rt.codeSize && Instruction(m_rt.code[pc + 1]) == Instruction::JUMPDEST)
+			break;
+	}
+	return cost;
+}
+
+word Interpreter::pop()
+{
+	if (m_stackSize == 0)
+		throw Abort{};
+	return m_stack[--m_stackSize];
+}
+
+void Interpreter::push(word _w)
+{
+	if (m_stackSize == c_stackLimit)
+		throw Abort{};
+	m_stack[m_stackSize++] = _w;
+}
+
+evm_address Interpreter::popAddress()
+{
+	// Addresses take two stack items, the high half on the top.
+	evm_address address;
+	store(address.bytes, pop());
+	store(address.bytes + sizeof(word), pop());
+	return address;
+}
+
+void Interpreter::pushAddress(byte const* _bytes)
+{
+	push(load(_bytes + sizeof(word)));
+	push(load(_bytes));
+}
+
+void Interpreter::useGas(int64_t _cost)
+{
+	if (_cost < 0 || m_rt.gas - _cost < 0)
+		throw Abort{};
+	m_rt.gas -= _cost;
+}
+
+void Interpreter::useGas(word _cost)
+{
+	useGas(_cost > word(c_gasMax) ? c_gasMax : static_cast<int64_t>(_cost));
+}
+
+void Interpreter::useCopyGas(uint64_t _copyWords)
+{
+	useGas(static_cast<int64_t>(_copyWords * JITSchedule::copyGas::value));
+}
+
+void Interpreter::require(word _offset, word _size)
+{
+	if (_size == 0)
+		return;
+
+	// Same limits and cost as the mem.require function of compiled code.
+	static const auto c_inputMax = uint64_t(1) << 33;
+	auto offsetOk = _offset <= c_inputMax;
+	auto sizeOk = _size <= c_inputMax;
+	auto offset = offsetOk ? static_cast<uint64_t>(_offset) : c_inputMax;
+	auto size = sizeOk ? static_cast<uint64_t>(_size) : c_inputMax;
+	auto sizeReq = (offset + size + 31) & (uint64_t(-1) << 5);
+	auto sizeCur = m_ctx.m_memSize;
+	if (sizeReq <= sizeCur)
+		return;
+
+	uint64_t const memoryGas = m_rev >= EVM_AION ? 1 : JITSchedule::memoryGas::value;
+	auto w1 = sizeReq >> 5;
+	auto c1 = w1 * memoryGas + ((w1 * w1) >> 9);
+	auto w0 = sizeCur >> 5;
+	auto c0 = w0 * memoryGas + ((w0 * w0) >> 9);
+	useGas(offsetOk && sizeOk ? static_cast<int64_t>(c1 - c0) : c_gasMax);
+
+	auto data = MemoryPool::reallocate(m_ctx.m_memData, sizeReq);
+	if (!data)
+		throw Abort{};
+	std::memset(data + sizeCur, 0, sizeReq - sizeCur);
+	m_ctx.m_memData = data;
+	m_ctx.m_memSize = sizeReq;
+	m_ctx.m_memCap = sizeReq;
+}
+
+byte* Interpreter::memPtr(word _offset, word _size)
+{
+	// An empty range may have any offset; it is never dereferenced.
+	return _size != 0 ? m_ctx.m_memData + static_cast<uint64_t>(_offset) : m_ctx.m_memData;
+}
+
+void Interpreter::copyBytes(byte const* _src, uint64_t _srcSize, word _srcIdx, word _destIdx, word _reqBytes)
+{
+	require(_destIdx, _reqBytes);
+	auto reqBytes = static_cast<uint64_t>(_reqBytes);
+	useCopyGas((reqBytes + 31) / 32);
+	if (reqBytes == 0)
+		return;
+
+	auto isOutsideData = _srcIdx >= _srcSize;
+	auto idx = static_cast<uint64_t>(_srcIdx);
+	auto bytesToCopy = isOutsideData ? 0 : std::min(reqBytes, _srcSize - idx);
+	auto dest = memPtr(_destIdx, _reqBytes);
+	if (bytesToCopy)
+		std::memcpy(dest, _src + idx, bytesToCopy);
+	std::memset(dest + bytesToCopy, 0, reqBytes - bytesToCopy);
+}
+
+void Interpreter::copyBytesNoPadding(byte const* _src, uint64_t _srcSize, word _srcIdx, word _destIdx, word _reqBytes)
+{
+	require(_destIdx, _reqBytes);
+	auto reqBytes = static_cast<uint64_t>(_reqBytes);
+	auto reqSize = _srcIdx + _reqBytes;
+	auto bufferOverrun = reqSize < _reqBytes || reqSize > _srcSize;
+	useCopyGas(bufferOverrun ? c_gasMax : (reqBytes + 31) / 32);
+	if (reqBytes != 0)
+		std::memcpy(memPtr(_destIdx, _reqBytes), _src + static_cast<uint64_t>(_srcIdx), reqBytes);
+}
+
+evm_tx_context const& Interpreter::txContext()
+{
+	if (!m_txCtxLoaded)
+	{
+		m_host.get_tx_context(&m_txCtx, m_ctx.m_ctx);
+		m_txCtxLoaded = true;
+	}
+	return m_txCtx;
+}
+
+word Interpreter::sload(word _key)
+{
+	evm_word key;
+	evm_word value;
+	store(key.bytes, _key);
+	m_host.get_storage(&value, m_ctx.m_ctx, &m_address, &key);
+	return load(value.bytes);
+}
+
+word Interpreter::balance(evm_address const& _address)
+{
+	evm_word value;
+	m_host.get_balance(&value, m_ctx.m_ctx, &_address);
+	return load(value.bytes);
+}
+
+/// Passes a call to the host, after the same depth and balance checks as the
+/// call wrapper of compiled code.
+int64_t Interpreter::call(int _kind, int64_t _gas, evm_address const& _address, word _value,
+	word _inOff, word _inSize, byte* _outData, size_t _outSize)
+{
+	m_returnBufData = nullptr;
+	m_returnBufSize = 0;
+
+	if (m_rt.depth >= 1024)
+		return _gas | EVM_CALL_FAILURE;
+
+	if (_kind != EVM_DELEGATECALL && _value != 0 && balance(m_address) < _value)
+		return _gas | EVM_CALL_FAILURE;
+
+	evm_word value;
+	store(value.bytes, _value);
+	// The stack of the nested execution starts above this one.
+	m_ctx.m_stackTop = m_stack + m_stackSize;
+	return m_call(m_ctx.m_ctx, _kind, _gas, &_address, &value, memPtr(_inOff, _inSize),
+		static_cast<size_t>(_inSize), _outData, _outSize, &m_returnBufData, &m_returnBufSize);
+}
+
+ReturnCode Interpreter::run(uint64_t _pc)
+{
+	auto const code = m_rt.code;
+	auto const codeSize = m_rt.codeSize;
+	auto const jumpDests = findJumpDests();
+
+	// Gas is charged per cost-block on entry, as in compiled code, so that an
+	// execution running out of gas does not get further than compiled code.
+	auto costBlockBegins = true;
+	reachBlock(_pc);
+	for (uint64_t pc = _pc; pc < codeSize; ++pc)
+	{
+		auto inst = Instruction(code[pc]);
+		if (costBlockBegins || inst == Instruction::JUMPDEST)
+			useGas(getCostBlockCost(pc));
+		costBlockBegins = endsCostBlock(inst);
+
+		switch (inst)
+		{
+		case Instruction::STOP:
+			return ReturnCode::Stop;
+
+		case Instruction::ADD:
+		{
+			auto lhs = pop();
+			push(lhs + pop());
+			break;
+		}
+
+		case Instruction::MUL:
+		{
+			auto lhs = pop();
+			push(lhs * pop());
+			break;
+		}
+
+		case Instruction::SUB:
+		{
+			auto lhs = pop();
+			push(lhs - pop());
+			break;
+		}
+
+		case Instruction::DIV:
+		{
+			auto d = pop();
+			auto n = pop();
+			push(n == 0 ? 0 : d / n);
+			break;
+		}
+
+		case Instruction::SDIV:
+		{
+			auto d = pop();
+			auto n = pop();
+			if (n == 0)
+				push(0);
+			else if (n == ~word(0))
+				push(0 - d);  // avoid undefined i128.min / -1
+			else
+				push(static_cast<word>(static_cast<sword>(d) / static_cast<sword>(n)));
+			break;
+		}
+
+		case Instruction::MOD:
+		{
+			auto d = pop();
+			auto n = pop();
+			push(n == 0 ? 0 : d % n);
+			break;
+		}
+
+		case Instruction::SMOD:
+		{
+			auto d = pop();
+			auto n = pop();
+			if (n == 0 || n == ~word(0))
+				push(0);
+			else
+				push(static_cast<word>(static_cast<sword>(d) % static_cast<sword>(n)));
+			break;
+		}
+
+		case Instruction::ADDMOD:
+		{
+			auto a = pop();
+			auto b = pop();
+			auto m = pop();
+			push(m == 0 ? 0 : addmod(a, b, m));
+			break;
+		}
+
+		case Instruction::MULMOD:
+		{
+			auto a = pop();
+			auto b = pop();
+			auto m = pop();
+			push(m == 0 ? 0 : mulmod(a, b, m));
+			break;
+		}
+
+		case Instruction::EXP:
+		{
+			auto base = pop();
+			auto exponent = pop();
+			// Additional cost is 1 per significant byte of exponent
+			auto sigBytes = (128 - countLeadingZeros(exponent) + 7) / 8;
+			auto exponentByteCost = m_rev >= EVM_AION ? 1 : (m_rev >= EVM_SPURIOUS_DRAGON ? 50 : JITSchedule::expByteGas::value);
+			useGas(static_cast<int64_t>(sigBytes * exponentByteCost));
+			push(exp(base, exponent));
+			break;
+		}
+
+		case Instruction::SIGNEXTEND:
+		{
+			auto idx = pop();
+			auto value = pop();
+			if (idx <= 14)
+			{
+				auto bitpos = static_cast<unsigned>(idx) * 8 + 7;
+				auto mask = (word(1) << bitpos) - 1;
+				value = ((value >> bitpos) & 1) ? (value | ~mask) : (value & mask);
+			}
+			push(value);
+			break;
+		}
+
+		case Instruction::LT:
+		{
+			auto lhs = pop();
+			push(lhs < pop());
+			break;
+		}
+
+		case Instruction::GT:
+		{
+			auto lhs = pop();
+			push(lhs > pop());
+			break;
+		}
+
+		case Instruction::SLT:
+		{
+			auto lhs = static_cast<sword>(pop());
+			push(lhs < static_cast<sword>(pop()));
+			break;
+		}
+
+		case Instruction::SGT:
+		{
+			auto lhs = static_cast<sword>(pop());
+			push(lhs > static_cast<sword>(pop()));
+			break;
+		}
+
+		case Instruction::EQ:
+		{
+			auto lhs = pop();
+			push(lhs == pop());
+			break;
+		}
+
+		case Instruction::ISZERO:
+			push(pop() == 0);
+			break;
+
+		case Instruction::AND:
+		{
+			auto lhs = pop();
+			push(lhs & pop());
+			break;
+		}
+
+		case Instruction::OR:
+		{
+			auto lhs = pop();
+			push(lhs | pop());
+			break;
+		}
+
+		case Instruction::XOR:
+		{
+			auto lhs = pop();
+			push(lhs ^ pop());
+			break;
+		}
+
+		case Instruction::NOT:
+			push(~pop());
+			break;
+
+		case Instruction::BYTE:
+		{
+			auto idx = pop();
+			auto value = pop();
+			push(idx < 16 ? (value >> (8 * (15 - static_cast<unsigned>(idx)))) & 0xff : 0);
+			break;
+		}
+
+		case Instruction::SHA3:
+		{
+			auto inOff = pop();
+			auto inSize = pop();
+			require(inOff, inSize);
+			auto size = static_cast<uint64_t>(inSize);
+			useGas(static_cast<int64_t>(JITSchedule::sha3WordGas::value * ((size + 31) / 32)));
+			byte hash[32];
+			keccak(memPtr(inOff, inSize), size, hash);
+			pushAddress(hash);
+			break;
+		}
+
+		case Instruction::ADDRESS:
+			pushAddress(m_rt.address);
+			break;
+
+		case Instruction::BALANCE:
+			push(balance(popAddress()));
+			break;
+
+		case Instruction::ORIGIN:
+			pushAddress(txContext().tx_origin.bytes);
+			break;
+
+		case Instruction::CALLER:
+			pushAddress(m_rt.caller);
+			break;
+
+		case Instruction::CALLVALUE:
+			push(load(m_rt.apparentValue));
+			break;
+
+		case Instruction::CALLDATALOAD:
+		{
+			auto idx = pop();
+			byte data[sizeof(word)] = {};
+			if (idx < m_rt.callDataSize)
+			{
+				auto offset = static_cast<uint64_t>(idx);
+				auto size = std::min<uint64_t>(sizeof(data), m_rt.callDataSize - offset);
+				std::memcpy(data, m_rt.callData + offset, size);
+			}
+			push(load(data));
+			break;
+		}
+
+		case Instruction::CALLDATASIZE:
+			push(m_rt.callDataSize);
+			break;
+
+		case Instruction::CALLDATACOPY:
+		{
+			auto destMemIdx = pop();
+			auto srcIdx = pop();
+			auto reqBytes = pop();
+			copyBytes(m_rt.callData, m_rt.callDataSize, srcIdx, destMemIdx, reqBytes);
+			break;
+		}
+
+		case Instruction::CODESIZE:
+			push(codeSize);
+			break;
+
+		case Instruction::CODECOPY:
+		{
+			auto destMemIdx = pop();
+			auto srcIdx = pop();
+			auto reqBytes = pop();
+			copyBytes(code, codeSize, srcIdx, destMemIdx, reqBytes);
+			break;
+		}
+
+		case Instruction::GASPRICE:
+			push(load(txContext().tx_gas_price.bytes));
+			break;
+
+		case Instruction::EXTCODESIZE:
+		{
+			auto address = popAddress();
+			push(m_host.get_code(nullptr, m_ctx.m_ctx, &address));
+			break;
+		}
+
+		case Instruction::EXTCODECOPY:
+		{
+			auto address = popAddress();
+			auto destMemIdx = pop();
+			auto srcIdx = pop();
+			auto reqBytes = pop();
+			byte const* extCode = nullptr;
+			auto extCodeSize = m_host.get_code(&extCode, m_ctx.m_ctx, &address);
+			copyBytes(extCode, extCodeSize, srcIdx, destMemIdx, reqBytes);
+			break;
+		}
+
+		case Instruction::RETURNDATASIZE:
+			if (m_rev < EVM_BYZANTIUM)
+				throw Abort{};
+			push(m_returnBufSize);
+			break;
+
+		case Instruction::RETURNDATACOPY:
+		{
+			if (m_rev < EVM_BYZANTIUM)
+				throw Abort{};
+
+			auto destMemIdx = pop();
+			auto srcIdx = pop();
+			auto reqBytes = pop();
+			copyBytesNoPadding(m_returnBufData, m_returnBufSize, srcIdx, destMemIdx, reqBytes);
+			break;
+		}
+
+		case Instruction::BLOCKHASH:
+		{
+			auto number = pop();
+			// If number bigger than int64 assume the result is 0.
+			evm_hash hash = {};
+			if (number <= word(std::numeric_limits<int64_t>::max()))
+				m_host.get_block_hash(&hash, m_ctx.m_ctx, static_cast<int64_t>(number));
+			pushAddress(hash.bytes);
+			break;
+		}
+
+		case Instruction::COINBASE:
+			pushAddress(txContext().block_coinbase.bytes);
+			break;
+
+		case Instruction::TIMESTAMP:
+			push(static_cast<uint64_t>(txContext().block_timestamp));
+			break;
+
+		case Instruction::NUMBER:
+			push(static_cast<uint64_t>(txContext().block_number));
+			break;
+
+		case Instruction::DIFFICULTY:
+			push(load(txContext().block_difficulty.bytes));
+			break;
+
+		case Instruction::GASLIMIT:
+			push(static_cast<uint64_t>(txContext().block_gas_limit));
+			break;
+
+		case Instruction::POP:
+			pop();
+			break;
+
+		case Instruction::MLOAD:
+		{
+			auto addr = pop();
+			require(addr, sizeof(word));
+			push(load(memPtr(addr, sizeof(word))));
+			break;
+		}
+
+		case Instruction::MSTORE:
+		{
+			auto addr = pop();
+			auto value = pop();
+			require(addr, sizeof(word));
+			store(memPtr(addr, sizeof(word)), value);
+			break;
+		}
+
+		case Instruction::MSTORE8:
+		{
+			auto addr = pop();
+			auto value = pop();
+			require(addr, 1);
+			*memPtr(addr, 1) = static_cast<byte>(value);
+			break;
+		}
+
+		case Instruction::SLOAD:
+			push(sload(pop()));
+			break;
+
+		case Instruction::SSTORE:
+		{
+			if (m_staticCall)
+				throw Abort{};
+
+			auto index = pop();
+			auto value = pop();
+			auto isInsert = sload(index) == 0 && value != 0;
+			useGas(isInsert ? int64_t(JITSchedule::sstoreSetGas::value) : int64_t(m_rev >= EVM_AION ? 8000 : JITSchedule::sstoreResetGas::value));
+
+			evm_word key;
+			evm_word newValue;
+			store(key.bytes, index);
+			store(newValue.bytes, value);
+			m_host.set_storage(m_ctx.m_ctx, &m_address, &key, &newValue);
+			break;
+		}
+
+		case Instruction::JUMP:
+		case Instruction::JUMPI:
+		{
+			auto dest = pop();
+			if (inst == Instruction::JUMPI && pop() == 0)
+			{
+				reachBlock(pc + 1);
+				break;
+			}
+			if (dest >= codeSize || !jumpDests[static_cast<size_t>(dest)])
+				throw Abort{};
+			pc = static_cast<uint64_t>(dest) - 1;  // incremented by the loop
+			break;
+		}
+
+		case Instruction::PC:
+			push(pc);
+			break;
+
+		case Instruction::MSIZE:
+			push(m_ctx.m_memSize);
+			break;
+
+		case Instruction::GAS:
+			push(static_cast<uint64_t>(m_rt.gas));
+			break;
+
+		case Instruction::JUMPDEST:
+			reachBlock(pc);
+			break;
+
+		case Instruction::ANY_PUSH:
+		{
+			// Reading out of bytecode means reading 0
+			auto numBytes = static_cast<size_t>(inst) - static_cast<size_t>(Instruction::PUSH1) + 1;
+			byte data[32] = {};
+			std::memcpy(data, code + pc + 1, std::min<uint64_t>(numBytes, codeSize - pc - 1));
+			if (numBytes > sizeof(word))
+			{
+				auto highBytes = numBytes - sizeof(word);
+				push(load(data + highBytes));
+				push(load(data, highBytes));
+			}
+			else
+				push(load(data, numBytes));
+			pc += numBytes;
+			break;
+		}
+
+		case Instruction::BASE_DUP:
+		case Instruction::EXT_DUP:
+		{
+			auto index = static_cast<size_t>(inst) - static_cast<size_t>(Instruction::DUP1);
+			if (inst >= Instruction::DUP17)
+			{
+				if (m_rev < EVM_AION_V1)
+					throw Abort{};
+				index = static_cast<size_t>(inst) - static_cast<size_t>(Instruction::DUP17) + 16;
+			}
+			if (index >= m_stackSize)
+				throw Abort{};
+			push(m_stack[m_stackSize - 1 - index]);
+			break;
+		}
+
+		case Instruction::BASE_SWAP:
+		case Instruction::EXT_SWAP:
+		{
+			auto index = static_cast<size_t>(inst) - static_cast<size_t>(Instruction::SWAP1) + 1;
+			if (inst >= Instruction::SWAP17)
+			{
+				if (m_rev < EVM_AION_V1)
+					throw Abort{};
+				index = static_cast<size_t>(inst) - static_cast<size_t>(Instruction::SWAP17) + 17;
+			}
+			if (index >= m_stackSize)
+				throw Abort{};
+			std::swap(m_stack[m_stackSize - 1], m_stack[m_stackSize - 1 - index]);
+			break;
+		}
+
+		case Instruction::LOG0:
+		case Instruction::LOG1:
+		case Instruction::LOG2:
+		case Instruction::LOG3:
+		case Instruction::LOG4:
+		{
+			if (m_staticCall)
+				throw Abort{};
+
+			auto beginIdx = pop();
+			auto numBytes = pop();
+			require(beginIdx, numBytes);
+			useGas(numBytes * (m_rev >= EVM_AION ? 20 : JITSchedule::logDataGas::value));
+
+			// Each topic takes two stack items
+			evm_word topics[8];
+			auto numTopics = 2 * (static_cast<size_t>(inst) - static_cast<size_t>(Instruction::LOG0));
+			for (size_t i = 0; i < numTopics; ++i)
+				store(topics[i].bytes, pop());
+
+			m_host.log(m_ctx.m_ctx, &m_address, memPtr(beginIdx, numBytes),
+				static_cast<size_t>(numBytes), topics, numTopics);
+			break;
+		}
+
+		case Instruction::CREATE:
+		{
+			if (m_staticCall)
+				throw Abort{};
+
+			auto endowment = pop();
+			auto initOff = pop();
+			auto initSize = pop();
+			require(initOff, initSize);
+
+			auto gas = m_rt.gas;
+			auto gasKept = m_rev >= EVM_TANGERINE_WHISTLE ? gas >> 6 : 0;
+			evm_address const noAddress = {};
+			evm_address newAddress = {};
+			auto r = call(EVM_CREATE, gas - gasKept, noAddress, endowment, initOff, initSize,
+				newAddress.bytes, sizeof(newAddress));
+			auto ret = r >= 0;
+			m_rt.gas = (r & ~EVM_CALL_FAILURE) + gasKept;
+
+			if (!ret)
+				newAddress = {};
+			pushAddress(newAddress.bytes);
+			break;
+		}
+
+		case Instruction::CALL:
+		case Instruction::CALLCODE:
+		case Instruction::DELEGATECALL:
+		case Instruction::STATICCALL:
+		{
+			if (inst == Instruction::DELEGATECALL && m_rev < EVM_HOMESTEAD)
+				throw Abort{};
+
+			if (inst == Instruction::STATICCALL && m_rev < EVM_BYZANTIUM)
+				throw Abort{};
+
+			auto callGas = pop();
+			auto address = popAddress();
+			bool hasValue = inst == Instruction::CALL || inst == Instruction::CALLCODE;
+			auto value = hasValue ? pop() : 0;
+
+			auto inOff = pop();
+			auto inSize = pop();
+			auto outOff = pop();
+			auto outSize = pop();
+
+			require(outOff, outSize);
+			require(inOff, inSize);
+
+			auto noTransfer = value == 0;
+
+			// For static call mode, select infinite penalty for CALL with
+			// value transfer.
+			auto const transferGas = (inst == Instruction::CALL && m_staticCall) ?
+				c_gasMax :
+				int64_t(m_rev >= EVM_AION ? 15000 : JITSchedule::valueTransferGas::value);
+			useGas(noTransfer ? 0 : transferGas);
+
+			if (inst == Instruction::CALL)
+			{
+				bool noPenalty = m_host.account_exists(m_ctx.m_ctx, &address) != 0;
+				if (m_rev >= EVM_SPURIOUS_DRAGON)
+					noPenalty = noPenalty || noTransfer;
+				useGas(noPenalty ? 0 : int64_t(JITSchedule::callNewAccount::value));
+			}
+
+			if (m_rev >= EVM_TANGERINE_WHISTLE)
+			{
+				auto gasMaxAllowed = static_cast<word>(m_rt.gas - (m_rt.gas >> 6));
+				callGas = std::min(callGas, gasMaxAllowed);
+			}
+
+			useGas(callGas);
+			auto stipend = noTransfer ? 0 : int64_t(JITSchedule::callStipend::value);
+			auto gas = static_cast<int64_t>(callGas) + stipend;
+			int kind = inst == Instruction::CALL ? EVM_CALL :
+				inst == Instruction::CALLCODE ? EVM_CALLCODE :
+				inst == Instruction::DELEGATECALL ? EVM_DELEGATECALL : EVM_STATICCALL;
+			auto r = call(kind, gas, address, value, inOff, inSize, memPtr(outOff, outSize),
+				static_cast<size_t>(outSize));
+			auto ret = r >= 0;
+			m_rt.gas += r & ~EVM_CALL_FAILURE;
+			push(ret);
+			break;
+		}
+
+		case Instruction::RETURN:
+		case Instruction::REVERT:
+		{
+			auto const isRevert = inst == Instruction::REVERT;
+			if (isRevert && m_rev < EVM_BYZANTIUM)
+				throw Abort{};
+
+			auto index = pop();
+			auto size = pop();
+			require(index, size);
+			m_rt.callData = size != 0 ? memPtr(index, size) : nullptr;
+			m_rt.callDataSize = static_cast<uint64_t>(size);
+			return isRevert ? ReturnCode::Revert : ReturnCode::Return;
+		}
+
+		case Instruction::SELFDESTRUCT:
+		{
+			if (m_staticCall)
+				throw Abort{};
+
+			auto dest = popAddress();
+			if (m_rev >= EVM_TANGERINE_WHISTLE)
+			{
+				bool noPenalty = m_host.account_exists(m_ctx.m_ctx, &dest) != 0;
+				if (m_rev >= EVM_SPURIOUS_DRAGON)
+					noPenalty = noPenalty || balance(m_address) == 0;
+				useGas(noPenalty ? 0 : int64_t(JITSchedule::callNewAccount::value));
+			}
+			m_host.selfdestruct(m_ctx.m_ctx, &m_address, &dest);
+			return ReturnCode::Stop;
+		}
+
+		default: // Invalid instruction - abort
+			throw Abort{};
+		}
+	}
+
+	return ReturnCode::Stop;
+}
+
+}
+
+ReturnCode interpret(ExecutionContext& _ctx, evm_revision _rev, bool _staticCall, CallFunc _call,
+	std::vector<uint64_t>* o_blocks)
+{
+	try
+	{
+		Interpreter interpreter{_ctx, _rev, _staticCall, _call};
+		interpreter.recordBlocks(o_blocks);
+		return interpreter.run(0);
+	}
+	catch (Abort const&)
+	{
+		return ReturnCode::OutOfGas;
+	}
+}
+
+ReturnCode resume(ExecutionContext& _ctx, evm_revision _rev, bool _staticCall, CallFunc _call,
+	std::vector<uint64_t>* o_blocks)
+{
+	try
+	{
+		Interpreter interpreter{_ctx, _rev, _staticCall, _call};
+		interpreter.recordBlocks(o_blocks);
+		auto pc = interpreter.takeSuspended();
+		return interpreter.run(pc);
+	}
+	catch (Abort const&)
+	{
+		return ReturnCode::OutOfGas;
+	}
+}
+
+}
+}
@@ -0,0 +1,44 @@
+#pragma once
+
+#include <vector>
+
+#include <evm.h>
+
+#include "JIT.h"
+
+namespace dev
+{
+namespace evmjit
+{
+
+/// Host call function with the semantics of the compiled `evm.call` symbol.
+/// Returns the gas left, with EVM_CALL_FAILURE set if the call failed.
+using CallFunc = int64_t(*)(evm_context* _ctx, int _kind, int64_t _gas, evm_address const* _address,
+	evm_word const* _value, uint8_t const* _inputData, size_t _inputSize, uint8_t* _outputData,
+	size_t _outputSize, uint8_t const** o_bufData, size_t* o_bufSize);
+
+/// Executes EVM code without compiling it.
+///
+/// The interpreter runs code that has not been compiled yet. It follows the
+/// semantics of the compiled code: gas costs are the same as the ones counted
+/// by GasMeter and are charged per cost-block on entry to it, and every
+/// failure ends the execution with ReturnCode::OutOfGas. An execution running
+/// out of gas stops at the same cost-block as compiled code, so it does not
+/// make calls that compiled code would not make.
+///
+/// Memory is kept in the execution context, so the result is handled as for
+/// compiled code. The stack is the one of the execution context too.
+///
+/// If given, the code indexes of the blocks the execution reaches are added
+/// to o_blocks, for lazy compilation.
+ReturnCode interpret(ExecutionContext& _ctx, evm_revision _rev, bool _staticCall, CallFunc _call,
+	std::vector<uint64_t>* o_blocks = nullptr);
+
+/// Resumes an execution suspended by compiled code (ReturnCode::Suspend) at
+/// the block it was suspended at. The execution context must hold the state
+/// saved by the compiled code.
+ReturnCode resume(ExecutionContext& _ctx, evm_revision _rev, bool _staticCall, CallFunc _call,
+	std::vector<uint64_t>* o_blocks = nullptr);
+
+}
+}
@@ -1,23 +1,35 @@
 #include "JIT.h"
 
+#include <algorithm>
+#include <array>
 #include <cstddef>
+#include <condition_variable>
+#include <deque>
+#include <future>
+#include <limits>
 #include <mutex>
+#include <new>
+#include <set>
+#include <thread>
 
 #include "preprocessor/llvm_includes_start.h"
 #include <llvm/IR/Module.h>
 #include <llvm/ADT/StringSwitch.h>
 #include <llvm/ADT/Triple.h>
 #include <llvm/ExecutionEngine/MCJIT.h>
-#include <llvm/ExecutionEngine/SectionMemoryManager.h>
 #include <llvm/Support/TargetSelect.h>
 #include <llvm/Support/raw_os_ostream.h>
+#include <llvm/Target/TargetMachine.h>
 #include <evm.h>
 #include "preprocessor/llvm_includes_end.h"
 
 #include "Ext.h"
 #include "Compiler.h"
+#include "Interpreter.h"
 #include "Optimizer.h"
 #include "Cache.h"
+#include "CodeMemory.h"
+#include "MemoryPool.h"
 #include "ExecStats.h"
 #include "Utils.h"
 #include "BuildInfo.gen.h"
@@ -45,13 +57,202 @@ namespace
 {
 using ExecFunc = ReturnCode(*)(ExecutionContext*);
 
+/// Identifies compiled code: the code hash, the EVM revision and the flags
+/// the code is compiled for.
+struct CodeKey
+{
+	evm_hash hash;
+	evm_revision rev;
+	uint32_t flags;
+
+	CodeKey(evm_hash const& _hash, evm_revision _rev, uint32_t _flags):
+		hash(_hash), rev(_rev), flags(_flags & EVM_STATIC)
+	{}
+
+	bool operator==(CodeKey const& _other) const
+	{
+		return rev == _other.rev && flags == _other.flags &&
+			std::memcmp(hash.bytes, _other.hash.bytes, sizeof(hash.bytes)) == 0;
+	}
+};
+
+struct CodeKeyHash
+{
+	size_t operator()(CodeKey const& _key) const
+	{
+		// The code hash is already uniformly distributed.
+		size_t h;
+		std::memcpy(&h, _key.hash.bytes, sizeof(h));
+		return h ^ (static_cast<size_t>(_key.rev) << 1) ^ _key.flags;
+	}
+};
+
+/// Function of compiled code and the sections it runs in.
+struct CompiledCode
+{
+	ExecFunc func;
+	std::shared_ptr<ModuleMemory> memory;
+};
+
 struct CodeMapEntry
 {
-    ExecFunc func = nullptr;
-    size_t hits = 0;
+	/// Function of the compiled code, to check for it without taking the
+	/// compiled code.
+	std::atomic<ExecFunc> func{nullptr};
+	std::atomic<size_t> hits{0};
+	std::atomic<bool> queued{false};  ///< Scheduled for background compilation.
+	std::atomic<bool> optimized{false};  ///< Compiled with the optimization passes.
+	std::atomic<uint64_t> lastUse{0};  ///< Use clock value of the last execution.
+	std::atomic<size_t> memorySize{0};  ///< JIT memory allocated for the compiled code.
+	std::mutex compileMutex;  ///< Held while the code is being compiled.
+
+	/// Removed from the code map by eviction. The memory of code compiled
+	/// afterwards, by a job scheduled before, is not counted in the code
+	/// cache. Guarded by the code cache mutex.
+	bool evicted = false;
+
+	/// Compiled code, read and replaced with std::atomic_load() and
+	/// std::atomic_store(). Executions hold the code they run, so the code
+	/// replaced by a recompilation, or evicted, is released when the last of
+	/// them returns.
+	std::shared_ptr<CompiledCode const> compiled;
+
+	/// Lazy compilation: code indexes of the blocks reached by the interpreter,
+	/// and how many of them the compiled code has. Code compiled entirely has
+	/// all of them.
+	std::mutex x_blocks;
+	std::set<uint64_t> blocks;
+	std::atomic<size_t> numBlocks{0};
+	std::atomic<size_t> compiledBlocks{0};
+
+	/// Adds the reached blocks. Returns true if some were not reached before.
+	bool addBlocks(std::vector<uint64_t> const& _blocks)
+	{
+		std::lock_guard<std::mutex> lock{x_blocks};
+		auto size = blocks.size();
+		blocks.insert(_blocks.begin(), _blocks.end());
+		numBlocks = blocks.size();
+		return blocks.size() != size;
+	}
+
+	/// Returns true if the code is not compiled, compiled without some of the
+	/// blocks reached since, or hot enough to be compiled again optimized.
+	bool needsCompile(size_t _optimizeHits) const
+	{
+		return !func.load() || compiledBlocks.load() < numBlocks.load() ||
+			(!optimized.load() && hits.load() >= _optimizeHits);
+	}
+};
 
-    CodeMapEntry() = default;
-    explicit CodeMapEntry(ExecFunc func) : func(func) {}
+/// Which compiled code is evicted first when the code cache is over budget.
+enum class EvictionPolicy
+{
+	lru,  ///< Least recently executed.
+	lfu,  ///< Least frequently executed.
+};
+
+/// Compiled code by code key. The map is split into stripes guarded by their
+/// own mutexes, held only to find an entry; the entries themselves are
+/// updated atomically.
+class CodeMap
+{
+public:
+	/// Returns the entry of the code, creating it if needed.
+	std::shared_ptr<CodeMapEntry> get(CodeKey const& _key)
+	{
+		auto& stripe = getStripe(_key);
+		std::lock_guard<std::mutex> lock{stripe.mutex};
+		auto& entry = stripe.entries[_key];
+		if (!entry)
+			entry = std::make_shared<CodeMapEntry>();
+		return entry;
+	}
+
+	void clear()
+	{
+		for (auto& stripe: m_stripes)
+		{
+			std::lock_guard<std::mutex> lock{stripe.mutex};
+			stripe.entries.clear();
+		}
+	}
+
+	using Entries = std::vector<std::pair<CodeKey, std::shared_ptr<CodeMapEntry>>>;
+
+	/// Returns the entries of compiled code.
+	Entries compiled()
+	{
+		Entries entries;
+		for (auto& stripe: m_stripes)
+		{
+			std::lock_guard<std::mutex> lock{stripe.mutex};
+			for (auto& p: stripe.entries)
+			{
+				if (p.second->func.load())
+					entries.push_back(p);
+			}
+		}
+		return entries;
+	}
+
+	/// Removes compiled code, in the order of the policy, until the memory of
+	/// the remaining compiled code is not above the target size. The entry
+	/// being compiled by the caller is kept.
+	/// Returns the memory size of the removed code.
+	size_t evict(size_t _totalSize, size_t _targetSize, EvictionPolicy _policy, CodeMapEntry const* _compiling)
+	{
+		struct Candidate
+		{
+			CodeKey key;
+			std::shared_ptr<CodeMapEntry> entry;
+			uint64_t rank;
+		};
+
+		std::vector<Candidate> candidates;
+		for (auto& p: compiled())
+		{
+			auto& entry = p.second;
+			if (entry.get() == _compiling)
+				continue;
+			auto rank = _policy == EvictionPolicy::lru ? entry->lastUse.load() : entry->hits.load();
+			candidates.push_back({p.first, entry, rank});
+		}
+		std::sort(candidates.begin(), candidates.end(),
+			[](Candidate const& _a, Candidate const& _b) { return _a.rank < _b.rank; });
+
+		size_t evictedSize = 0;
+		for (auto& candidate: candidates)
+		{
+			if (_totalSize - evictedSize <= _targetSize)
+				break;
+			auto& stripe = getStripe(candidate.key);
+			std::lock_guard<std::mutex> lock{stripe.mutex};
+			auto it = stripe.entries.find(candidate.key);
+			if (it == stripe.entries.end() || it->second != candidate.entry)
+				continue;
+			stripe.entries.erase(it);
+			candidate.entry->evicted = true;
+			evictedSize += candidate.entry->memorySize.load();
+		}
+		return evictedSize;
+	}
+
+private:
+	static const size_t c_numStripes = 64;
+
+	struct Stripe
+	{
+		std::mutex mutex;
+		std::unordered_map<CodeKey, std::shared_ptr<CodeMapEntry>, CodeKeyHash> entries;
+	};
+
+	Stripe& getStripe(CodeKey const& _key)
+	{
+		// Use other hash bytes than the ones selecting the bucket in a stripe.
+		return m_stripes[_key.hash.bytes[sizeof(_key.hash.bytes) - 1] % c_numStripes];
+	}
+
+	std::array<Stripe, c_numStripes> m_stripes;
 };
 
 char toChar(evm_revision rev)
@@ -71,18 +272,18 @@ char toChar(evm_revision rev)
 }
 
 /// Combine code hash and EVM revision into a printable code identifier.
-std::string makeCodeId(evm_hash codeHash, evm_revision rev, uint32_t flags)
+std::string makeCodeId(CodeKey const& _key)
 {
 	static const auto hexChars = "0123456789abcdef";
 	std::string str;
-	str.reserve(sizeof(codeHash) * 2 + 1);
-	for (auto b: codeHash.bytes)
+	str.reserve(sizeof(_key.hash) * 2 + 2);
+	for (auto b: _key.hash.bytes)
 	{
 		str.push_back(hexChars[b >> 4]);
 		str.push_back(hexChars[b & 0xf]);
 	}
-	str.push_back(toChar(rev));
-	if (flags & EVM_STATIC)
+	str.push_back(toChar(_key.rev));
+	if (_key.flags & EVM_STATIC)
 		str.push_back('S');
 	return str;
 }
@@ -101,7 +302,8 @@ void printVersion()
 }
 
 namespace cl = llvm::cl;
-cl::opt<bool> g_optimize{"O", cl::desc{"Optimize"}};
+cl::opt<bool> g_optimize{"O", cl::desc{"Optimize all code at once"}};
+cl::opt<unsigned> g_optimizeHits{"optimize-hits", cl::desc{"Number of executions after which code is compiled again optimized"}, cl::init(1000)};
 cl::opt<CacheMode> g_cache{"cache", cl::desc{"Cache compiled EVM code on disk"},
 	cl::values(
 		clEnumValN(CacheMode::off,   "0", "Disabled"),
@@ -109,9 +311,22 @@ cl::opt<CacheMode> g_cache{"cache", cl::desc{"Cache compiled EVM code on disk"},
 		clEnumValN(CacheMode::read,  "r", "Read only. No new objects are added to cache."),
 		clEnumValN(CacheMode::write, "w", "Write only. No objects are loaded from cache."),
 		clEnumValN(CacheMode::clear, "c", "Clear the cache storage. Cache is disabled."),
-		clEnumValN(CacheMode::preload, "p", "Preload all cached objects."))};
+		clEnumValN(CacheMode::preload, "p", "Preload all cached objects.")),
+	cl::init(CacheMode::off)};
+cl::opt<std::string> g_cacheDir{"cache-dir", cl::desc{"Directory of the code cache on disk, required by the cache"}};
+cl::opt<unsigned> g_cacheLimit{"cache-limit", cl::desc{"Size limit of the code cache on disk in MB, 0 for no limit"}, cl::init(1024)};
 cl::opt<bool> g_stats{"st", cl::desc{"Statistics"}};
 cl::opt<bool> g_dump{"dump", cl::desc{"Dump LLVM IR module"}};
+cl::opt<bool> g_tiered{"tiered", cl::desc{"Interpret code until it is compiled in background"}};
+cl::opt<bool> g_lazy{"lazy", cl::desc{"Compile only the blocks of the code reached by executions"}};
+cl::opt<bool> g_coalesceGas{"coalesce-gas", cl::desc{"Pay the gas of blocks in advance in the gas checks of their predecessors"}, cl::init(true)};
+cl::opt<unsigned> g_compilerThreads{"compiler-threads", cl::desc{"Number of compiler threads, 0 for the number of cores"}, cl::init(0)};
+cl::opt<unsigned> g_codeCacheSize{"code-cache-size", cl::desc{"Memory budget of compiled code in MB"}, cl::init(512)};
+cl::opt<EvictionPolicy> g_codeCachePolicy{"code-cache-policy", cl::desc{"Compiled code evicted first when over budget"},
+	cl::values(
+		clEnumValN(EvictionPolicy::lru, "lru", "Least recently executed"),
+		clEnumValN(EvictionPolicy::lfu, "lfu", "Least frequently executed")),
+	cl::init(EvictionPolicy::lru)};
 
 void parseOptions()
 {
@@ -122,22 +337,85 @@ void parseOptions()
 
 class SymbolResolver;
 
-class JITImpl: public evm_instance
+/// Compiler of one compiler thread. LLVM contexts are not thread-safe, so
+/// every compiler thread has its own context and execution engine.
+struct CompilerSlot
 {
-	std::unique_ptr<llvm::ExecutionEngine> m_engine;
-	SymbolResolver const* m_memoryMgr = nullptr;
-	mutable std::mutex x_codeMap;
-	std::unordered_map<std::string, CodeMapEntry> m_codeMap;
+	std::unique_ptr<llvm::LLVMContext> context;
+	std::unique_ptr<llvm::ExecutionEngine> engine;
+	SymbolResolver* memoryMgr = nullptr;
+};
 
-	static llvm::LLVMContext& getLLVMContext()
+class JITImpl: public evm_instance
+{
+	/// Compiler slots, one per compiler thread. Each engine is only used by
+	/// the thread owning the slot.
+	std::vector<std::unique_ptr<CompilerSlot>> m_slots;
+	CodeMap m_codeMap;
+
+	/// Memory of the code compiled by all engines.
+	std::shared_ptr<std::atomic<size_t>> m_jitMemorySize;
+
+	/// Number of running top-level executions. The engines own the compiled
+	/// code, so they are only reset when no execution is in flight.
+	/// Executions only count themselves in and out; the mutex is taken when
+	/// a reset is in progress, to wait for it or to wake it up.
+	std::mutex x_executions;
+	std::condition_variable m_executionsCond;
+	std::atomic<size_t> m_activeExecutions{0};
+	std::atomic<bool> m_resetRequested{false};
+	std::atomic<bool> m_resetInProgress{false};
+
+	/// Memory of the compiled code in the code map.
+	std::mutex x_codeCache;
+	size_t m_codeCacheSize = 0;
+
+	/// Incremented on every execution, orders code map entries by last use.
+	std::atomic<uint64_t> m_useClock{0};
+
+	/// Code waiting for compilation.
+	struct CompileJob
 	{
-		// TODO: This probably should be thread_local, but for now that causes
-		// a crash when MCJIT is destroyed.
-		static llvm::LLVMContext llvmContext;
-		return llvmContext;
-	}
+		CodeKey key;
+		std::shared_ptr<CodeMapEntry> entry;
+		byte const* code;
+		uint64_t codeSize;
 
+		/// Copy of the code of a background job, which outlives the execution.
+		std::vector<byte> codeCopy;
+
+		/// Result of a job a caller waits for, null for background jobs.
+		std::promise<ExecFunc>* result;
+	};
+
+	std::mutex x_compileQueue;
+	std::condition_variable m_compileCond;
+	std::deque<CompileJob> m_compileQueue;
+	std::vector<std::thread> m_compilers;
+	bool m_stopCompilers = false;
+
+	/// Starts the compiler threads, if not started yet.
+	/// Callers must hold x_compileQueue.
+	void startCompilers();
+
+	void compileLoop(CompilerSlot& _slot);
+
+	/// Compiles the code on the slot of the calling compiler thread and
+	/// publishes the function in the entry.
+	ExecFunc compile(CompilerSlot& _slot, CodeKey const& _key, CodeMapEntry& _entry,
+		byte const* _code, uint64_t _codeSize);
+
+	/// Resets the engines of all slots. Callers must make sure no
+	/// compilation is running (or be the constructor).
 	void resetEngine();
+	void resetSlot(CompilerSlot& _slot, ObjectCache* _objectCache);
+
+	/// Evicts compiled code from the code map if it is over the memory budget,
+	/// except the entry being compiled.
+	void evictCode(CodeMapEntry const& _compiling);
+
+	/// Like enterExecution(), but fails instead of waiting for an engine reset.
+	bool tryEnterExecution();
 
 public:
 	static JITImpl& instance()
@@ -149,22 +427,149 @@ public:
 	}
 
 	JITImpl();
+	~JITImpl();
 
 	void checkMemorySize();
 
-	llvm::ExecutionEngine& engine() { return *m_engine; }
+	void enterExecution();
+	void leaveExecution();
 
-	CodeMapEntry getExecFunc(std::string const& _codeIdentifier);
-	void mapExecFunc(std::string const& _codeIdentifier, ExecFunc _funcAddr);
+	/// Returns the code map entry of the code, after counting the hit.
+	std::shared_ptr<CodeMapEntry> getExecFunc(CodeKey const& _key);
 
-	ExecFunc compile(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize, std::string const& _codeIdentifier);
+	/// Compiles the code into the code map ahead of its first execution.
+	bool warmUp(CodeKey const& _key, byte const* _code, uint64_t _codeSize);
 
-	evm_context_fn_table const* host = nullptr;
+	/// Compiles the codes into the code map ahead of their first execution,
+	/// on all compiler threads. Returns the number of codes compiled.
+	size_t warmUp(std::vector<CodeKey> const& _keys, byte const* const* _codes, size_t const* _codeSizes);
+
+	/// Returns the most executed compiled code, most executed first.
+	CodeMap::Entries hotSet(size_t _maxEntries);
+
+	/// Compiles the code on a compiler thread and waits for the result.
+	/// Callers must be inside an execution.
+	ExecFunc compile(CodeKey const& _key, std::shared_ptr<CodeMapEntry> const& _entry,
+		byte const* _code, uint64_t _codeSize);
 
-	evm_message const* currentMsg = nullptr;
-	std::vector<uint8_t> returnBuffer;
+	/// Queues the code for compilation on a background compiler thread,
+	/// unless it is already compiled (with all reached blocks) or queued.
+	void scheduleCompile(CodeKey const& _key, std::shared_ptr<CodeMapEntry> const& _entry, byte const* _code, uint64_t _codeSize);
+
+	evm_context_fn_table const* host = nullptr;
+	std::once_flag hostFlag;
 
 	size_t hitThreshold = 0;
+
+	/// Run code in the interpreter until its compilation is finished,
+	/// instead of compiling it on the calling thread.
+	bool tiered = false;
+
+	/// Number of executions after which code is compiled again in background,
+	/// with the optimization passes and code generation optimizations. Code
+	/// executed less is compiled without them, as it compiles much faster.
+	size_t optimizeHits = 0;
+
+	/// Compile only the blocks reached by executions. Other blocks suspend
+	/// the compiled code and the execution continues in the interpreter,
+	/// which records the blocks it reaches for the next compilation.
+	bool lazy = false;
+
+	/// Pay the gas of blocks in advance in the gas checks of their
+	/// predecessors (see Compiler::Options).
+	bool coalesceGas = true;
+
+	/// Memory budget of the compiled code in the code map, in bytes.
+	size_t codeCacheBudget = 0;
+	EvictionPolicy evictionPolicy = EvictionPolicy::lru;
+};
+
+/// Message of the execution running on this thread (innermost one).
+thread_local evm_message const* t_currentMsg = nullptr;
+
+/// RETURNDATA buffer of the last call made on this thread.
+thread_local std::vector<uint8_t> t_returnBuffer;
+
+/// EVM stacks of the executions running on a thread. The stack of a nested
+/// execution starts at the top of the stack of its caller, so a call chain
+/// takes only as much memory as its stack items. Regions are allocated when
+/// a call chain first outgrows the previous ones, and reused afterwards.
+class StackRegions
+{
+public:
+	/// Stack of an execution.
+	struct Frame
+	{
+		void* base;
+		size_t region;
+	};
+
+	/// Returns the stack of an execution called by the given one, or of a
+	/// top-level execution if there is no caller.
+	Frame push(Frame const* _caller, void const* _callerTop)
+	{
+		if (!_caller)
+			return {getRegion(0), 0};
+
+		// The caller did not tell where its stack ends if the call does not
+		// come from the code, e.g. for a precompiled contract.
+		auto top = static_cast<byte const*>(_callerTop);
+		auto end = m_regions[_caller->region].get() + c_regionSize;
+		if (top && top >= static_cast<byte const*>(_caller->base) && top + c_stackSize <= end)
+			return {const_cast<byte*>(top), _caller->region};
+		return {getRegion(_caller->region + 1), _caller->region + 1};
+	}
+
+private:
+	struct FreeRegion
+	{
+		void operator()(byte* _region) const { std::free(_region); }
+	};
+
+	byte* getRegion(size_t _index)
+	{
+		while (m_regions.size() <= _index)
+		{
+			// malloc aligns the stack items as compiled code expects.
+			auto region = static_cast<byte*>(std::malloc(c_regionSize));
+			if (!region)
+				throw std::bad_alloc{};
+			m_regions.emplace_back(region);
+		}
+		return m_regions[_index].get();
+	}
+
+	static constexpr size_t c_stackSize = JITSchedule::stackLimit::value * sizeof(evm_word);
+	static constexpr size_t c_regionSize = 64 * c_stackSize;
+
+	std::vector<std::unique_ptr<byte, FreeRegion>> m_regions;
+};
+
+thread_local StackRegions t_stacks;
+
+/// Stack of the execution running on this thread (innermost one).
+struct StackGuard;
+thread_local StackGuard const* t_currentStack = nullptr;
+
+struct StackGuard
+{
+	ExecutionContext const& ctx;
+	StackGuard const* caller;
+	StackRegions::Frame frame;
+
+	explicit StackGuard(ExecutionContext& _ctx):
+		ctx(_ctx),
+		caller(t_currentStack),
+		frame(t_stacks.push(caller ? &caller->frame : nullptr, caller ? caller->ctx.m_stackTop : nullptr))
+	{
+		_ctx.m_stackBase = frame.base;
+		t_currentStack = this;
+	}
+
+	~StackGuard()
+	{
+		t_currentStack = caller;
+	}
 };
 
 int64_t call_v2(
@@ -186,13 +591,13 @@ int64_t call_v2(
 
 	evm_message msg;
 	msg.address = *_address;
-	msg.caller = _kind != EVM_DELEGATECALL ? jit.currentMsg->address : jit.currentMsg->caller;
-	msg.value = _kind != EVM_DELEGATECALL ? *_value : jit.currentMsg->value;
+	msg.caller = _kind != EVM_DELEGATECALL ? t_currentMsg->address : t_currentMsg->caller;
+	msg.value = _kind != EVM_DELEGATECALL ? *_value : t_currentMsg->value;
 	msg.input = _inputData;
 	msg.input_size = _inputSize;
 	msg.gas = _gas;
-	msg.depth = jit.currentMsg->depth + 1;
-	msg.flags = jit.currentMsg->flags;
+	msg.depth = t_currentMsg->depth + 1;
+	msg.flags = t_currentMsg->flags;
 	
 	if (_kind == EVM_STATICCALL)
 	{
@@ -214,9 +619,9 @@ int64_t call_v2(
 
 	// Update RETURNDATA buffer.
 	// The buffer is already cleared.
-	jit.returnBuffer = {result.output_data, result.output_data + result.output_size};
-	*o_bufData = jit.returnBuffer.data();
-	*o_bufSize = jit.returnBuffer.size();
+	t_returnBuffer = {result.output_data, result.output_data + result.output_size};
+	*o_bufData = t_returnBuffer.data();
+	*o_bufSize = t_returnBuffer.size();
 
 	if (_kind == EVM_CREATE && result.status_code == EVM_SUCCESS)
 		std::copy_n(result.output_data, sizeof(evm_address), _outputData);
@@ -230,8 +635,15 @@ int64_t call_v2(
 }
 
 
-class SymbolResolver : public llvm::SectionMemoryManager
+class SymbolResolver : public CodeMemoryManager
 {
+public:
+	using CodeMemoryManager::CodeMemoryManager;
+
+	/// Sets the global prefix of the DataLayout of the engine.
+	void setGlobalPrefix(char _prefix) { m_globalPrefix = _prefix; }
+
+private:
 	llvm::JITSymbol findSymbol(std::string const& _name) override
 	{
 		auto& jit = JITImpl::instance();
@@ -239,7 +651,7 @@ class SymbolResolver : public llvm::SectionMemoryManager
 		// Handle symbols' global prefix.
 		// If in current DataLayout global symbols are prefixed, drop the
 		// prefix from the name for local search.
-		char prefix = jit.engine().getDataLayout().getGlobalPrefix();
+		char prefix = m_globalPrefix;
 		llvm::StringRef unprefixedName = (prefix != '\0' && _name[0] == prefix)
 			? llvm::StringRef{_name}.drop_front() : llvm::StringRef{_name};
 
@@ -255,6 +667,8 @@ class SymbolResolver : public llvm::SectionMemoryManager
 			.Case("evm.get_tx_context", reinterpret_cast<uint64_t>(jit.host->get_tx_context))
 			.Case("evm.blockhash", reinterpret_cast<uint64_t>(jit.host->get_block_hash))
 			.Case("evm.log", reinterpret_cast<uint64_t>(jit.host->log))
+			.Case("evm.realloc", reinterpret_cast<uint64_t>(&MemoryPool::reallocate))
+			.Case("evm.release", reinterpret_cast<uint64_t>(&MemoryPool::release))
 			.Default(0);
 		if (addr)
 			return {addr, llvm::JITSymbolFlags::Exported};
@@ -263,81 +677,174 @@ class SymbolResolver : public llvm::SectionMemoryManager
 		// in the current process. Use the original prefixed symbol name.
 		// TODO: In the future we should control the whole set of requested
 		//       symbols (like memcpy, memset, etc) to improve performance.
-		return llvm::SectionMemoryManager::findSymbol(_name);
+		return llvm::RTDyldMemoryManager::findSymbol(_name);
 	}
 
-	void reportMemorySize(size_t _addedSize)
+	void reportMemorySize(size_t /*_addedSize*/) override
 	{
-		m_totalMemorySize += _addedSize;
-
 		if (!g_stats)
 			return;
 
-		if (m_totalMemorySize >= m_printMemoryLimit)
+		auto totalMemorySize = this->totalMemorySize();
+		if (totalMemorySize >= m_printMemoryLimit)
 		{
 			constexpr size_t printMemoryStep = 10 * 1024 * 1024;
-			auto value = double(m_totalMemorySize) / printMemoryStep;
+			auto value = double(totalMemorySize) / printMemoryStep;
 			std::cerr << "EVMJIT total memory size: " << (10 * value) << " MB\n";
 			m_printMemoryLimit += printMemoryStep;
 		}
 	}
 
-	uint8_t* allocateCodeSection(uintptr_t _size, unsigned _a, unsigned _id,
-	                             llvm::StringRef _name) override
+	char m_globalPrefix = '\0';
+	size_t m_printMemoryLimit = 1024 * 1024;
+};
+
+
+std::shared_ptr<CodeMapEntry> JITImpl::getExecFunc(CodeKey const& _key)
+{
+	auto entry = m_codeMap.get(_key);
+	entry->hits.fetch_add(1, std::memory_order_relaxed);
+	entry->lastUse.store(++m_useClock, std::memory_order_relaxed);
+	return entry;
+}
+
+bool JITImpl::warmUp(CodeKey const& _key, byte const* _code, uint64_t _codeSize)
+{
+	auto entry = m_codeMap.get(_key);
+	if (entry->func.load())
+		return true;
+
+	// Counts as an execution, so the engine is not reset before the function
+	// is mapped.
+	enterExecution();
+	auto func = compile(_key, entry, _code, _codeSize);
+	leaveExecution();
+	return func != nullptr;
+}
+
+size_t JITImpl::warmUp(std::vector<CodeKey> const& _keys, byte const* const* _codes, size_t const* _codeSizes)
+{
+	// Counts as an execution, as for a single code.
+	enterExecution();
+
+	std::vector<std::promise<ExecFunc>> results(_keys.size());
+	std::vector<std::future<ExecFunc>> futures;
+	for (auto& result: results)
+		futures.push_back(result.get_future());
 	{
-		reportMemorySize(_size);
-		return llvm::SectionMemoryManager::allocateCodeSection(_size, _a, _id, _name);
+		// The caller waits, so the codes stay valid and the jobs go first, in
+		// their order.
+		std::lock_guard<std::mutex> lock{x_compileQueue};
+		startCompilers();
+		for (auto i = _keys.size(); i-- > 0;)
+			m_compileQueue.push_front({_keys[i], m_codeMap.get(_keys[i]), _codes[i], _codeSizes[i], {}, &results[i]});
 	}
+	m_compileCond.notify_all();
 
-	uint8_t* allocateDataSection(uintptr_t _size, unsigned _a, unsigned _id,
-	                             llvm::StringRef _name, bool _ro) override
+	size_t compiled = 0;
+	for (auto& future: futures)
 	{
-		reportMemorySize(_size);
-		return llvm::SectionMemoryManager::allocateDataSection(_size, _a, _id, _name, _ro);
+		try
+		{
+			if (future.get())
+				++compiled;
+		}
+		catch (...)
+		{
+			// Not counted as compiled.
+		}
 	}
 
-	size_t m_totalMemorySize = 0;
-	size_t m_printMemoryLimit = 1024 * 1024;
-
-public:
-	size_t totalMemorySize() const { return m_totalMemorySize; }
-};
-
+	leaveExecution();
+	return compiled;
+}
 
-CodeMapEntry JITImpl::getExecFunc(std::string const& _codeIdentifier)
+CodeMap::Entries JITImpl::hotSet(size_t _maxEntries)
 {
-    std::lock_guard<std::mutex> lock{x_codeMap};
-    auto& entry = m_codeMap[_codeIdentifier];
-    ++entry.hits;
-    return entry;
+	auto entries = m_codeMap.compiled();
+	auto count = std::min(_maxEntries, entries.size());
+	std::partial_sort(entries.begin(), entries.begin() + count, entries.end(),
+		[](CodeMap::Entries::value_type const& _a, CodeMap::Entries::value_type const& _b)
+		{ return _a.second->hits.load() > _b.second->hits.load(); });
+	entries.resize(count);
+	return entries;
 }
 
-void JITImpl::mapExecFunc(std::string const& _codeIdentifier, ExecFunc _funcAddr)
+ExecFunc JITImpl::compile(CodeKey const& _key, std::shared_ptr<CodeMapEntry> const& _entry,
+	byte const* _code, uint64_t _codeSize)
 {
-    std::lock_guard<std::mutex> lock{x_codeMap};
-    m_codeMap[_codeIdentifier].func = _funcAddr;
+	if (auto func = _entry->func.load())
+		return func;
+
+	// The caller waits, so the code stays valid and the job goes first.
+	std::promise<ExecFunc> result;
+	auto future = result.get_future();
+	{
+		std::lock_guard<std::mutex> lock{x_compileQueue};
+		startCompilers();
+		m_compileQueue.push_front({_key, _entry, _code, _codeSize, {}, &result});
+	}
+	m_compileCond.notify_one();
+	return future.get();
 }
 
-ExecFunc JITImpl::compile(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize,
-	std::string const& _codeIdentifier)
+ExecFunc JITImpl::compile(CompilerSlot& _slot, CodeKey const& _key, CodeMapEntry& _entry,
+	byte const* _code, uint64_t _codeSize)
 {
-	// reset engine.
-	static std::atomic<long> cnt(0);
-	if (++cnt % 20000L == 0) {
-		resetEngine();
+	// Other compiler threads may be compiling the same code.
+	std::lock_guard<std::mutex> lock{_entry.compileMutex};
+	if (!_entry.needsCompile(optimizeHits))
+		return _entry.func.load();
+
+	// Optimized code differs from the first tier, in its cached object too.
+	auto optimizeCode = _entry.hits.load() >= optimizeHits;
+	auto codeIdentifier = makeCodeId(_key);
+	if (optimizeCode)
+		codeIdentifier += 'O';
+
+	// So does code compiled without coalesced gas checks.
+	Compiler::Options options;
+	options.coalesceGasChecks = coalesceGas;
+	if (!options.coalesceGasChecks)
+		codeIdentifier += 'G';
+
+	// Code compiled lazily differs by the blocks compiled, and so does its
+	// identifier, which also names its function and cached object.
+	std::set<uint64_t> blocks;
+	if (lazy)
+	{
+		{
+			std::lock_guard<std::mutex> blocksLock{_entry.x_blocks};
+			blocks = _entry.blocks;
+		}
+		uint64_t blocksHash = 14695981039346656037ull;  // FNV-1a
+		for (auto block: blocks)
+		{
+			blocksHash ^= block;
+			blocksHash *= 1099511628211ull;
+		}
+		codeIdentifier += '.' + std::to_string(blocksHash);
 	}
+	auto rev = _key.rev;
+	auto staticCall = (_key.flags & EVM_STATIC) != 0;
+	auto& context = *_slot.context;
+	auto& engine = *_slot.engine;
+
+	// Make room for the new code before it is added to the code map.
+	evictCode(_entry);
 
 	clock_t t1 = clock();
-	auto module = Cache::getObject(_codeIdentifier, getLLVMContext());
+	auto module = Cache::getObject(codeIdentifier, context);
 	if (!module)
 	{
 		// TODO: Listener support must be redesigned. These should be a feature of JITImpl
 		//listener->stateChanged(ExecState::Compilation);
 		assert(_code || !_codeSize);
 		//TODO: Can the Compiler be stateless?
-		module = Compiler({}, _rev, _staticCall, getLLVMContext()).compile(_code, _code + _codeSize, _codeIdentifier);
+		module = Compiler(options, rev, staticCall, context).compile(_code, _code + _codeSize, codeIdentifier,
+			lazy ? &blocks : nullptr);
 
-		if (g_optimize)
+		if (optimizeCode)
 		{
 			//listener->stateChanged(ExecState::Optimization);
 			optimize(*module);
@@ -348,6 +855,8 @@ ExecFunc JITImpl::compile(evm_revision _rev, bool _staticCall, byte const* _code
 
 	if (g_dump)
 	{
+		static std::mutex x_dump;
+		std::lock_guard<std::mutex> dumpLock{x_dump};
 		llvm::raw_os_ostream cerr{std::cerr};
 		module->print(cerr, nullptr);
 	}
@@ -355,25 +864,146 @@ ExecFunc JITImpl::compile(evm_revision _rev, bool _staticCall, byte const* _code
 
 	llvm::Module *m = module.get();
 
-	m_engine->addModule(std::move(module));
+	engine.getTargetMachine()->setOptLevel(optimizeCode ? llvm::CodeGenOpt::Default : llvm::CodeGenOpt::None);
+	_slot.memoryMgr->beginModule();
+	engine.addModule(std::move(module));
 	//listener->stateChanged(ExecState::CodeGen);
-	ExecFunc func = (ExecFunc)m_engine->getFunctionAddress(_codeIdentifier);
-	m_engine->removeModule(m);
+	// Load the module before looking the function up. The engine still knows
+	// the symbol of evicted code with the same identifier and would return
+	// its released address instead.
+	engine.generateCodeForModule(m);
+	ExecFunc func = (ExecFunc)engine.getFunctionAddress(codeIdentifier);
+	engine.removeModule(m);
+	auto memory = _slot.memoryMgr->endModule();
 
 	clock_t t3 = clock();
 	DLOG(jit) << "compile: " << t2 - t1 << " " << t3 - t2 << std::endl;
 
 	delete m;
+
+	if (func)
+	{
+		auto memorySize = memory->size();
+		{
+			// An entry evicted meanwhile is not in the code map anymore, its
+			// memory is released with the executions still holding it. The
+			// replaced code is not counted anymore either.
+			std::lock_guard<std::mutex> cacheLock{x_codeCache};
+			if (!_entry.evicted)
+			{
+				m_codeCacheSize -= std::min(_entry.memorySize.load(), m_codeCacheSize);
+				m_codeCacheSize += memorySize;
+				_entry.memorySize = memorySize;
+			}
+		}
+		std::atomic_store(&_entry.compiled,
+			std::shared_ptr<CompiledCode const>{new CompiledCode{func, std::move(memory)}});
+		_entry.compiledBlocks = lazy ? blocks.size() : std::numeric_limits<size_t>::max();
+		_entry.optimized = optimizeCode;
+		_entry.func.store(func, std::memory_order_release);
+	}
 	return func;
 }
 
+void JITImpl::evictCode(CodeMapEntry const& _compiling)
+{
+	std::lock_guard<std::mutex> lock{x_codeCache};
+	if (m_codeCacheSize <= codeCacheBudget)
+		return;
+
+	// Evict down to 90% of the budget, so that eviction does not run again
+	// on the next compilation.
+	auto targetSize = codeCacheBudget / 10 * 9;
+	auto evictedSize = m_codeMap.evict(m_codeCacheSize, targetSize, evictionPolicy, &_compiling);
+	m_codeCacheSize -= std::min(evictedSize, m_codeCacheSize);
+
+	if (g_stats)
+		std::cerr << "EVMJIT evicted " << evictedSize / 1024 << " KB of compiled code\n";
+}
+
+void JITImpl::scheduleCompile(CodeKey const& _key, std::shared_ptr<CodeMapEntry> const& _entry,
+	byte const* _code, uint64_t _codeSize)
+{
+	if (!_entry->needsCompile(optimizeHits) || _entry->queued.exchange(true))
+		return;
+
+	std::lock_guard<std::mutex> lock{x_compileQueue};
+	startCompilers();
+	// The code is only valid for the duration of the execution, keep a copy.
+	m_compileQueue.push_back({_key, _entry, nullptr, 0, {_code, _code + _codeSize}, nullptr});
+	m_compileCond.notify_one();
+}
+
+void JITImpl::startCompilers()
+{
+	if (!m_compilers.empty())
+		return;
+	for (auto& slot: m_slots)
+		m_compilers.emplace_back(&JITImpl::compileLoop, this, std::ref(*slot));
+}
+
+void JITImpl::compileLoop(CompilerSlot& _slot)
+{
+	while (true)
+	{
+		std::unique_ptr<CompileJob> job;
+		{
+			std::unique_lock<std::mutex> lock{x_compileQueue};
+			m_compileCond.wait(lock, [this] { return m_stopCompilers || !m_compileQueue.empty(); });
+			if (m_stopCompilers)
+				return;
+			job.reset(new CompileJob(std::move(m_compileQueue.front())));
+			m_compileQueue.pop_front();
+		}
+
+		if (job->result)
+		{
+			// The waiting caller is inside an execution, the engine cannot be
+			// reset before it gets the function.
+			try
+			{
+				job->result->set_value(compile(_slot, job->key, *job->entry, job->code, job->codeSize));
+			}
+			catch (...)
+			{
+				job->result->set_exception(std::current_exception());
+			}
+			continue;
+		}
+
+		// A background job counts as an execution, so the engine owning the
+		// compiled code is not reset before the function is mapped. Waiting
+		// for a reset here could block callers waiting for their jobs, and
+		// the reset drops the entry anyway.
+		if (!tryEnterExecution())
+		{
+			job->entry->queued = false;
+			continue;
+		}
+
+		if (g_stats)
+			std::cerr << "EVMJIT Compile " << makeCodeId(job->key) << " (background)\n";
+
+		try
+		{
+			compile(_slot, job->key, *job->entry, job->codeCopy.data(), job->codeCopy.size());
+		}
+		catch (...)
+		{
+			// The code stays in the interpreter.
+		}
+		// Code is compiled again when more blocks are reached or it gets hot.
+		job->entry->queued = false;
+		leaveExecution();
+	}
+}
+
 } // anonymous namespace
 
 
 ExecutionContext::~ExecutionContext() noexcept
 {
-	if (m_memData)
-		std::free(m_memData);
+	MemoryPool::release(m_memData);
 }
 
 bytes_ref ExecutionContext::getReturnData() const
@@ -401,6 +1031,46 @@ EXPORT evm_instance* evmjit_create()
 	return &JITImpl::instance();
 }
 
+EXPORT int evmjit_compile(evm_instance* instance, evm_context* context, evm_revision rev, uint32_t flags,
+	evm_hash const* code_hash, uint8_t const* code, size_t code_size)
+{
+	auto& jit = *reinterpret_cast<JITImpl*>(instance);
+
+	// Compiled code is linked against the host functions.
+	std::call_once(jit.hostFlag, [&jit, context] { jit.host = context->fn_table; });
+	assert(jit.host == context->fn_table);
+
+	return jit.warmUp({*code_hash, rev, flags}, code, code_size) ? 1 : 0;
+}
+
+EXPORT size_t evmjit_compile_all(evm_instance* instance, evm_context* context, evm_revision rev, uint32_t flags,
+	evm_hash const* code_hashes, uint8_t const* const* codes, size_t const* code_sizes, size_t count)
+{
+	auto& jit = *reinterpret_cast<JITImpl*>(instance);
+
+	std::call_once(jit.hostFlag, [&jit, context] { jit.host = context->fn_table; });
+	assert(jit.host == context->fn_table);
+
+	std::vector<CodeKey> keys;
+	for (size_t i = 0; i < count; ++i)
+		keys.emplace_back(code_hashes[i], rev, flags);
+	return jit.warmUp(keys, codes, code_sizes);
+}
+
+EXPORT size_t evmjit_hot_set(evm_instance* instance, evmjit_hot_code* entries, size_t max_entries)
+{
+	auto& jit = *reinterpret_cast<JITImpl*>(instance);
+	auto hotSet = jit.hotSet(max_entries);
+	for (size_t i = 0; i < hotSet.size(); ++i)
+	{
+		entries[i].code_hash = hotSet[i].first.hash;
+		entries[i].rev = hotSet[i].first.rev;
+		entries[i].flags = hotSet[i].first.flags;
+		entries[i].hits = hotSet[i].second->hits.load();
+	}
+	return hotSet.size();
+}
+
 static void destroy(evm_instance* instance)
 {
 	(void)instance;
@@ -412,16 +1082,34 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 {
 	auto& jit = *reinterpret_cast<JITImpl*>(instance);
 
-	if (msg->depth == 0)
-		jit.checkMemorySize();
-
-	if (!jit.host)
-		jit.host = context->fn_table;
+	std::call_once(jit.hostFlag, [&jit, context] { jit.host = context->fn_table; });
 	assert(jit.host == context->fn_table);  // Require the fn_table not to change.
 
-	// TODO: Temporary keep track of the current message.
-	evm_message const* prevMsg = jit.currentMsg;
-	jit.currentMsg = msg;
+	// Nested calls run inside the top-level execution of the same thread.
+	struct ExecutionGuard
+	{
+		JITImpl& jit;
+		bool topLevel;
+		evm_message const* prevMsg;
+
+		ExecutionGuard(JITImpl& _jit, evm_message const* _msg):
+			jit(_jit), topLevel(_msg->depth == 0), prevMsg(t_currentMsg)
+		{
+			if (topLevel)
+			{
+				jit.checkMemorySize();
+				jit.enterExecution();
+			}
+			t_currentMsg = _msg;
+		}
+
+		~ExecutionGuard()
+		{
+			t_currentMsg = prevMsg;
+			if (topLevel)
+				jit.leaveExecution();
+		}
+	} guard{jit, msg};
 
 	RuntimeData rt;
 	rt.code = code;
@@ -443,33 +1131,67 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 	result.output_size = 0;
 	result.release = nullptr;
 
-    auto codeIdentifier = makeCodeId(msg->code_hash, rev, msg->flags);
-    auto codeEntry = jit.getExecFunc(codeIdentifier);
-    auto func = codeEntry.func;
-    if (!func)
+    CodeKey codeKey{msg->code_hash, rev, msg->flags};
+    auto codeEntry = jit.getExecFunc(codeKey);
+    // Held until the execution returns, so the code is not released while it runs.
+    auto compiled = std::atomic_load(&codeEntry->compiled);
+    auto func = compiled ? compiled->func : nullptr;
+    auto hits = codeEntry->hits.load(std::memory_order_relaxed);
+    const bool staticCall = (msg->flags & EVM_STATIC) != 0;
+    if (!func && !jit.tiered)
     {
-        //FIXME: We have a race condition here!
-
-        if (codeEntry.hits <= jit.hitThreshold)
+        if (hits <= jit.hitThreshold)
         {
             result.status_code = EVM_REJECTED;
             return result;
         }
 
         if (g_stats)
-            std::cerr << "EVMJIT Compile " << codeIdentifier << " (" << codeEntry.hits << ")\n";
+            std::cerr << "EVMJIT Compile " << makeCodeId(codeKey) << " (" << hits << ")\n";
 
-        const bool staticCall = (msg->flags & EVM_STATIC) != 0;
-        func = jit.compile(rev, staticCall, ctx.code(), ctx.codeSize(), codeIdentifier);
-        if (!func)
+        if (!jit.compile(codeKey, codeEntry, ctx.code(), ctx.codeSize()))
         {
             result.status_code = EVM_INTERNAL_ERROR;
             return result;
         }
-        jit.mapExecFunc(codeIdentifier, func);
+        compiled = std::atomic_load(&codeEntry->compiled);
+        func = compiled->func;
+    }
+    else if (func && hits >= jit.optimizeHits && !codeEntry->optimized.load(std::memory_order_relaxed))
+    {
+        // Tier up: the code is hot, compile it again optimized in background.
+        // The optimized function replaces this one when it is ready.
+        jit.scheduleCompile(codeKey, codeEntry, ctx.code(), ctx.codeSize());
     }
 
-    auto returnCode = func(&ctx);
+    // The stack starts above the stack of the calling execution, if any.
+    StackGuard stack{ctx};
+
+    ReturnCode returnCode;
+    std::vector<uint64_t> blocks;
+    auto reachedBlocks = jit.lazy ? &blocks : nullptr;
+    if (func)
+    {
+        returnCode = func(&ctx);
+        if (returnCode == ReturnCode::Suspend)
+        {
+            // Lazy compilation: the code reached a block that is not compiled
+            // yet. Finish in the interpreter and compile the reached blocks.
+            returnCode = resume(ctx, rev, staticCall, call_v2, reachedBlocks);
+            codeEntry->addBlocks(blocks);
+            jit.scheduleCompile(codeKey, codeEntry, ctx.code(), ctx.codeSize());
+        }
+    }
+    else
+    {
+        // Tiered mode: run cold code in the interpreter while it is being
+        // compiled in background.
+        if (hits > jit.hitThreshold)
+            jit.scheduleCompile(codeKey, codeEntry, ctx.code(), ctx.codeSize());
+        returnCode = interpret(ctx, rev, staticCall, call_v2, reachedBlocks);
+        if (reachedBlocks)
+            codeEntry->addBlocks(blocks);
+    }
 
 	if (returnCode == ReturnCode::Revert)
 	{
@@ -503,12 +1225,11 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 		// Set pointer to the destructor that will release the memory.
 		result.release = [](evm_result const* r)
 		{
-			std::free(r->reserved.context);
+			MemoryPool::release(static_cast<byte*>(r->reserved.context));
 		};
 		ctx.m_memData = nullptr;
 	}
 
-	jit.currentMsg = prevMsg;
 	return result;
 }
 
@@ -516,12 +1237,47 @@ static int set_option(evm_instance* instance, const char* name, const char* valu
 {
     try
     {
+        auto& jit = static_cast<JITImpl&>(*instance);
         if (name == std::string{"hits-threshold"})
         {
-            auto& jit = static_cast<JITImpl&>(*instance);
             jit.hitThreshold = std::stoul(value);
             return 1;
         }
+        if (name == std::string{"tiered"})
+        {
+            jit.tiered = std::stoul(value) != 0;
+            return 1;
+        }
+        if (name == std::string{"optimize-hits"})
+        {
+            jit.optimizeHits = std::stoul(value);
+            return 1;
+        }
+        if (name == std::string{"lazy"})
+        {
+            jit.lazy = std::stoul(value) != 0;
+            return 1;
+        }
+        if (name == std::string{"coalesce-gas"})
+        {
+            jit.coalesceGas = std::stoul(value) != 0;
+            return 1;
+        }
+        if (name == std::string{"code-cache-size"})
+        {
+            jit.codeCacheBudget = std::stoul(value) * 1024 * 1024;
+            return 1;
+        }
+        if (name == std::string{"code-cache-policy"})
+        {
+            if (value == std::string{"lru"})
+                jit.evictionPolicy = EvictionPolicy::lru;
+            else if (value == std::string{"lfu"})
+                jit.evictionPolicy = EvictionPolicy::lfu;
+            else
+                return 0;
+            return 1;
+        }
         return 0;
     }
     catch (...)
@@ -534,11 +1290,40 @@ static int set_option(evm_instance* instance, const char* name, const char* valu
 
 void JITImpl::resetEngine()
 {
-	std::lock_guard<std::mutex> lock{x_codeMap};
 	m_codeMap.clear();
-	m_engine.reset();
+	{
+		std::lock_guard<std::mutex> lock{x_codeCache};
+		m_codeCacheSize = 0;
+	}
+
+	// The cache is not written into the working directory of the process
+	// unless asked for.
+	CacheMode cacheMode = g_cache;
+	if (cacheMode != CacheMode::off && g_cacheDir.empty())
+	{
+		if (g_stats)
+			std::cerr << "EVMJIT cache disabled: no cache-dir\n";
+		cacheMode = CacheMode::off;
+	}
+
+	// TODO: Update cache listener
+	auto objectCache = Cache::init(cacheMode, nullptr, g_cacheDir, static_cast<uint64_t>(g_cacheLimit) * 1024 * 1024);
+	for (auto& slot: m_slots)
+		resetSlot(*slot, objectCache);
+
+	// FIXME: Disabled during API changes
+	//if (preloadCache)
+	//	Cache::preload(*m_engine, funcCache);
+}
+
+void JITImpl::resetSlot(CompilerSlot& _slot, ObjectCache* _objectCache)
+{
+	// The context is kept: the compiler thread caches types created in it.
+	_slot.engine.reset();
+	if (!_slot.context)
+		_slot.context.reset(new llvm::LLVMContext);
 
-	auto module = llvm::make_unique<llvm::Module>("", getLLVMContext());
+	auto module = llvm::make_unique<llvm::Module>("", *_slot.context);
 
 	// FIXME: LLVM 3.7: test on Windows
 	auto triple = llvm::Triple(llvm::sys::getProcessTriple());
@@ -548,22 +1333,18 @@ void JITImpl::resetEngine()
 
 	llvm::EngineBuilder builder(std::move(module));
 	builder.setEngineKind(llvm::EngineKind::JIT);
-	auto memoryMgr = llvm::make_unique<SymbolResolver>();
-	m_memoryMgr = memoryMgr.get();
+	auto memoryMgr = llvm::make_unique<SymbolResolver>(m_jitMemorySize);
+	_slot.memoryMgr = memoryMgr.get();
 	builder.setMCJITMemoryManager(std::move(memoryMgr));
-	builder.setOptLevel(g_optimize ? llvm::CodeGenOpt::Default : llvm::CodeGenOpt::None);
+	// The optimization level is set for every compilation.
+	builder.setOptLevel(llvm::CodeGenOpt::None);
 #ifndef NDEBUG
 	builder.setVerifyModules(true);
 #endif
 
-	m_engine.reset(builder.create());
-
-	// TODO: Update cache listener
-	m_engine->setObjectCache(Cache::init(g_cache, nullptr));
-
-	// FIXME: Disabled during API changes
-	//if (preloadCache)
-	//	Cache::preload(*m_engine, funcCache);
+	_slot.engine.reset(builder.create());
+	_slot.memoryMgr->setGlobalPrefix(_slot.engine->getDataLayout().getGlobalPrefix());
+	_slot.engine->setObjectCache(_objectCache);
 }
 
 JITImpl::JITImpl()
@@ -578,19 +1359,97 @@ JITImpl::JITImpl()
 	llvm::InitializeNativeTarget();
 	llvm::InitializeNativeTargetAsmPrinter();
 
+	m_jitMemorySize = std::make_shared<std::atomic<size_t>>(0);
+	auto compilerThreads = g_compilerThreads ? g_compilerThreads : std::max(1u, std::thread::hardware_concurrency());
+	for (unsigned i = 0; i < compilerThreads; ++i)
+		m_slots.emplace_back(new CompilerSlot);
 	resetEngine();
+
+	tiered = g_tiered;
+	optimizeHits = g_optimize ? 0 : g_optimizeHits;
+	lazy = g_lazy;
+	coalesceGas = g_coalesceGas;
+	codeCacheBudget = static_cast<size_t>(g_codeCacheSize) * 1024 * 1024;
+	evictionPolicy = g_codeCachePolicy;
+}
+
+JITImpl::~JITImpl()
+{
+	{
+		std::lock_guard<std::mutex> lock{x_compileQueue};
+		m_stopCompilers = true;
+	}
+	m_compileCond.notify_all();
+	for (auto& compiler: m_compilers)
+		compiler.join();
 }
 
 void JITImpl::checkMemorySize()
 {
+	// The code map is kept within its budget by eviction, and the sections of
+	// evicted code are released. The engine is still reset when the memory of
+	// the code that is alive reaches the hard limit, e.g. when evicted code
+	// is held by long executions.
 	constexpr size_t memoryLimit = 1000 * 1024 * 1024;
 
-	if (m_memoryMgr->totalMemorySize() > memoryLimit)
+	if (!m_resetRequested && *m_jitMemorySize <= memoryLimit)
+		return;
+
+	std::unique_lock<std::mutex> execLock{x_executions};
+	if (!m_resetRequested)
 	{
-		if (g_stats)
-			std::cerr << "EVMJIT reset!\n";
+		if (*m_jitMemorySize <= memoryLimit)
+			return;
+		m_resetRequested = true;
+	}
+
+	if (m_resetInProgress)
+		return;  // Another thread is already waiting to reset the engine.
 
-		resetEngine();
+	// Block new executions and wait for the running ones to finish. Either
+	// an entering execution sees the reset in progress, or the reset sees
+	// the execution counted in (both are sequentially consistent).
+	m_resetInProgress = true;
+	m_executionsCond.wait(execLock, [this] { return m_activeExecutions == 0; });
+
+	if (g_stats)
+		std::cerr << "EVMJIT reset!\n";
+
+	// No execution is running, so no compilation either.
+	resetEngine();
+
+	m_resetRequested = false;
+	m_resetInProgress = false;
+	m_executionsCond.notify_all();
+}
+
+void JITImpl::enterExecution()
+{
+	while (!tryEnterExecution())
+	{
+		std::unique_lock<std::mutex> execLock{x_executions};
+		m_executionsCond.wait(execLock, [this] { return !m_resetInProgress; });
+	}
+}
+
+bool JITImpl::tryEnterExecution()
+{
+	++m_activeExecutions;
+	if (!m_resetInProgress)
+		return true;
+
+	// Back off, the reset may be waiting for this execution.
+	leaveExecution();
+	return false;
+}
+
+void JITImpl::leaveExecution()
+{
+	if (--m_activeExecutions == 0 && m_resetInProgress)
+	{
+		// Lock, so that the reset is either waiting already or sees the count.
+		std::lock_guard<std::mutex> execLock{x_executions};
+		m_executionsCond.notify_all();
 	}
 }
 
@@ -15,6 +15,12 @@ namespace evmjit
 using byte = uint8_t;
 using bytes_ref = std::tuple<byte const*, size_t>;
 
+/// The flag indicating call failure in evm_call_fn() -- highest bit set.
+constexpr int64_t EVM_CALL_FAILURE = 0x8000000000000000;
+
+/// The hackish constant indicating EVM_CALL + EVM_STATIC flag.
+constexpr int EVM_STATICCALL = EVM_CREATE + 1;
+
 // TODO: Merge with ExecutionContext
 struct RuntimeData
 {
@@ -94,6 +100,9 @@ enum class ReturnCode
 	// Internal error codes
 	LLVMError          = -101,
 
+	// Internal codes
+	Suspend            = -102,	///< Reached a block that is not compiled, see ExecutionContext.
+
 	UnexpectedException = -111,
 };
 
@@ -120,6 +129,20 @@ public:
 	uint64_t m_memSize = 0;
 	uint64_t m_memCap = 0;
 
+	/// EVM stack of the execution, on the stack regions of the thread, and its
+	/// top when the execution calls. The stack of a nested execution starts at
+	/// the top of the stack of its caller.
+	void* m_stackBase = nullptr;
+	void* m_stackTop = nullptr;
+
+	/// State of an execution suspended by compiled code at a block that is not
+	/// compiled (ReturnCode::Suspend). The interpreter resumes it on the same
+	/// stack.
+	uint64_t m_suspendedStackSize = 0;
+	byte const* m_suspendedReturnBufData = nullptr;
+	uint64_t m_suspendedReturnBufSize = 0;
+	uint64_t m_suspendedPc = 0;
+
 public:
 	/// Reference to returned data (RETURN opcode used)
 	bytes_ref returnData;
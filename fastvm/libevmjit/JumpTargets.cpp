@@ -0,0 +1,364 @@
+#include "JumpTargets.h"
+
+#include <algorithm>
+#include <deque>
+#include <iterator>
+
+#include "Instruction.h"
+
+namespace dev
+{
+namespace eth
+{
+namespace jit
+{
+
+namespace
+{
+	/// Maximum number of possible values of a stack item. Items with more are unknown.
+	const size_t c_maxValues = 16;
+
+	/// Maximum number of stack items tracked from the top.
+	const size_t c_maxItems = 64;
+
+	/// Possible values of a stack item, sorted. Empty if the item is unknown.
+	using Values = std::vector<uint64_t>;
+
+	/// Stack items, the top one last. The items below them are unknown.
+	using Stack = std::vector<Values>;
+
+	/// State of the stack at the beginning of a block.
+	struct EntryState
+	{
+		bool reached = false;
+		bool queued = false;
+		Stack stack;
+	};
+
+	Values join(Values const& _a, Values const& _b)
+	{
+		if (_a.empty() || _b.empty())
+			return {};
+
+		Values values;
+		std::set_union(_a.begin(), _a.end(), _b.begin(), _b.end(), std::back_inserter(values));
+		if (values.size() > c_maxValues)
+			return {};
+		return values;
+	}
+
+	/// Joins the stack into the entry state. Returns true if the state changed.
+	bool join(EntryState& _state, Stack const& _stack)
+	{
+		if (!_state.reached)
+		{
+			_state.reached = true;
+			_state.stack = _stack;
+			return true;
+		}
+
+		// Items are aligned from the top, only the ones known in both are kept.
+		auto size = std::min(_state.stack.size(), _stack.size());
+		Stack joined(size);
+		for (size_t i = 1; i <= size; ++i)
+			joined[size - i] = join(_state.stack[_state.stack.size() - i], _stack[_stack.size() - i]);
+
+		if (joined == _state.stack)
+			return false;
+		_state.stack = std::move(joined);
+		return true;
+	}
+
+	Values pop(Stack& _stack)
+	{
+		if (_stack.empty())
+			return {};
+		auto values = std::move(_stack.back());
+		_stack.pop_back();
+		return values;
+	}
+
+	void push(Stack& _stack, Values _values)
+	{
+		_stack.push_back(std::move(_values));
+		if (_stack.size() > c_maxItems)
+			_stack.erase(_stack.begin());
+	}
+
+	void popPush(Stack& _stack, size_t _pops, size_t _pushes)
+	{
+		for (size_t i = 0; i < _pops; ++i)
+			pop(_stack);
+		for (size_t i = 0; i < _pushes; ++i)
+			push(_stack, {});
+	}
+
+	/// Runs the instructions of the block on the stack, but the jump ending
+	/// it. Returns the last instruction of the block.
+	Instruction run(BasicBlock const& _block, Stack& _stack)
+	{
+		auto inst = Instruction::STOP;
+		for (auto it = _block.begin(); it != _block.end(); ++it)
+		{
+			inst = Instruction(*it);
+			switch (inst)
+			{
+			case Instruction::ISZERO:
+			case Instruction::NOT:
+			case Instruction::CALLDATALOAD:
+			case Instruction::MLOAD:
+			case Instruction::SLOAD:
+				popPush(_stack, 1, 1);
+				break;
+
+			case Instruction::ADD:
+			case Instruction::MUL:
+			case Instruction::SUB:
+			case Instruction::DIV:
+			case Instruction::SDIV:
+			case Instruction::MOD:
+			case Instruction::SMOD:
+			case Instruction::EXP:
+			case Instruction::SIGNEXTEND:
+			case Instruction::LT:
+			case Instruction::GT:
+			case Instruction::SLT:
+			case Instruction::SGT:
+			case Instruction::EQ:
+			case Instruction::AND:
+			case Instruction::OR:
+			case Instruction::XOR:
+			case Instruction::BYTE:
+			case Instruction::BALANCE:
+			case Instruction::EXTCODESIZE:
+				popPush(_stack, 2, 1);
+				break;
+
+			case Instruction::ADDMOD:
+			case Instruction::MULMOD:
+				popPush(_stack, 3, 1);
+				break;
+
+			case Instruction::SHA3:
+				popPush(_stack, 2, 2);
+				break;
+
+			case Instruction::ADDRESS:
+			case Instruction::ORIGIN:
+			case Instruction::CALLER:
+			case Instruction::COINBASE:
+				popPush(_stack, 0, 2);
+				break;
+
+			case Instruction::CALLVALUE:
+			case Instruction::CALLDATASIZE:
+			case Instruction::CODESIZE:
+			case Instruction::GASPRICE:
+			case Instruction::RETURNDATASIZE:
+			case Instruction::TIMESTAMP:
+			case Instruction::NUMBER:
+			case Instruction::DIFFICULTY:
+			case Instruction::GASLIMIT:
+			case Instruction::MSIZE:
+			case Instruction::GAS:
+				popPush(_stack, 0, 1);
+				break;
+
+			case Instruction::BLOCKHASH:
+				popPush(_stack, 1, 2);
+				break;
+
+			case Instruction::CALLDATACOPY:
+			case Instruction::CODECOPY:
+			case Instruction::RETURNDATACOPY:
+				popPush(_stack, 3, 0);
+				break;
+
+			case Instruction::EXTCODECOPY:
+				popPush(_stack, 5, 0);
+				break;
+
+			case Instruction::POP:
+				popPush(_stack, 1, 0);
+				break;
+
+			case Instruction::MSTORE:
+			case Instruction::MSTORE8:
+			case Instruction::SSTORE:
+				popPush(_stack, 2, 0);
+				break;
+
+			case Instruction::LOG0:
+			case Instruction::LOG1:
+			case Instruction::LOG2:
+			case Instruction::LOG3:
+			case Instruction::LOG4:
+			{
+				auto numTopics = static_cast<size_t>(inst) - static_cast<size_t>(Instruction::LOG0);
+				popPush(_stack, 2 + 2 * numTopics, 0);
+				break;
+			}
+
+			case Instruction::CREATE:
+				popPush(_stack, 3, 2);
+				break;
+
+			case Instruction::CALL:
+			case Instruction::CALLCODE:
+				popPush(_stack, 8, 1);
+				break;
+
+			case Instruction::DELEGATECALL:
+			case Instruction::STATICCALL:
+				popPush(_stack, 7, 1);
+				break;
+
+			case Instruction::PC:
+				push(_stack, {static_cast<uint64_t>(it - _block.begin()) + _block.firstInstrIdx()});
+				break;
+
+			case Instruction::ANY_PUSH:
+			{
+				auto value = readPushData(it, _block.end());
+				if (value.getBitWidth() > 8 * 16)
+					popPush(_stack, 0, 2);
+				else if (value.getActiveBits() <= 64)
+					push(_stack, {value.getZExtValue()});
+				else
+					push(_stack, {});
+				break;
+			}
+
+			case Instruction::BASE_DUP:
+			case Instruction::EXT_DUP:
+			{
+				auto index = inst <= Instruction::DUP16 ?
+						static_cast<size_t>(inst) - static_cast<size_t>(Instruction::DUP1) :
+						static_cast<size_t>(inst) - static_cast<size_t>(Instruction::DUP17) + 16;
+				push(_stack, index < _stack.size() ? _stack[_stack.size() - 1 - index] : Values{});
+				break;
+			}
+
+			case Instruction::BASE_SWAP:
+			case Instruction::EXT_SWAP:
+			{
+				auto index = inst <= Instruction::SWAP16 ?
+						static_cast<size_t>(inst) - static_cast<size_t>(Instruction::SWAP1) + 1 :
+						static_cast<size_t>(inst) - static_cast<size_t>(Instruction::SWAP17) + 17;
+				if (index >= c_maxItems)
+				{
+					// The swapped item is not tracked.
+					if (!_stack.empty())
+						_stack.back().clear();
+					break;
+				}
+				if (index >= _stack.size())
+					_stack.insert(_stack.begin(), index + 1 - _stack.size(), Values{});
+				std::swap(_stack.back(), _stack[_stack.size() - 1 - index]);
+				break;
+			}
+
+			case Instruction::JUMPDEST:
+			case Instruction::JUMP:
+			case Instruction::JUMPI:
+			case Instruction::STOP:
+			case Instruction::RETURN:
+			case Instruction::REVERT:
+			case Instruction::SELFDESTRUCT:
+				break;
+
+			default:
+				// Not known to the analysis, nothing is known of the stack after it.
+				_stack.clear();
+				break;
+			}
+		}
+		return inst;
+	}
+}
+
+std::unordered_map<instr_idx, std::vector<uint64_t>> findJumpTargets(std::vector<BasicBlock> const& _blocks)
+{
+	std::unordered_map<instr_idx, size_t> blockIndexes;
+	std::vector<size_t> jumpDests;
+	for (size_t i = 0; i < _blocks.size(); ++i)
+	{
+		blockIndexes[_blocks[i].firstInstrIdx()] = i;
+		if (Instruction(*_blocks[i].begin()) == Instruction::JUMPDEST)
+			jumpDests.push_back(i);
+	}
+
+	std::vector<EntryState> states(_blocks.size());
+	std::deque<size_t> worklist;
+	auto reach = [&](size_t _idx, Stack const& _stack)
+	{
+		auto& state = states[_idx];
+		if (join(state, _stack) && !state.queued)
+		{
+			state.queued = true;
+			worklist.push_back(_idx);
+		}
+	};
+
+	std::unordered_map<instr_idx, std::vector<uint64_t>> targets;
+	std::vector<bool> unknownTargets(_blocks.size(), false);
+	if (!_blocks.empty())
+		reach(0, {});
+
+	// The entry states only grow up to the unknown stack, so this terminates.
+	while (!worklist.empty())
+	{
+		auto idx = worklist.front();
+		worklist.pop_front();
+		states[idx].queued = false;
+
+		auto& block = _blocks[idx];
+		auto stack = states[idx].stack;
+		auto lastInst = run(block, stack);
+		if (lastInst == Instruction::STOP || lastInst == Instruction::RETURN ||
+			lastInst == Instruction::REVERT || lastInst == Instruction::SELFDESTRUCT)
+			continue;
+
+		if (lastInst == Instruction::JUMP || lastInst == Instruction::JUMPI)
+		{
+			auto dests = pop(stack);
+			if (lastInst == Instruction::JUMPI)
+				pop(stack);
+
+			if (dests.empty())
+			{
+				// The jump may go to any destination.
+				unknownTargets[idx] = true;
+				targets.erase(block.firstInstrIdx());
+				for (auto destIdx: jumpDests)
+					reach(destIdx, {});
+			}
+			else if (!unknownTargets[idx])
+			{
+				auto& blockTargets = targets[block.firstInstrIdx()];
+				Values joined;
+				std::set_union(blockTargets.begin(), blockTargets.end(), dests.begin(), dests.end(), std::back_inserter(joined));
+				blockTargets = std::move(joined);
+
+				for (auto dest: dests)
+				{
+					auto found = blockIndexes.find(dest);
+					if (found != blockIndexes.end() && Instruction(*_blocks[found->second].begin()) == Instruction::JUMPDEST)
+						reach(found->second, stack);
+				}
+			}
+
+			if (lastInst == Instruction::JUMP)
+				continue;
+		}
+
+		if (idx + 1 < _blocks.size())
+			reach(idx + 1, stack);
+	}
+
+	return targets;
+}
+
+}
+}
+}
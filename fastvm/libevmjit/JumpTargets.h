@@ -0,0 +1,26 @@
+#pragma once
+
+#include <unordered_map>
+#include <vector>
+
+#include "BasicBlock.h"
+
+namespace dev
+{
+namespace eth
+{
+namespace jit
+{
+
+/// Finds the possible destinations of the dynamic jumps of the code, by
+/// tracking the code indexes pushed on the stack (e.g. the return addresses
+/// of Solidity internal functions) through the blocks.
+///
+/// Returns the destinations of the jumps ending the blocks, by the code index
+/// of the block. Blocks whose jump may go anywhere are not listed. The
+/// destinations are not checked to be valid.
+std::unordered_map<instr_idx, std::vector<uint64_t>> findJumpTargets(std::vector<BasicBlock> const& _blocks);
+
+}
+}
+}
@@ -0,0 +1,123 @@
+#include "MemoryPool.h"
+
+#include <array>
+#include <cstdlib>
+#include <cstring>
+#include <vector>
+
+namespace dev
+{
+namespace evmjit
+{
+
+namespace
+{
+	/// Buffers are powers of 2 from 4 KB to 16 MB. Larger ones are not pooled.
+	const unsigned c_minClassShift = 12;
+	const unsigned c_numClasses = 13;
+	const uint64_t c_maxPooledCapacity = uint64_t(1) << (c_minClassShift + c_numClasses - 1);
+
+	/// Limit of the memory kept in the pool of a thread.
+	const uint64_t c_maxPoolSize = 64 * 1024 * 1024;
+
+	/// Keeps the capacity of the buffer, and the data 16-byte aligned.
+	struct Header
+	{
+		uint64_t capacity;
+		uint64_t reserved;
+	};
+
+	Header* getHeader(uint8_t* _data)
+	{
+		return reinterpret_cast<Header*>(_data - sizeof(Header));
+	}
+
+	unsigned getClass(uint64_t _capacity)
+	{
+		unsigned c = 0;
+		while ((uint64_t(1) << (c_minClassShift + c)) < _capacity)
+			++c;
+		return c;
+	}
+
+	class Pool
+	{
+	public:
+		~Pool()
+		{
+			for (auto& buffers: m_buffers)
+				for (auto header: buffers)
+					std::free(header);
+		}
+
+		Header* take(uint64_t _capacity)
+		{
+			if (_capacity > c_maxPooledCapacity)
+				return nullptr;
+			auto& buffers = m_buffers[getClass(_capacity)];
+			if (buffers.empty())
+				return nullptr;
+			auto header = buffers.back();
+			buffers.pop_back();
+			m_size -= header->capacity;
+			return header;
+		}
+
+		/// Returns false if the pool is full.
+		bool put(Header* _header)
+		{
+			if (_header->capacity > c_maxPooledCapacity || m_size + _header->capacity > c_maxPoolSize)
+				return false;
+			m_buffers[getClass(_header->capacity)].push_back(_header);
+			m_size += _header->capacity;
+			return true;
+		}
+
+	private:
+		std::array<std::vector<Header*>, c_numClasses> m_buffers;
+		uint64_t m_size = 0;
+	};
+
+	thread_local Pool t_pool;
+}
+
+uint8_t* MemoryPool::reallocate(uint8_t* _data, uint64_t _size)
+{
+	if (_data && getHeader(_data)->capacity >= _size)
+		return _data;
+
+	// Round up to the size class, so that the buffer is reusable.
+	uint64_t capacity = _size;
+	if (capacity <= c_maxPooledCapacity)
+		capacity = uint64_t(1) << (c_minClassShift + getClass(capacity));
+
+	auto header = t_pool.take(capacity);
+	if (!header)
+	{
+		header = static_cast<Header*>(std::malloc(sizeof(Header) + capacity));
+		if (!header)
+			return nullptr;
+		header->capacity = capacity;
+	}
+
+	auto data = reinterpret_cast<uint8_t*>(header + 1);
+	if (_data)
+	{
+		std::memcpy(data, _data, getHeader(_data)->capacity);
+		release(_data);
+	}
+	return data;
+}
+
+void MemoryPool::release(uint8_t* _data)
+{
+	if (!_data)
+		return;
+
+	auto header = getHeader(_data);
+	if (!t_pool.put(header))
+		std::free(header);
+}
+
+}
+}
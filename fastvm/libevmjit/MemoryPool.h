@@ -0,0 +1,31 @@
+#pragma once
+
+#include <cstdint>
+
+namespace dev
+{
+namespace evmjit
+{
+
+/// EVM memory buffers, pooled per thread by size class. A buffer released by
+/// an execution, or by the result holding its output, is reused by the next
+/// execution on the same thread that needs a buffer of its class, with its
+/// pages already faulted in.
+///
+/// Buffers keep their capacity in a header, so they are released by their
+/// data pointer only.
+class MemoryPool
+{
+public:
+	/// Resizes the buffer, as realloc() does. The contents are kept up to the
+	/// smaller of the sizes, new bytes are not initialized. The buffer can be
+	/// null. Returns null if memory cannot be allocated.
+	static uint8_t* reallocate(uint8_t* _data, uint64_t _size);
+
+	/// Returns the buffer to the pool of the calling thread, or frees it if
+	/// the pool is full. The buffer can be null.
+	static void release(uint8_t* _data);
+};
+
+}
+}
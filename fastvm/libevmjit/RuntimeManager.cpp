@@ -17,7 +17,7 @@ namespace jit
 
 llvm::StructType* RuntimeManager::getRuntimeDataType()
 {
-	static llvm::StructType* type = nullptr;
+	static thread_local llvm::StructType* type = nullptr;
 	if (!type)
 	{
 		llvm::Type* elems[] =
@@ -40,14 +40,20 @@ llvm::StructType* RuntimeManager::getRuntimeDataType()
 
 llvm::StructType* RuntimeManager::getRuntimeType()
 {
-	static llvm::StructType* type = nullptr;
+	static thread_local llvm::StructType* type = nullptr;
 	if (!type)
 	{
 		llvm::Type* elems[] =
 		{
 			Type::RuntimeDataPtr,	// data
 			Type::EnvPtr,			// Env*
-			Array::getType()		// memory
+			Array::getType(),		// memory
+			Type::WordPtr,			// stack base
+			Type::WordPtr,			// stack top
+			Type::Size,				// suspended stack size
+			Type::BytePtr,			// suspended return buffer data
+			Type::Size,				// suspended return buffer size
+			Type::Size,				// suspended pc
 		};
 		type = llvm::StructType::create(elems, "Runtime");
 	}
@@ -147,11 +153,8 @@ RuntimeManager::RuntimeManager(IRBuilder& _builder, code_iterator _codeBegin, co
 	m_envPtr = m_builder.CreateLoad(m_builder.CreateStructGEP(getRuntimeType(), rtPtr, 1), "env");
 	assert(m_envPtr->getType() == Type::EnvPtr);
 
-	auto mallocFunc = llvm::Function::Create(llvm::FunctionType::get(Type::WordPtr, {Type::Size}, false), llvm::Function::ExternalLinkage, "malloc", getModule());
-	mallocFunc->setDoesNotThrow();
-	mallocFunc->addAttribute(0, llvm::Attribute::NoAlias);
-
-	m_stackBase = m_builder.CreateCall(mallocFunc, m_builder.getInt64(Type::Word->getPrimitiveSizeInBits() / 8 * stackSizeLimit), "stack.base"); // TODO: Use Type::SizeT type
+	// The stack is provided by the host, on the stack regions of the thread.
+	m_stackBase = m_builder.CreateLoad(m_builder.CreateStructGEP(getRuntimeType(), rtPtr, 3), "stack.base");
 	m_stackSize = m_builder.CreateAlloca(Type::Size, nullptr, "stack.size");
 	m_builder.CreateStore(m_builder.getInt64(0), m_stackSize);
 
@@ -170,14 +173,6 @@ RuntimeManager::RuntimeManager(IRBuilder& _builder, code_iterator _codeBegin, co
 	InsertPointGuard guard{m_builder};
 	m_builder.SetInsertPoint(m_exitBB);
 	auto retPhi = m_builder.CreatePHI(Type::MainReturn, 16, "ret");
-	auto freeFunc = getModule()->getFunction("free");
-	if (!freeFunc)
-	{
-		freeFunc = llvm::Function::Create(llvm::FunctionType::get(Type::Void, Type::WordPtr, false), llvm::Function::ExternalLinkage, "free", getModule());
-		freeFunc->setDoesNotThrow();
-		freeFunc->addAttribute(1, llvm::Attribute::NoCapture);
-	}
-	m_builder.CreateCall(freeFunc, {m_stackBase});
 	auto extGasPtr = m_builder.CreateStructGEP(getRuntimeDataType(), getDataPtr(), RuntimeData::Index::Gas, "msg.gas.ptr");
 	m_builder.CreateStore(getGas(), extGasPtr);
 	m_builder.CreateRet(retPhi);
@@ -261,6 +256,26 @@ void RuntimeManager::exit(ReturnCode _returnCode)
 	retPhi->addIncoming(Constant::get(_returnCode), m_builder.GetInsertBlock());
 }
 
+void RuntimeManager::suspend(uint64_t _pc)
+{
+	auto rtPtr = getRuntimePtr();
+	auto store = [&](unsigned _index, llvm::Value* _value)
+	{
+		m_builder.CreateStore(_value, m_builder.CreateStructGEP(getRuntimeType(), rtPtr, _index));
+	};
+	store(5, m_builder.CreateLoad(m_stackSize));
+	store(6, m_builder.CreateLoad(m_returnBufDataPtr));
+	store(7, m_builder.CreateLoad(m_returnBufSizePtr));
+	store(8, m_builder.getInt64(_pc));
+	exit(ReturnCode::Suspend);
+}
+
+void RuntimeManager::setStackTop(llvm::Value* _top)
+{
+	assert(_top->getType() == Type::WordPtr);
+	m_builder.CreateStore(_top, m_builder.CreateStructGEP(getRuntimeType(), getRuntimePtr(), 4));
+}
+
 void RuntimeManager::abort(llvm::Value* _jmpBuf)
 {
 	auto longjmp = llvm::Intrinsic::getDeclaration(getModule(), llvm::Intrinsic::eh_sjlj_longjmp);
@@ -42,6 +42,14 @@ public:
 
 	void exit(ReturnCode _returnCode);
 
+	/// Exits with ReturnCode::Suspend, saving the state the interpreter needs
+	/// to resume the execution at the given code index.
+	void suspend(uint64_t _pc);
+
+	/// Stores the top of the stack in the execution context before a call.
+	/// The stack of the nested execution starts there.
+	void setStackTop(llvm::Value* _top);
+
 	void abort(llvm::Value* _jmpBuf);
 
 	llvm::Value* getStackBase() const { return m_stackBase; }
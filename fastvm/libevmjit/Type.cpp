@@ -11,25 +11,25 @@ namespace eth
 namespace jit
 {
 
-llvm::IntegerType* Type::Word256;
-llvm::PointerType* Type::Word256Ptr;
-llvm::IntegerType* Type::Address;
-llvm::PointerType* Type::AddressPtr;
-llvm::IntegerType* Type::Word;
-llvm::PointerType* Type::WordPtr;
-llvm::IntegerType* Type::Bool;
-llvm::IntegerType* Type::Size;
-llvm::IntegerType* Type::Gas;
-llvm::PointerType* Type::GasPtr;
-llvm::IntegerType* Type::Byte;
-llvm::PointerType* Type::BytePtr;
-llvm::Type* Type::Void;
-llvm::IntegerType* Type::MainReturn;
-llvm::PointerType* Type::EnvPtr;
-llvm::PointerType* Type::RuntimeDataPtr;
-llvm::PointerType* Type::RuntimePtr;
-llvm::ConstantInt* Constant::gasMax;
-llvm::MDNode* Type::expectTrue;
+thread_local llvm::IntegerType* Type::Word256;
+thread_local llvm::PointerType* Type::Word256Ptr;
+thread_local llvm::IntegerType* Type::Address;
+thread_local llvm::PointerType* Type::AddressPtr;
+thread_local llvm::IntegerType* Type::Word;
+thread_local llvm::PointerType* Type::WordPtr;
+thread_local llvm::IntegerType* Type::Bool;
+thread_local llvm::IntegerType* Type::Size;
+thread_local llvm::IntegerType* Type::Gas;
+thread_local llvm::PointerType* Type::GasPtr;
+thread_local llvm::IntegerType* Type::Byte;
+thread_local llvm::PointerType* Type::BytePtr;
+thread_local llvm::Type* Type::Void;
+thread_local llvm::IntegerType* Type::MainReturn;
+thread_local llvm::PointerType* Type::EnvPtr;
+thread_local llvm::PointerType* Type::RuntimeDataPtr;
+thread_local llvm::PointerType* Type::RuntimePtr;
+thread_local llvm::ConstantInt* Constant::gasMax;
+thread_local llvm::MDNode* Type::expectTrue;
 
 void Type::init(llvm::LLVMContext& _context)
 {
@@ -28,42 +28,42 @@ struct Type
 	 *
 	 * address = [address_0_15][address_16_31]
 	 */
-	static llvm::IntegerType* Word256;
-	static llvm::PointerType* Word256Ptr;
+	static thread_local llvm::IntegerType* Word256;
+	static thread_local llvm::PointerType* Word256Ptr;
 
 
-	static llvm::IntegerType* Address;
-	static llvm::PointerType* AddressPtr;
+	static thread_local llvm::IntegerType* Address;
+	static thread_local llvm::PointerType* AddressPtr;
 
-	static llvm::IntegerType* Word;
-	static llvm::PointerType* WordPtr;
+	static thread_local llvm::IntegerType* Word;
+	static thread_local llvm::PointerType* WordPtr;
 
-	static llvm::IntegerType* Bool;
-	static llvm::IntegerType* Size;
-	static llvm::IntegerType* Gas;
-	static llvm::PointerType* GasPtr;
+	static thread_local llvm::IntegerType* Bool;
+	static thread_local llvm::IntegerType* Size;
+	static thread_local llvm::IntegerType* Gas;
+	static thread_local llvm::PointerType* GasPtr;
 
-	static llvm::IntegerType* Byte;
-	static llvm::PointerType* BytePtr;
+	static thread_local llvm::IntegerType* Byte;
+	static thread_local llvm::PointerType* BytePtr;
 
-	static llvm::Type* Void;
+	static thread_local llvm::Type* Void;
 
 	/// Main function return type
-	static llvm::IntegerType* MainReturn;
+	static thread_local llvm::IntegerType* MainReturn;
 
-	static llvm::PointerType* EnvPtr;
-	static llvm::PointerType* RuntimeDataPtr;
-	static llvm::PointerType* RuntimePtr;
+	static thread_local llvm::PointerType* EnvPtr;
+	static thread_local llvm::PointerType* RuntimeDataPtr;
+	static thread_local llvm::PointerType* RuntimePtr;
 
 	// TODO: Redesign static LLVM objects
-	static llvm::MDNode* expectTrue;
+	static thread_local llvm::MDNode* expectTrue;
 
 	static void init(llvm::LLVMContext& _context);
 };
 
 struct Constant
 {
-	static llvm::ConstantInt* gasMax;
+	static thread_local llvm::ConstantInt* gasMax;
 
 	/// Returns word-size constant
 	static llvm::ConstantInt* get(int64_t _n);
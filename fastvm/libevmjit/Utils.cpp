@@ -1,5 +1,7 @@
 #include "Utils.h"
 
+#include <algorithm>
+#include <array>
 #include <cstring>
 
 #include <llvm/Support/Debug.h>
@@ -40,16 +42,6 @@ namespace
 /******** The Keccak-f[1600] permutation ********/
 
 /*** Constants. ***/
-static const uint8_t rho[24] = \
-  { 1,  3,   6, 10, 15, 21,
-	28, 36, 45, 55,  2, 14,
-	27, 41, 56,  8, 25, 43,
-	62, 18, 39, 61, 20, 44};
-static const uint8_t pi[24] = \
-  {10,  7, 11, 17, 18, 3,
-   5, 16,  8, 21, 24, 4,
-   15, 23, 19, 13, 12, 2,
-   20, 14, 22,  9, 6,  1};
 static const uint64_t RC[24] = \
   {1ULL, 0x8082ULL, 0x800000000000808aULL, 0x8000000080008000ULL,
    0x808bULL, 0x80000001ULL, 0x8000000080008081ULL, 0x8000000000008009ULL,
@@ -58,50 +50,113 @@ static const uint64_t RC[24] = \
    0x8000000000008002ULL, 0x8000000000000080ULL, 0x800aULL, 0x800000008000000aULL,
    0x8000000080008081ULL, 0x8000000000008080ULL, 0x80000001ULL, 0x8000000080008008ULL};
 
-/*** Helper macros to unroll the permutation. ***/
+/*** Keccak-f[1600] ***/
 #define rol(x, s) (((x) << s) | ((x) >> (64 - s)))
-#define REPEAT6(e) e e e e e e
-#define REPEAT24(e) REPEAT6(e e e e)
-#define REPEAT5(e) e e e e e
-#define FOR5(v, s, e) \
-  v = 0;            \
-  REPEAT5(e; v = decltype(v)(v + s);)
 
-/*** Keccak-f[1600] ***/
-static inline void keccakf(void* state) {
-	uint64_t* a = (uint64_t*)state;
-	uint64_t b[5] = {0};
-	uint64_t t = 0;
-	uint8_t x, y;
+// The rounds are unrolled over the lanes, so that the state is kept in
+// registers. Lanes are indexed by x + 5 * y.
+static inline __attribute__((always_inline)) void keccakfRounds(uint64_t* state) {
+	uint64_t a[25];
+	memcpy(a, state, sizeof(a));
 
-	for (int i = 0; i < 24; i++) {
+	for (int round = 0; round < 24; ++round) {
 		// Theta
-		FOR5(x, 1,
-			 b[x] = 0;
-					 FOR5(y, 5,
-						  b[x] ^= a[x + y]; ))
-		FOR5(x, 1,
-			 FOR5(y, 5,
-				  a[y + x] ^= b[(x + 4) % 5] ^ rol(b[(x + 1) % 5], 1); ))
+		uint64_t c0 = a[0] ^ a[5] ^ a[10] ^ a[15] ^ a[20];
+		uint64_t c1 = a[1] ^ a[6] ^ a[11] ^ a[16] ^ a[21];
+		uint64_t c2 = a[2] ^ a[7] ^ a[12] ^ a[17] ^ a[22];
+		uint64_t c3 = a[3] ^ a[8] ^ a[13] ^ a[18] ^ a[23];
+		uint64_t c4 = a[4] ^ a[9] ^ a[14] ^ a[19] ^ a[24];
+		uint64_t d0 = c4 ^ rol(c1, 1);
+		uint64_t d1 = c0 ^ rol(c2, 1);
+		uint64_t d2 = c1 ^ rol(c3, 1);
+		uint64_t d3 = c2 ^ rol(c4, 1);
+		uint64_t d4 = c3 ^ rol(c0, 1);
+
 		// Rho and pi
-		t = a[1];
-		x = 0;
-		REPEAT24(b[0] = a[pi[x]];
-						 a[pi[x]] = rol(t, rho[x]);
-						 t = b[0];
-						 x++; )
+		uint64_t b[25];
+		b[0] = a[0] ^ d0;
+		b[10] = rol(a[1] ^ d1, 1);
+		b[20] = rol(a[2] ^ d2, 62);
+		b[5] = rol(a[3] ^ d3, 28);
+		b[15] = rol(a[4] ^ d4, 27);
+		b[16] = rol(a[5] ^ d0, 36);
+		b[1] = rol(a[6] ^ d1, 44);
+		b[11] = rol(a[7] ^ d2, 6);
+		b[21] = rol(a[8] ^ d3, 55);
+		b[6] = rol(a[9] ^ d4, 20);
+		b[7] = rol(a[10] ^ d0, 3);
+		b[17] = rol(a[11] ^ d1, 10);
+		b[2] = rol(a[12] ^ d2, 43);
+		b[12] = rol(a[13] ^ d3, 25);
+		b[22] = rol(a[14] ^ d4, 39);
+		b[23] = rol(a[15] ^ d0, 41);
+		b[8] = rol(a[16] ^ d1, 45);
+		b[18] = rol(a[17] ^ d2, 15);
+		b[3] = rol(a[18] ^ d3, 21);
+		b[13] = rol(a[19] ^ d4, 8);
+		b[14] = rol(a[20] ^ d0, 18);
+		b[24] = rol(a[21] ^ d1, 2);
+		b[9] = rol(a[22] ^ d2, 61);
+		b[19] = rol(a[23] ^ d3, 56);
+		b[4] = rol(a[24] ^ d4, 14);
+
 		// Chi
-		FOR5(y,
-			 5,
-			 FOR5(x, 1,
-				  b[x] = a[y + x];)
-					 FOR5(x, 1,
-					 a[y + x] = b[x] ^ ((~b[(x + 1) % 5]) & b[(x + 2) % 5]); ))
+		a[0] = b[0] ^ (~b[1] & b[2]);
+		a[1] = b[1] ^ (~b[2] & b[3]);
+		a[2] = b[2] ^ (~b[3] & b[4]);
+		a[3] = b[3] ^ (~b[4] & b[0]);
+		a[4] = b[4] ^ (~b[0] & b[1]);
+		a[5] = b[5] ^ (~b[6] & b[7]);
+		a[6] = b[6] ^ (~b[7] & b[8]);
+		a[7] = b[7] ^ (~b[8] & b[9]);
+		a[8] = b[8] ^ (~b[9] & b[5]);
+		a[9] = b[9] ^ (~b[5] & b[6]);
+		a[10] = b[10] ^ (~b[11] & b[12]);
+		a[11] = b[11] ^ (~b[12] & b[13]);
+		a[12] = b[12] ^ (~b[13] & b[14]);
+		a[13] = b[13] ^ (~b[14] & b[10]);
+		a[14] = b[14] ^ (~b[10] & b[11]);
+		a[15] = b[15] ^ (~b[16] & b[17]);
+		a[16] = b[16] ^ (~b[17] & b[18]);
+		a[17] = b[17] ^ (~b[18] & b[19]);
+		a[18] = b[18] ^ (~b[19] & b[15]);
+		a[19] = b[19] ^ (~b[15] & b[16]);
+		a[20] = b[20] ^ (~b[21] & b[22]);
+		a[21] = b[21] ^ (~b[22] & b[23]);
+		a[22] = b[22] ^ (~b[23] & b[24]);
+		a[23] = b[23] ^ (~b[24] & b[20]);
+		a[24] = b[24] ^ (~b[20] & b[21]);
+
 		// Iota
-		a[0] ^= RC[i];
+		a[0] ^= RC[round];
 	}
+
+	memcpy(state, a, sizeof(a));
+}
+
+static void keccakfGeneric(void* state) {
+	keccakfRounds(static_cast<uint64_t*>(state));
 }
 
+#if defined(__x86_64__) && (defined(__GNUC__) || defined(__clang__))
+// Rotations and and-nots become single instructions with BMI1 and BMI2.
+__attribute__((target("bmi,bmi2"))) static void keccakfBmi2(void* state) {
+	keccakfRounds(static_cast<uint64_t*>(state));
+}
+
+static bool cpuSupportsBmi2()
+{
+	// Static initializers may run before the one of the CPU model the builtins
+	// read. Both BMI1 and BMI2 instructions are used.
+	__builtin_cpu_init();
+	return __builtin_cpu_supports("bmi") && __builtin_cpu_supports("bmi2");
+}
+
+static void (*const keccakf)(void*) = cpuSupportsBmi2() ? keccakfBmi2 : keccakfGeneric;
+#else
+static void (*const keccakf)(void*) = keccakfGeneric;
+#endif
+
 /******** The FIPS202-defined functions. ********/
 
 /*** Some helper macros. ***/
@@ -173,11 +228,68 @@ static inline int hash(uint8_t* out, size_t outlen,
 
 defkeccak(256)
 
+/// Hashes of short inputs by thread, e.g. of the keys and slots hashed by
+/// Solidity for every access to a mapping. Direct mapped.
+const uint64_t c_maxCachedInputSize = 64;
+const unsigned c_hashCacheBits = 6;
+
+struct CachedHash
+{
+	uint8_t input[c_maxCachedInputSize];
+	uint8_t hash[32];
+	uint64_t size = c_maxCachedInputSize + 1;	///< Never matches if not set
+};
+
+thread_local std::array<CachedHash, 1 << c_hashCacheBits> t_hashCache;
+
+CachedHash& getCachedHash(uint8_t const* _data, uint64_t _size)
+{
+	uint64_t h = _size;
+	for (uint64_t i = 0; i < _size; i += 8)
+	{
+		uint64_t word = 0;
+		std::memcpy(&word, _data + i, std::min<uint64_t>(8, _size - i));
+		h = (h ^ word) * 0x9e3779b97f4a7c15;
+	}
+	return t_hashCache[h >> (64 - c_hashCacheBits)];
+}
+
 }
 
 void keccak(uint8_t const* _data, uint64_t _size, uint8_t* o_hash)
 {
-	keccak_256(o_hash, 32, _data, _size);
+	if (_size > c_maxCachedInputSize)
+	{
+		keccak_256(o_hash, 32, _data, _size);
+		return;
+	}
+
+	auto& cached = getCachedHash(_data, _size);
+	if (cached.size != _size || (_size != 0 && std::memcmp(cached.input, _data, _size) != 0))
+	{
+		keccak_256(cached.hash, 32, _data, _size);
+		if (_size != 0)
+			std::memcpy(cached.input, _data, _size);
+		cached.size = _size;
+	}
+	std::memcpy(o_hash, cached.hash, 32);
+}
+
+bool keccakf1600(uint64_t* _state, bool _bmi2)
+{
+	if (!_bmi2)
+	{
+		keccakfGeneric(_state);
+		return true;
+	}
+#if defined(__x86_64__) && (defined(__GNUC__) || defined(__clang__))
+	if (cpuSupportsBmi2())
+	{
+		keccakfBmi2(_state);
+		return true;
+	}
+#endif
+	return false;
 }
 
 }
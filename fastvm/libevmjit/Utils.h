@@ -8,6 +8,13 @@ namespace evmjit {
 
 void keccak(uint8_t const *_data, uint64_t _size, uint8_t *o_hash);
 
+/// Applies the Keccak-f[1600] permutation of keccak() to the 25 lanes of the
+/// state, in the generic variant or in the one for BMI1 and BMI2. keccak()
+/// uses the latter if the CPU supports it. For tests.
+///
+/// @return  false if the variant is not supported, the state is unchanged.
+bool keccakf1600(uint64_t *_state, bool _bmi2);
+
 // The same as assert, but expression is always evaluated and result returned
 #define CHECK(expr) (assert(expr), expr)
 
@@ -4,6 +4,9 @@
 #include <stdio.h>
 #include <inttypes.h>
 #include <string.h>
+#include <chrono>
+#include <thread>
+#include <vector>
 
 #include <gtest/gtest.h>
 
@@ -50,6 +53,7 @@ int blockhash = 20;
 
 struct evm_instance* instance;
 struct evm_message msg;
+uint8_t code_hash_salt = 0;
 
 struct evm_address address = { 1, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f, 0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x17, 0x18, 0x19, 0x1A, 0x1B, 0x1C, 0x1D, 0x1E };
 struct evm_address caller = { 2, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f, 0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x17, 0x18, 0x19, 0x1A, 0x1B, 0x1C, 0x1D, 0x1E };
@@ -289,9 +293,26 @@ int main(int argc, char **argv)
     instance = evmjit_create();
 
     ::testing::InitGoogleTest(&argc, argv);
-    return RUN_ALL_TESTS();
+    int failed = RUN_ALL_TESTS();
+
+    // Run the instruction tests again in tiered mode. The code hashes are
+    // salted, so the code is not compiled yet and runs in the interpreter.
+    instance->set_option(instance, "tiered", "1");
+    code_hash_salt = 0x5a;
+    if (::testing::GTEST_FLAG(filter) == "*") {
+        ::testing::GTEST_FLAG(filter) = "instructions.*";
+    }
+    failed |= RUN_ALL_TESTS();
+
+    // And once more optimized: the code is hot from its first execution, so
+    // it is compiled with the optimization passes right away.
+    instance->set_option(instance, "tiered", "0");
+    instance->set_option(instance, "optimize-hits", "1");
+    code_hash_salt = 0xa5;
+    failed |= RUN_ALL_TESTS();
 
     instance->destroy(instance);
+    return failed;
 }
 
 void setup_message(const uint8_t *code,
@@ -307,6 +328,7 @@ void setup_message(const uint8_t *code,
     msg.input = input;
     msg.input_size = input_size;
     dev::evmjit::keccak(code, code_size, msg.code_hash.bytes);
+    msg.code_hash.bytes[0] ^= code_hash_salt;
     msg.gas = gas;
     msg.flags = 0;
 }
@@ -364,6 +386,73 @@ void hex2bin(const char* src, char* target)
     }
 }
 
+/**
+ * Salts the code hash of the message, so that the code is compiled again for
+ * it, in the execution mode set at the time.
+ */
+void salt_code_hash(uint8_t salt)
+{
+    msg.code_hash.bytes[1] ^= salt;
+}
+
+/**
+ * What an execution did, to compare executions of the same message in
+ * different modes.
+ */
+struct outcome
+{
+    evm_status_code status_code;
+    int64_t gas_left;
+    std::vector<uint8_t> output;
+    size_t log_topics_count;
+    int64_t call_gas; // 0 if no call was made
+};
+
+struct outcome execute_outcome(const uint8_t *code, size_t code_size)
+{
+    log_topics_count = 0;
+    struct evm_result result = instance->execute(instance, &context, EVM_AION, &msg, code, code_size);
+
+    struct outcome o = {
+        result.status_code,
+        result.gas_left,
+        std::vector<uint8_t>(result.output_data, result.output_data + result.output_size),
+        log_topics_count,
+        call_msg.gas
+    };
+    release_result(&result);
+    return o;
+}
+
+void assert_same_outcome(const struct outcome &expected, const struct outcome &actual)
+{
+    ASSERT_EQ(expected.status_code, actual.status_code);
+    ASSERT_EQ(expected.gas_left, actual.gas_left);
+    ASSERT_EQ(expected.output, actual.output);
+    ASSERT_EQ(expected.log_topics_count, actual.log_topics_count);
+    ASSERT_EQ(expected.call_gas, actual.call_gas);
+}
+
+/**
+ * Executes the code with every amount of gas up to the given one, with and
+ * without coalesced gas checks. The outcomes must be the same.
+ */
+void assert_same_outcome_coalesced(const uint8_t *code, size_t code_size,
+                                   const uint8_t *input, size_t input_size, int64_t max_gas)
+{
+    for (int64_t gas = 0; gas <= max_gas; gas++) {
+        setup_message(code, code_size, input, input_size, gas);
+        struct outcome coalesced = execute_outcome(code, code_size);
+
+        instance->set_option(instance, "coalesce-gas", "0");
+        salt_code_hash(1);
+        struct outcome uncoalesced = execute_outcome(code, code_size);
+        instance->set_option(instance, "coalesce-gas", "1");
+
+        assert_same_outcome(coalesced, uncoalesced);
+    }
+}
+
 //======================================
 // 0s: Stop and Arithmetic Operations
 //======================================
@@ -680,6 +769,33 @@ TEST(instructions, testDIVZERO) {
     release_result(&result);
 }
 
+TEST(instructions, testDIV_fromCallDataWide) {
+    uint8_t const code[] = {
+            0x60, 0x10, 0x35, // CALLDATALOAD
+            0x60, 0x00, 0x35, // CALLDATALOAD
+            0x04, // DIV
+
+            0x60, 0xE0, //PUSH
+            0x52, // MSTORE
+            0x60, 0x10, 0x60, 0xE0, 0xF3 // RETURN
+    };
+    uint8_t const input[] = { 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                              0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0,
+    };
+    int64_t gas = 20000;
+
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct evm_result result = instance->execute(instance, &context, EVM_AION, &msg,
+            code, sizeof(code));
+
+    print_result(&result);
+    struct evm_word gt = {0, 0, 0x01, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    ASSERT_EQ(sizeof(gt), result.output_size);
+    ASSERT_TRUE(0 == memcmp(gt.bytes, result.output_data, sizeof(gt)));
+    release_result(&result);
+}
+
 TEST(instructions, testSDIV) {
     uint8_t const code[] = {
             0x60, 0x02, // PUSH 0x02
@@ -1017,6 +1133,35 @@ TEST(instructions, testMULMODZERO) {
 }
 
 
+TEST(instructions, testMULMOD_fromCallData) {
+    uint8_t const code[] = {
+            0x60, 0x20, 0x35, // CALLDATALOAD
+            0x60, 0x10, 0x35, // CALLDATALOAD
+            0x60, 0x00, 0x35, // CALLDATALOAD
+            0x09, // MULMOD
+
+            0x60, 0xE0, //PUSH
+            0x52, // MSTORE
+            0x60, 0x10, 0x60, 0xE0, 0xF3 // RETURN
+    };
+    uint8_t const input[] = { 0, 0, 0, 0, 0, 0, 0, 0, 0x80, 0, 0, 0, 0, 0, 0, 0,
+                              0, 0, 0, 0, 0, 0, 0, 0, 0x80, 0, 0, 0, 0, 0, 0, 0,
+                              0, 0, 0, 0, 0, 0, 0, 0, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF,
+    };
+    int64_t gas = 20000;
+
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct evm_result result = instance->execute(instance, &context, EVM_AION, &msg,
+            code, sizeof(code));
+
+    print_result(&result);
+    struct evm_word gt = {0, 0, 0, 0, 0, 0, 0, 0, 0x40, 0, 0, 0, 0, 0, 0, 0};
+
+    ASSERT_EQ(sizeof(gt), result.output_size);
+    ASSERT_TRUE(0 == memcmp(gt.bytes, result.output_data, sizeof(gt)));
+    release_result(&result);
+}
+
 TEST(instructions, testEXP) {
     uint8_t const code[] = {
             0x60, 0x03, // PUSH 0x03
@@ -1104,6 +1249,58 @@ TEST(instructions, testEXPZEROBASE) {
     release_result(&result);
 }
 
+TEST(instructions, testEXP_fromCallData) {
+    uint8_t const code[] = {
+            0x60, 0x00, 0x35, // CALLDATALOAD
+            0x60, 0x02, // PUSH 0x02
+            0x0A, // EXP
+
+            0x60, 0xE0, //PUSH
+            0x52, // MSTORE
+            0x60, 0x10, 0x60, 0xE0, 0xF3 // RETURN
+    };
+    uint8_t const input[] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x7F,
+    };
+    int64_t gas = 20000;
+
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct evm_result result = instance->execute(instance, &context, EVM_AION, &msg,
+            code, sizeof(code));
+
+    print_result(&result);
+    struct evm_word gt = {0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    ASSERT_EQ(sizeof(gt), result.output_size);
+    ASSERT_TRUE(0 == memcmp(gt.bytes, result.output_data, sizeof(gt)));
+    release_result(&result);
+}
+
+TEST(instructions, testEXP_fromCallDataOverflow) {
+    uint8_t const code[] = {
+            0x60, 0x00, 0x35, // CALLDATALOAD
+            0x61, 0x01, 0x00, // PUSH 0x0100
+            0x0A, // EXP
+
+            0x60, 0xE0, //PUSH
+            0x52, // MSTORE
+            0x60, 0x10, 0x60, 0xE0, 0xF3 // RETURN
+    };
+    uint8_t const input[] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x10,
+    };
+    int64_t gas = 20000;
+
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct evm_result result = instance->execute(instance, &context, EVM_AION, &msg,
+            code, sizeof(code));
+
+    print_result(&result);
+    struct evm_word gt = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    ASSERT_EQ(sizeof(gt), result.output_size);
+    ASSERT_TRUE(0 == memcmp(gt.bytes, result.output_data, sizeof(gt)));
+    release_result(&result);
+}
+
 TEST(instructions, testSIGNEXTEND) {
     uint8_t const code[] = {
             0x61, 0x80, 0x00, // PUSH 0x80
@@ -3195,6 +3392,175 @@ TEST(instructions, testJUMPI2) {
     release_result(&result);
 }
 
+TEST(instructions, testJUMPAFTERCALL) {
+    uint8_t const code[] = {
+            0x60, 0x35, // PUSH return address
+            0x60, 0x10, // output size
+            0x60, 0xF0, // output offset
+            0x60, 0x10, // input size
+            0x60, 0xE0, // input offset
+            0x60, 0x00, // value
+            0x6F, 0x0F, 0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, //
+                  0x17, 0x18, 0x19, 0x1A, 0x1B, 0x1C, 0x1D, 0x1E, // PUSH
+            0x6F, 0x01, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06,
+                  0x07, 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, // PUSH
+            0x61, 0x13, 0x88, // gas (5000)
+            0xF1, // CALL
+            0x50, // POP
+            0x56, // JUMP to the return address
+            0x00, // STOP
+            0x5B, // JUMPDEST
+
+            0x60, 0x10, 0x60, 0xF0, 0xF3 // RETURN what call returns
+    };
+    uint8_t const input[] = {};
+    int64_t gas = 200000;
+
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct evm_result result = instance->execute(instance, &context, EVM_AION, &msg,
+            code, sizeof(code));
+    print_result(&result);
+    struct evm_word gt = call_output;
+
+    ASSERT_EQ(EVM_SUCCESS, result.status_code);
+    ASSERT_EQ(sizeof(gt), result.output_size);
+    ASSERT_TRUE(0 == memcmp(gt.bytes, result.output_data, sizeof(gt)));
+    release_result(&result);
+}
+
+TEST(instructions, testJUMPFROMCALLDATA) {
+    uint8_t const code[] = {
+            0x60, 0x00, 0x35, // CALLDATALOAD
+            0x56, // JUMP to the destination in call data
+
+            0x5B, // JUMPDEST
+            0x60, 0x01, // PUSH 0x01
+            0x60, 0x0D, // PUSH
+            0x56, // JUMP
+
+            0x5B, // JUMPDEST
+            0x60, 0x02, // PUSH 0x02
+            0x5B, // JUMPDEST
+
+            0x60, 0xE0, // PUSH
+            0x52, // MSTORE
+            0x60, 0x10, // PUSH
+            0x60, 0xE0, // PUSH
+            0xF3 // RETURN
+    };
+    uint8_t input[] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x0A };
+    int64_t gas = 20000;
+
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct evm_result result = instance->execute(instance, &context, EVM_AION, &msg,
+            code, sizeof(code));
+    print_result(&result);
+    struct evm_word gt = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2};
+
+    ASSERT_EQ(EVM_SUCCESS, result.status_code);
+    ASSERT_EQ(sizeof(gt), result.output_size);
+    ASSERT_TRUE(0 == memcmp(gt.bytes, result.output_data, sizeof(gt)));
+    release_result(&result);
+
+    input[15] = 0x04;
+    result = instance->execute(instance, &context, EVM_AION, &msg, code, sizeof(code));
+    print_result(&result);
+    gt.bytes[15] = 1;
+
+    ASSERT_EQ(EVM_SUCCESS, result.status_code);
+    ASSERT_EQ(sizeof(gt), result.output_size);
+    ASSERT_TRUE(0 == memcmp(gt.bytes, result.output_data, sizeof(gt)));
+    release_result(&result);
+
+    // not a jump destination
+    input[15] = 0x05;
+    result = instance->execute(instance, &context, EVM_AION, &msg, code, sizeof(code));
+    print_result(&result);
+
+    ASSERT_EQ(EVM_OUT_OF_GAS, result.status_code);
+    ASSERT_EQ(0, result.gas_left);
+    release_result(&result);
+}
+
+TEST(instructions, testJUMPIFALLTHROUGHSTACK) {
+    uint8_t const code[] = {
+            0x60, 0x07, // PUSH 0x07
+            0x60, 0x05, 0x56, // PUSH JUMP
+            0x5B, // JUMPDEST
+            0x60, 0x03, // PUSH 0x03
+            0x60, 0x00, 0x35, // CALLDATALOAD
+            0x60, 0x1E, 0x57, // PUSH JUMPI
+            0x60, 0x10, 0x35, // CALLDATALOAD
+            0x60, 0x1E, 0x57, // PUSH JUMPI
+            0x90, // SWAP1
+            0x03, // SUB
+            0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3, // RETURN
+
+            0x5B, // JUMPDEST
+            0x02, // MUL
+            0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3 // RETURN
+    };
+    uint8_t input[] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                        0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+    int64_t gas = 20000;
+
+    // falls through both JUMPIs
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct evm_result result = instance->execute(instance, &context, EVM_AION, &msg,
+            code, sizeof(code));
+    print_result(&result);
+    struct evm_word gt = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 4};
+
+    ASSERT_EQ(EVM_SUCCESS, result.status_code);
+    ASSERT_EQ(sizeof(gt), result.output_size);
+    ASSERT_TRUE(0 == memcmp(gt.bytes, result.output_data, sizeof(gt)));
+    release_result(&result);
+
+    // jumps at the second JUMPI
+    input[31] = 1;
+    result = instance->execute(instance, &context, EVM_AION, &msg, code, sizeof(code));
+    print_result(&result);
+    gt.bytes[15] = 21;
+
+    ASSERT_EQ(EVM_SUCCESS, result.status_code);
+    ASSERT_EQ(sizeof(gt), result.output_size);
+    ASSERT_TRUE(0 == memcmp(gt.bytes, result.output_data, sizeof(gt)));
+    release_result(&result);
+}
+
+TEST(instructions, testJUMPIFALLTHROUGHUNDERFLOW) {
+    uint8_t const code[] = {
+            0x60, 0x01, // PUSH 0x01
+            0x60, 0x00, 0x35, // CALLDATALOAD
+            0x60, 0x0A, 0x57, // PUSH JUMPI
+            0x01, // ADD
+            0x00, // STOP
+
+            0x5B, // JUMPDEST
+            0x00 // STOP
+    };
+    uint8_t input[] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+    int64_t gas = 20000;
+
+    // falls through to the ADD, with one item on the stack
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct evm_result result = instance->execute(instance, &context, EVM_AION, &msg,
+            code, sizeof(code));
+    print_result(&result);
+
+    ASSERT_EQ(EVM_OUT_OF_GAS, result.status_code);
+    ASSERT_EQ(0, result.gas_left);
+    release_result(&result);
+
+    input[15] = 1;
+    result = instance->execute(instance, &context, EVM_AION, &msg, code, sizeof(code));
+    print_result(&result);
+
+    ASSERT_EQ(EVM_SUCCESS, result.status_code);
+    ASSERT_LT(0, result.gas_left);
+    release_result(&result);
+}
+
 TEST(instructions, testPC) {
     uint8_t const code[] = {
             0x60, 0x01, // PUSH 0x01
@@ -5536,10 +5902,542 @@ TEST(misc, testRevertCall) {
     ASSERT_EQ(0, call_msg.flags);
 }
 
+//======================================
+// Tiered and lazy execution, gas checks
+//======================================
+
+TEST(tiered, testOutOfGasBeforeLOG) {
+    uint8_t const code[] = {
+            0x60, 0x01, // topic-1 PUSH
+            0x60, 0x01, // topic-1 PUSH
+            0x60, 0x00, // size PUSH
+            0x60, 0x00, // offset PUSH
+            0xA1, // LOG1
+            0x60, 0x01, // PUSH
+            0x60, 0x01, // PUSH
+            0x01, // ADD
+            0x50, // POP
+            0x00 // STOP
+    };
+    uint8_t const input[] = {};
+    int64_t gas = 20000;
+
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct outcome compiled = execute_outcome(code, sizeof(code));
+    ASSERT_EQ(EVM_SUCCESS, compiled.status_code);
+    ASSERT_EQ(1 * 2, compiled.log_topics_count);
+
+    // The code is a single cost-block, charged before LOG1 runs.
+    setup_message(code, sizeof(code), input, sizeof(input), gas - compiled.gas_left - 1);
+    salt_code_hash(1);
+    compiled = execute_outcome(code, sizeof(code));
+    ASSERT_EQ(EVM_OUT_OF_GAS, compiled.status_code);
+    ASSERT_EQ(0, compiled.log_topics_count);
+
+    instance->set_option(instance, "tiered", "1");
+    salt_code_hash(2);
+    struct outcome interpreted = execute_outcome(code, sizeof(code));
+    instance->set_option(instance, "tiered", "0");
+    assert_same_outcome(compiled, interpreted);
+}
+
+TEST(tiered, testTierUp) {
+    uint8_t const code[] = {
+            0x60, 0x00, 0x35, // CALLDATALOAD
+
+            0x5B, // JUMPDEST
+            0x80, // DUP1
+            0x02, // MUL
+            0x60, 0x01, 0x01, // PUSH 0x01 ADD
+            0x60, 0x01, 0x54, // PUSH 0x01 SLOAD
+            0x60, 0x01, 0x01, // PUSH 0x01 ADD
+            0x80, 0x60, 0x01, 0x55, // DUP1 PUSH 0x01 SSTORE
+            0x60, 0x04, 0x11, // PUSH 0x04 GT
+            0x60, 0x03, 0x57, // PUSH JUMPI
+
+            0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3 // RETURN
+    };
+    uint8_t const input[] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 3 };
+    int64_t gas = 200000;
+
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct outcome expected = execute_outcome(code, sizeof(code));
+    ASSERT_EQ(EVM_SUCCESS, expected.status_code);
+
+    // The first tier runs until the code is hot, then the code compiled
+    // optimized in background replaces it.
+    instance->set_option(instance, "optimize-hits", "3");
+    std::vector<struct outcome> outcomes;
+    for (int run = 0; run < 10; run++) {
+        setup_message(code, sizeof(code), input, sizeof(input), gas);
+        salt_code_hash(1);
+        outcomes.push_back(execute_outcome(code, sizeof(code)));
+        std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    }
+    instance->set_option(instance, "optimize-hits", "1000");
+
+    for (size_t i = 0; i < outcomes.size(); i++) {
+        assert_same_outcome(expected, outcomes[i]);
+    }
+}
+
+TEST(lazy, testSuspendAndResume) {
+    uint8_t const code[] = {
+            0x60, 0x00, 0x35, // CALLDATALOAD
+            0x60, 0x10, // PUSH
+            0x57, // JUMPI
+
+            0x60, 0x01, // PUSH 0x01
+            0x60, 0xE0, // PUSH
+            0x52, // MSTORE
+            0x60, 0x10, 0x60, 0xE0, 0xF3, // RETURN
+
+            0x5B, // JUMPDEST
+            0x60, 0x01, // topic-1 PUSH
+            0x60, 0x01, // topic-1 PUSH
+            0x60, 0x00, // size PUSH
+            0x60, 0x00, // offset PUSH
+            0xA1, // LOG1
+            0x60, 0x10, // output size
+            0x60, 0xF0, // output offset
+            0x60, 0x10, // input size
+            0x60, 0xE0, // input offset
+            0x60, 0x00, // value
+            0x6F, 0x0F, 0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, //
+                  0x17, 0x18, 0x19, 0x1A, 0x1B, 0x1C, 0x1D, 0x1E, // PUSH
+            0x6F, 0x01, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06,
+                  0x07, 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, // PUSH
+            0x61, 0x13, 0x88, // gas (5000)
+            0xF1, // CALL
+
+            0x60, 0x10, 0x60, 0xF0, 0xF3 // RETURN what call returns
+    };
+    uint8_t const input_a[] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+    uint8_t const input_b[] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 };
+
+    // Enough gas for the LOG1 of the jump destination, but not for its
+    // cost-block, which ends with the CALL.
+    int64_t gas_log = (verylow*2 + high) + jumpdest + (verylow*4) + glog + logtopic;
+    struct {
+        const uint8_t *input;
+        int64_t gas;
+    } const runs[] = {
+        { input_a, 20000 },
+        { input_b, gas_log },
+        { input_b, 200000 },
+    };
+    size_t const num_runs = sizeof(runs) / sizeof(runs[0]);
+
+    struct outcome expected[num_runs];
+    for (size_t i = 0; i < num_runs; i++) {
+        setup_message(code, sizeof(code), runs[i].input, sizeof(input_a), runs[i].gas);
+        expected[i] = execute_outcome(code, sizeof(code));
+    }
+    ASSERT_EQ(EVM_SUCCESS, expected[0].status_code);
+    ASSERT_EQ(EVM_OUT_OF_GAS, expected[1].status_code);
+    ASSERT_EQ(0, expected[1].log_topics_count);
+    ASSERT_EQ(0, expected[1].call_gas);
+    ASSERT_EQ(EVM_SUCCESS, expected[2].status_code);
+    ASSERT_EQ(1 * 2, expected[2].log_topics_count);
+
+    // The first branch is run alone until its blocks are compiled. The code
+    // then suspends at the jump destination, and the execution resumes in
+    // the interpreter, until the destination is compiled too. In tiered mode
+    // the first executions run in the interpreter from the beginning.
+    for (int tiered = 0; tiered <= 1; tiered++) {
+        instance->set_option(instance, "tiered", tiered ? "1" : "0");
+        instance->set_option(instance, "lazy", "1");
+        std::vector<size_t> indexes;
+        std::vector<struct outcome> outcomes;
+        for (int round = 0; round < 10; round++) {
+            // The first run alone in the first rounds, the other ones before it later.
+            size_t const count = round < 5 ? 1 : num_runs;
+            for (size_t i = 0; i < count; i++) {
+                size_t index = round < 5 ? 0 : (i + 1) % num_runs;
+                setup_message(code, sizeof(code), runs[index].input, sizeof(input_a), runs[index].gas);
+                salt_code_hash(3 + tiered);
+                indexes.push_back(index);
+                outcomes.push_back(execute_outcome(code, sizeof(code)));
+            }
+            std::this_thread::sleep_for(std::chrono::milliseconds(10));
+        }
+        instance->set_option(instance, "lazy", "0");
+        instance->set_option(instance, "tiered", "0");
+
+        for (size_t i = 0; i < outcomes.size(); i++) {
+            assert_same_outcome(expected[indexes[i]], outcomes[i]);
+        }
+    }
+}
+
+TEST(lazy, testSuspendAfterJUMPI) {
+    uint8_t const code[] = {
+            0x60, 0x07, // PUSH 0x07
+            0x60, 0x05, 0x56, // PUSH JUMP
+            0x5B, // JUMPDEST
+            0x60, 0x03, // PUSH 0x03
+            0x60, 0x00, 0x35, // CALLDATALOAD
+            0x60, 0x1E, 0x57, // PUSH JUMPI
+            0x60, 0x10, 0x35, // CALLDATALOAD
+            0x60, 0x1E, 0x57, // PUSH JUMPI
+            0x90, // SWAP1
+            0x03, // SUB
+            0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3, // RETURN
+
+            0x5B, // JUMPDEST
+            0x02, // MUL
+            0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3 // RETURN
+    };
+    uint8_t const inputs[][32] = {
+        { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1,
+          0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, // jumps at the first JUMPI
+        { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+          0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 }, // jumps at the second JUMPI
+        { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+          0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, // falls through both
+    };
+    size_t const num_inputs = sizeof(inputs) / sizeof(inputs[0]);
+    int64_t gas = 20000;
+
+    struct outcome expected[num_inputs];
+    for (size_t i = 0; i < num_inputs; i++) {
+        setup_message(code, sizeof(code), inputs[i], sizeof(inputs[i]), gas);
+        expected[i] = execute_outcome(code, sizeof(code));
+        ASSERT_EQ(EVM_SUCCESS, expected[i].status_code);
+    }
+    ASSERT_EQ(21, expected[0].output[15]);
+    ASSERT_EQ(21, expected[1].output[15]);
+    ASSERT_EQ(4, expected[2].output[15]);
+
+    // The first input is run alone until its blocks are compiled. The code
+    // then suspends at the JUMPI fall-throughs not compiled yet, with the
+    // stack items of the block before them.
+    instance->set_option(instance, "lazy", "1");
+    std::vector<size_t> indexes;
+    std::vector<struct outcome> outcomes;
+    for (int round = 0; round < 10; round++) {
+        // The first input alone in the first rounds, the other ones before it later.
+        size_t const count = round < 5 ? 1 : num_inputs;
+        for (size_t i = 0; i < count; i++) {
+            size_t index = round < 5 ? 0 : num_inputs - 1 - i;
+            setup_message(code, sizeof(code), inputs[index], sizeof(inputs[index]), gas);
+            salt_code_hash(1);
+            indexes.push_back(index);
+            outcomes.push_back(execute_outcome(code, sizeof(code)));
+        }
+        std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    }
+    instance->set_option(instance, "lazy", "0");
+
+    for (size_t i = 0; i < outcomes.size(); i++) {
+        assert_same_outcome(expected[indexes[i]], outcomes[i]);
+    }
+}
+
+TEST(lazy, testRecompileWhileRunning) {
+    uint8_t const code[] = {
+            0x60, 0x00, 0x35, // CALLDATALOAD
+            0x80, 0x60, 0x1D, 0x57, // DUP1 PUSH JUMPI
+            0x50, // POP
+
+            0x62, 0x04, 0x00, 0x00, // PUSH counter
+            0x5B, // JUMPDEST
+            0x60, 0x01, 0x90, 0x03, // PUSH 0x01 SWAP1 SUB
+            0x80, 0x60, 0x0C, 0x57, // DUP1 PUSH JUMPI
+            0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3, // RETURN
+
+            0x5B, // JUMPDEST
+            0x80, 0x60, 0x01, 0x14, 0x60, 0x3D, 0x57, // DUP1 PUSH 0x01 EQ PUSH JUMPI
+            0x80, 0x60, 0x02, 0x14, 0x60, 0x48, 0x57, // DUP1 PUSH 0x02 EQ PUSH JUMPI
+            0x80, 0x60, 0x03, 0x14, 0x60, 0x53, 0x57, // DUP1 PUSH 0x03 EQ PUSH JUMPI
+            0x60, 0x63, 0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3, // RETURN 99
+
+            0x5B, 0x60, 0x0B, 0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3, // RETURN 11
+            0x5B, 0x60, 0x16, 0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3, // RETURN 22
+            0x5B, 0x60, 0x21, 0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3 // RETURN 33
+    };
+    uint8_t inputs[5][16] = {};
+    size_t const num_inputs = sizeof(inputs) / sizeof(inputs[0]);
+    for (size_t i = 0; i < num_inputs; i++) {
+        inputs[i][15] = i; // the loop, then the other returns
+    }
+    int64_t gas = 20000000;
+
+    struct outcome expected[num_inputs];
+    for (size_t i = 0; i < num_inputs; i++) {
+        setup_message(code, sizeof(code), inputs[i], sizeof(inputs[i]), gas);
+        expected[i] = execute_outcome(code, sizeof(code));
+        ASSERT_EQ(EVM_SUCCESS, expected[i].status_code);
+    }
+    ASSERT_EQ(0, expected[0].output[15]);
+    ASSERT_EQ(11, expected[1].output[15]);
+    ASSERT_EQ(99, expected[4].output[15]);
+
+    // Every other input reaches new blocks and compiles the code again in
+    // background, while the loop runs the code compiled before. The replaced
+    // code is released when the loop returns, not before.
+    instance->set_option(instance, "lazy", "1");
+    std::vector<size_t> indexes;
+    std::vector<struct outcome> outcomes;
+    for (int round = 0; round < 8; round++) {
+        size_t const sequence[] = { 0, 1 + round % (num_inputs - 1), 0 };
+        for (size_t index: sequence) {
+            setup_message(code, sizeof(code), inputs[index], sizeof(inputs[index]), gas);
+            salt_code_hash(1);
+            indexes.push_back(index);
+            outcomes.push_back(execute_outcome(code, sizeof(code)));
+        }
+    }
+    instance->set_option(instance, "lazy", "0");
+
+    for (size_t i = 0; i < outcomes.size(); i++) {
+        assert_same_outcome(expected[indexes[i]], outcomes[i]);
+    }
+}
+
+TEST(coalesce, testJUMPIChain) {
+    uint8_t const code[] = {
+            0x60, 0x00, 0x35, // CALLDATALOAD
+            0x80, 0x60, 0x19, 0x57, // DUP1 PUSH JUMPI
+            0x80, 0x60, 0x19, 0x57, // DUP1 PUSH JUMPI
+            0x80, 0x60, 0x19, 0x57, // DUP1 PUSH JUMPI
+
+            0x60, 0x01, // PUSH 0x01
+            0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3, // RETURN
+
+            0x5B, // JUMPDEST
+            0x60, 0x02, // PUSH 0x02
+            0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3 // RETURN
+    };
+    uint8_t const fall_through[] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+    uint8_t const jump[] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 };
+    int64_t gas = 20000;
+
+    setup_message(code, sizeof(code), fall_through, sizeof(fall_through), gas);
+    struct outcome enough = execute_outcome(code, sizeof(code));
+    ASSERT_EQ(EVM_SUCCESS, enough.status_code);
+    ASSERT_EQ(1, enough.output[15]);
+    assert_same_outcome_coalesced(code, sizeof(code), fall_through, sizeof(fall_through), gas - enough.gas_left);
+
+    setup_message(code, sizeof(code), jump, sizeof(jump), gas);
+    enough = execute_outcome(code, sizeof(code));
+    ASSERT_EQ(EVM_SUCCESS, enough.status_code);
+    ASSERT_EQ(2, enough.output[15]);
+    assert_same_outcome_coalesced(code, sizeof(code), jump, sizeof(jump), gas - enough.gas_left);
+}
+
+TEST(coalesce, testLoop) {
+    uint8_t const code[] = {
+            0x60, 0x00, // push i
+
+            0x5b,
+            0x80, // copy i
+            0x60, 0x05, // push 5
+            0x10, // 5 < i
+            0x60, 0x10, 0x57, // jump if true
+
+            0x60, 0x01, // push 1
+            0x01, // i += 1
+            0x60, 0x02, 0x56, // jump
+
+            0x5b,
+            0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3 // RETURN
+    };
+    uint8_t const input[] = {};
+    int64_t gas = 20000;
+
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct outcome enough = execute_outcome(code, sizeof(code));
+    ASSERT_EQ(EVM_SUCCESS, enough.status_code);
+    ASSERT_EQ(6, enough.output[15]);
+    assert_same_outcome_coalesced(code, sizeof(code), input, sizeof(input), gas - enough.gas_left);
+}
+
+TEST(coalesce, testEndlessLoop) {
+    uint8_t const code[] = {
+            0x5b, // JUMPDEST
+            0x60, 0x01, // PUSH
+            0x50, // POP
+            0x60, 0x00, 0x56 // jump
+    };
+    uint8_t const input[] = {};
+    int64_t gas = 200;
+
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct outcome outcome = execute_outcome(code, sizeof(code));
+    ASSERT_EQ(EVM_OUT_OF_GAS, outcome.status_code);
+    ASSERT_EQ(0, outcome.gas_left);
+    assert_same_outcome_coalesced(code, sizeof(code), input, sizeof(input), gas);
+}
+
+TEST(coalesce, testJUMPToExhaustingBlock) {
+    uint8_t const code[] = {
+            0x60, 0x04, 0x56, // jump
+            0x00, // STOP
+
+            0x5B, // JUMPDEST
+            0x60, 0x00, // PUSH
+            0x54, // SLOAD
+            0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3 // RETURN
+    };
+    uint8_t const input[] = {};
+    int64_t gas = 20000;
+
+    setup_message(code, sizeof(code), input, sizeof(input), gas);
+    struct outcome enough = execute_outcome(code, sizeof(code));
+    ASSERT_EQ(EVM_SUCCESS, enough.status_code);
+    int64_t cost = gas - enough.gas_left;
+    ASSERT_LT(sload, cost);
+
+    // Gas for the jump, but not for the SLOAD of its destination.
+    setup_message(code, sizeof(code), input, sizeof(input), cost - sload);
+    struct outcome exhausted = execute_outcome(code, sizeof(code));
+    ASSERT_EQ(EVM_OUT_OF_GAS, exhausted.status_code);
+    ASSERT_EQ(0, exhausted.gas_left);
+    assert_same_outcome_coalesced(code, sizeof(code), input, sizeof(input), cost);
+}
+
+//======================================
+// Code cache
+//======================================
+
+/**
+ * Code returning the given number plus the number of its additions, long
+ * enough for its compiled code to take some memory.
+ */
+std::vector<uint8_t> make_adding_code(uint16_t number, int additions)
+{
+    std::vector<uint8_t> code = { 0x61, (uint8_t) (number >> 8), (uint8_t) number }; // PUSH2
+    for (int i = 0; i < additions; i++) {
+        code.insert(code.end(), { 0x60, 0x01, 0x01 }); // PUSH 0x01 ADD
+    }
+    code.insert(code.end(), { 0x60, 0xE0, 0x52, 0x60, 0x10, 0x60, 0xE0, 0xF3 }); // RETURN
+    return code;
+}
+
+bool is_compiled(const struct evm_hash &code_hash)
+{
+    std::vector<struct evmjit_hot_code> entries(65536);
+    size_t count = evmjit_hot_set(instance, entries.data(), entries.size());
+    for (size_t i = 0; i < count; i++) {
+        if (memcmp(entries[i].code_hash.bytes, code_hash.bytes, sizeof(code_hash.bytes)) == 0) {
+            return true;
+        }
+    }
+    return false;
+}
+
+TEST(codecache, testEvictionUnderSmallBudget) {
+    uint8_t const input[] = {};
+    int64_t gas = 20000;
+    int const additions = 200;
+
+    // Every code is compiled, then compiled again optimized in background
+    // while other codes are compiled and evict it.
+    instance->set_option(instance, "code-cache-size", "1");
+    instance->set_option(instance, "code-cache-policy", "lru");
+    instance->set_option(instance, "optimize-hits", "2");
+    uint16_t const num_codes = 500;
+    std::vector<struct outcome> outcomes;
+    for (uint16_t number = 0; number < num_codes; number++) {
+        std::vector<uint8_t> code = make_adding_code(number, additions);
+        for (int run = 0; run < 3; run++) {
+            setup_message(code.data(), code.size(), input, sizeof(input), gas);
+            outcomes.push_back(execute_outcome(code.data(), code.size()));
+        }
+    }
+    std::this_thread::sleep_for(std::chrono::milliseconds(100));
+
+    // The memory of the evicted code is not counted anymore, so compiling
+    // another code only evicts the least recently executed ones.
+    std::vector<uint8_t> recent = make_adding_code(1000, additions);
+    setup_message(recent.data(), recent.size(), input, sizeof(input), gas);
+    struct evm_hash recent_hash = msg.code_hash;
+    struct outcome recent_outcome = execute_outcome(recent.data(), recent.size());
+
+    std::vector<uint8_t> latest = make_adding_code(1001, additions);
+    setup_message(latest.data(), latest.size(), input, sizeof(input), gas);
+    struct evm_hash latest_hash = msg.code_hash;
+    struct outcome latest_outcome = execute_outcome(latest.data(), latest.size());
+
+    bool recent_compiled = is_compiled(recent_hash);
+    bool latest_compiled = is_compiled(latest_hash);
+    instance->set_option(instance, "optimize-hits", "1000");
+    instance->set_option(instance, "code-cache-size", "512");
+
+    for (size_t i = 0; i < outcomes.size(); i++) {
+        uint16_t result = i / 3 + additions;
+        ASSERT_EQ(EVM_SUCCESS, outcomes[i].status_code);
+        ASSERT_EQ((uint8_t) (result >> 8), outcomes[i].output[14]);
+        ASSERT_EQ((uint8_t) result, outcomes[i].output[15]);
+    }
+    ASSERT_EQ(EVM_SUCCESS, recent_outcome.status_code);
+    ASSERT_EQ(EVM_SUCCESS, latest_outcome.status_code);
+    ASSERT_TRUE(recent_compiled);
+    ASSERT_TRUE(latest_compiled);
+}
+
 //======================================
 // Other stuff
 //======================================
 
+TEST(misc, testKeccakVariants) {
+    // Keccak-f[1600] of the zero state, from the test vectors of the Keccak team
+    uint64_t const gt[25] = {
+        0xF1258F7940E1DDE7, 0x84D5CCF933C0478A, 0xD598261EA65AA9EE, 0xBD1547306F80494D, 0x8B284E056253D057,
+        0xFF97A42D7F8E6FD4, 0x90FEE5A0A44647C4, 0x8C5BDA0CD6192E76, 0xAD30A6F71B19059C, 0x30935AB7D08FFC64,
+        0xEB5AA93F2317D635, 0xA9A6E6260D712103, 0x81A57C16DBCF555F, 0x43B831CD0347C826, 0x01F22F1A11A5569F,
+        0x05E5635A21D9AE61, 0x64BEFEF28CC970F2, 0x613670957BC46611, 0xB87C5A554FD00ECB, 0x8C3EE88A1CCF32C8,
+        0x940C7922AE3A2614, 0x1841F924A2C509E4, 0x16F53526E70465C2, 0x75F644E97F30A13B, 0xEAF1FF7B5CECA249
+    };
+    uint64_t generic[25] = {};
+    uint64_t bmi2[25] = {};
+
+    ASSERT_TRUE(dev::evmjit::keccakf1600(generic, false));
+    ASSERT_TRUE(0 == memcmp(gt, generic, sizeof(gt)));
+
+    if (dev::evmjit::keccakf1600(bmi2, true)) {
+        ASSERT_TRUE(0 == memcmp(gt, bmi2, sizeof(gt)));
+
+        // the states following it
+        for (int i = 0; i < 100; i++) {
+            dev::evmjit::keccakf1600(generic, false);
+            dev::evmjit::keccakf1600(bmi2, true);
+            ASSERT_TRUE(0 == memcmp(generic, bmi2, sizeof(generic)));
+        }
+    } else {
+        printf("\n  BMI2 is not supported\n\n");
+    }
+
+    // keccak() with the variant of the CPU, for cached and longer inputs
+    struct evm_hash hash;
+    struct evm_hash const empty = {
+        0xc5, 0xd2, 0x46, 0x01, 0x86, 0xf7, 0x23, 0x3c, 0x92, 0x7e, 0x7d, 0xb2, 0xdc, 0xc7, 0x03, 0xc0,
+        0xe5, 0x00, 0xb6, 0x53, 0xca, 0x82, 0x27, 0x3b, 0x7b, 0xfa, 0xd8, 0x04, 0x5d, 0x85, 0xa4, 0x70
+    };
+    dev::evmjit::keccak(nullptr, 0, hash.bytes);
+    ASSERT_TRUE(0 == memcmp(empty.bytes, hash.bytes, sizeof(hash)));
+
+    uint8_t const abc[] = { 'a', 'b', 'c' };
+    struct evm_hash const abc_hash = {
+        0x4e, 0x03, 0x65, 0x7a, 0xea, 0x45, 0xa9, 0x4f, 0xc7, 0xd4, 0x7b, 0xa8, 0x26, 0xc8, 0xd6, 0x67,
+        0xc0, 0xd1, 0xe6, 0xe3, 0x3a, 0x64, 0xa0, 0x36, 0xec, 0x44, 0xf5, 0x8f, 0xa1, 0x2d, 0x6c, 0x45
+    };
+    for (int i = 0; i < 2; i++) {
+        dev::evmjit::keccak(abc, sizeof(abc), hash.bytes);
+        ASSERT_TRUE(0 == memcmp(abc_hash.bytes, hash.bytes, sizeof(hash)));
+    }
+
+    uint8_t a[200];
+    memset(a, 'a', sizeof(a));
+    struct evm_hash const a_hash = {
+        0x96, 0xea, 0x54, 0x06, 0x1d, 0xef, 0x93, 0x6c, 0x4b, 0xe9, 0x0b, 0x51, 0x89, 0x92, 0xfd, 0xc6,
+        0xf1, 0x2f, 0x53, 0x50, 0x68, 0xa2, 0x56, 0x22, 0x9a, 0xca, 0x54, 0x26, 0x7b, 0x4d, 0x08, 0x4d
+    };
+    dev::evmjit::keccak(a, sizeof(a), hash.bytes);
+    ASSERT_TRUE(0 == memcmp(a_hash.bytes, hash.bytes, sizeof(hash)));
+}
+
 TEST(misc, DISABLED_testMemoryLeak) {
     for (int i = 0; i < 1000000; i++) {
         uint8_t const code[] = {
@@ -0,0 +1,87 @@
+package org.aion.fastvm;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import org.aion.mcf.vm.types.DataWordImpl;
+import org.aion.types.Address;
+import org.aion.types.ByteArrayWrapper;
+
+/**
+ * The accounts and storage slots a transaction is expected to access, e.g. from an access list.
+ * The VM loads them in bulk before the contract code starts, instead of discovering them one
+ * access at a time.
+ *
+ * <p>A hint only affects performance: slots that are declared but not accessed are loaded for
+ * nothing, and slots that are accessed but not declared are loaded on demand as usual.
+ */
+public final class AccessHint {
+
+    private final Set<Address> accounts = new LinkedHashSet<>();
+    private final Map<Address, Set<ByteArrayWrapper>> storage = new HashMap<>();
+    private final boolean predict;
+
+    /**
+     * Creates an empty hint.
+     *
+     * @param predict whether to also load the slots predicted from previous executions of the
+     *     same code and from constant keys in the code
+     */
+    public AccessHint(boolean predict) {
+        this.predict = predict;
+    }
+
+    /**
+     * Returns an empty hint that only loads predicted slots.
+     *
+     * @return
+     */
+    public static AccessHint predicted() {
+        return new AccessHint(true);
+    }
+
+    /**
+     * Declares an account the transaction is expected to access.
+     *
+     * @param address
+     * @return this hint
+     */
+    public AccessHint addAccount(Address address) {
+        accounts.add(address);
+        return this;
+    }
+
+    /**
+     * Declares a storage slot the transaction is expected to read.
+     *
+     * @param address the contract owning the slot
+     * @param key 16-byte storage key
+     * @return this hint
+     */
+    public AccessHint addStorage(Address address, byte[] key) {
+        if (key.length != DataWordImpl.BYTES) {
+            throw new IllegalArgumentException("key must be " + DataWordImpl.BYTES + " bytes!");
+        }
+        storage.computeIfAbsent(address, a -> new LinkedHashSet<>())
+                .add(new ByteArrayWrapper(key.clone()));
+        return this;
+    }
+
+    Set<Address> accounts() {
+        return accounts;
+    }
+
+    Set<ByteArrayWrapper> storageKeys(Address address) {
+        return storage.getOrDefault(address, Collections.emptySet());
+    }
+
+    Set<Address> storageOwners() {
+        return storage.keySet();
+    }
+
+    boolean isPredicted() {
+        return predict;
+    }
+}
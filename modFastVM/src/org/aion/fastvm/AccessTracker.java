@@ -0,0 +1,203 @@
+package org.aion.fastvm;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Set;
+import org.aion.types.Address;
+import org.aion.types.ByteArrayWrapper;
+import org.aion.util.bytes.ByteUtil;
+import org.aion.vm.api.interfaces.KernelInterface;
+
+/**
+ * Records the accounts and storage slots a transaction reads and writes, so that transactions
+ * executed speculatively in parallel can be checked for conflicts before they are committed.
+ *
+ * <p>Tracking is enabled per thread by {@link #begin(AccessTracker)}; all recording methods are
+ * no-ops on threads without an active tracker.
+ */
+final class AccessTracker {
+
+    private static final ThreadLocal<AccessTracker> current = new ThreadLocal<>();
+
+    private final Set<Address> accountReads = new HashSet<>();
+    private final Set<Address> accountWrites = new HashSet<>();
+    private final Set<Address> storageOwners = new HashSet<>();
+    private final Set<Address> destroyed = new HashSet<>();
+    private final Set<ByteArrayWrapper> storageReads = new HashSet<>();
+    private final Set<ByteArrayWrapper> storageWrites = new HashSet<>();
+
+    // whether the transaction touched state that is not tracked, e.g. a precompiled contract
+    private boolean opaque;
+
+    /**
+     * Starts tracking on the current thread.
+     *
+     * @param tracker
+     */
+    static void begin(AccessTracker tracker) {
+        current.set(tracker);
+    }
+
+    /** Stops tracking on the current thread. */
+    static void end() {
+        current.remove();
+    }
+
+    /**
+     * Records a read of an account (balance, nonce, code or existence).
+     *
+     * @param address
+     */
+    static void readAccount(Address address) {
+        AccessTracker tracker = current.get();
+        if (tracker != null) {
+            tracker.accountReads.add(address);
+        }
+    }
+
+    /**
+     * Records a write of an account. A write is also a read.
+     *
+     * @param address
+     */
+    static void writeAccount(Address address) {
+        AccessTracker tracker = current.get();
+        if (tracker != null) {
+            tracker.accountReads.add(address);
+            tracker.accountWrites.add(address);
+        }
+    }
+
+    /**
+     * Records the destruction of an account, which implicitly clears its storage.
+     *
+     * @param address
+     */
+    static void destroyAccount(Address address) {
+        AccessTracker tracker = current.get();
+        if (tracker != null) {
+            tracker.accountReads.add(address);
+            tracker.accountWrites.add(address);
+            tracker.destroyed.add(address);
+        }
+    }
+
+    /**
+     * Records a read of a storage slot.
+     *
+     * @param address
+     * @param key
+     */
+    static void readStorage(Address address, byte[] key) {
+        AccessTracker tracker = current.get();
+        if (tracker != null) {
+            tracker.storageOwners.add(address);
+            tracker.storageReads.add(slot(address, key));
+        }
+    }
+
+    /**
+     * Records a write of a storage slot. A write is also a read.
+     *
+     * @param address
+     * @param key
+     */
+    static void writeStorage(Address address, byte[] key) {
+        AccessTracker tracker = current.get();
+        if (tracker != null) {
+            ByteArrayWrapper slot = slot(address, key);
+            tracker.storageOwners.add(address);
+            tracker.storageReads.add(slot);
+            tracker.storageWrites.add(slot);
+        }
+    }
+
+    /**
+     * Records a value transfer. Both accounts are read; they are written if the amount is non-zero
+     * or if the transfer creates the recipient account.
+     *
+     * @param kernel the kernel the transfer is applied to
+     * @param from
+     * @param to
+     * @param amount
+     */
+    static void transfer(KernelInterface kernel, Address from, Address to, BigInteger amount) {
+        AccessTracker tracker = current.get();
+        if (tracker != null) {
+            if (amount.signum() != 0) {
+                writeAccount(from);
+                writeAccount(to);
+            } else {
+                readAccount(from);
+                if (kernel.hasAccountState(to)) {
+                    readAccount(to);
+                } else {
+                    writeAccount(to);
+                }
+            }
+        }
+    }
+
+    /** Records an access to state that cannot be tracked. */
+    static void markOpaque() {
+        AccessTracker tracker = current.get();
+        if (tracker != null) {
+            tracker.opaque = true;
+        }
+    }
+
+    /**
+     * Returns whether a transaction with this access set may have observed a different state had
+     * it been executed after the transactions whose writes are accumulated in {@code committed}.
+     *
+     * @param committed the accumulated writes of the preceding transactions
+     * @return
+     */
+    boolean conflictsWith(AccessTracker committed) {
+        if (committed.opaque) {
+            return true;
+        }
+        if (opaque) {
+            return !committed.accountWrites.isEmpty() || !committed.storageWrites.isEmpty();
+        }
+        return intersects(accountReads, committed.accountWrites)
+                || intersects(storageReads, committed.storageWrites)
+                || intersects(storageOwners, committed.destroyed);
+    }
+
+    /**
+     * Adds the writes of another tracker to this one.
+     *
+     * @param other
+     */
+    void addWrites(AccessTracker other) {
+        accountWrites.addAll(other.accountWrites);
+        storageWrites.addAll(other.storageWrites);
+        destroyed.addAll(other.destroyed);
+        opaque |= other.opaque;
+    }
+
+    /**
+     * Adds an account write to this tracker, regardless of the current thread.
+     *
+     * @param address
+     */
+    void addAccountWrite(Address address) {
+        accountWrites.add(address);
+    }
+
+    private static ByteArrayWrapper slot(Address address, byte[] key) {
+        return new ByteArrayWrapper(ByteUtil.merge(address.toBytes(), key));
+    }
+
+    private static <T> boolean intersects(Set<T> a, Set<T> b) {
+        Set<T> small = a.size() <= b.size() ? a : b;
+        Set<T> large = small == a ? b : a;
+        for (T t : small) {
+            if (large.contains(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -25,8 +25,8 @@ import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
 /**
- * This class handles all callbacks from the JIT side. It is not thread-safe and should be
- * synchronized for parallel execution.
+ * This class handles all callbacks from the JIT side. The callback stack is thread-local, so
+ * executions on different threads do not interfere with each other.
  *
  * <p>All methods are static for better JNI performance.
  *
@@ -34,8 +34,84 @@ import org.apache.commons.lang3.tuple.Pair;
  */
 public class Callback {
 
-    private static LinkedList<Pair<TransactionContext, KernelInterfaceForFastVM>> stack =
-            new LinkedList<>();
+    private static final ThreadLocal<LinkedList<Pair<TransactionContext, KernelInterfaceForFastVM>>>
+            stack = ThreadLocal.withInitial(LinkedList::new);
+
+    private static final ThreadLocal<StorageBuffer> storageBuffers =
+            ThreadLocal.withInitial(StorageBuffer::new);
+
+    /**
+     * Per-thread direct buffer through which the native side passes storage accesses, in the
+     * format |32b - address|16b - key|16b - value|. The address of the last access is kept, so
+     * consecutive accesses to the same contract do not allocate a new {@link Address}, and so are
+     * the recently accessed keys, so repeated accesses to a slot do not allocate a new key.
+     */
+    private static final class StorageBuffer {
+        private static final int KEY_OFFSET = Address.SIZE;
+        private static final int VALUE_OFFSET = KEY_OFFSET + DataWordImpl.BYTES;
+        private static final int SIZE = VALUE_OFFSET + DataWordImpl.BYTES;
+
+        private static final int KEY_SLOT_BITS = 8;
+
+        private final ByteBuffer buffer =
+                ByteBuffer.allocateDirect(SIZE).order(ByteOrder.BIG_ENDIAN);
+        private final byte[] addressBytes = new byte[Address.SIZE];
+        private Address address;
+
+        // Direct-mapped table of recently accessed keys, by the two halves of the key.
+        private final long[] keyHighs = new long[1 << KEY_SLOT_BITS];
+        private final long[] keyLows = new long[1 << KEY_SLOT_BITS];
+        private final byte[][] keys = new byte[1 << KEY_SLOT_BITS][];
+
+        private Address address() {
+            boolean changed = address == null;
+            for (int i = 0; i < Address.SIZE; i++) {
+                byte b = buffer.get(i);
+                if (b != addressBytes[i]) {
+                    addressBytes[i] = b;
+                    changed = true;
+                }
+            }
+            if (changed) {
+                address = Address.wrap(Arrays.copyOf(addressBytes, Address.SIZE));
+            }
+            return address;
+        }
+
+        /**
+         * Returns the key in the buffer. The returned array is shared by all the accesses to the
+         * same key and is never modified, as the repository and the trackers may keep it.
+         *
+         * @return
+         */
+        private byte[] key() {
+            long high = buffer.getLong(KEY_OFFSET);
+            long low = buffer.getLong(KEY_OFFSET + Long.BYTES);
+            int slot =
+                    (int)
+                            (((high ^ Long.rotateLeft(low, 32)) * 0x9E3779B97F4A7C15L)
+                                    >>> (Long.SIZE - KEY_SLOT_BITS));
+
+            byte[] key = keys[slot];
+            if (key == null || keyHighs[slot] != high || keyLows[slot] != low) {
+                key = new byte[DataWordImpl.BYTES];
+                for (int i = 0; i < Long.BYTES; i++) {
+                    key[i] = (byte) (high >>> (Long.SIZE - Byte.SIZE * (i + 1)));
+                    key[Long.BYTES + i] = (byte) (low >>> (Long.SIZE - Byte.SIZE * (i + 1)));
+                }
+                keyHighs[slot] = high;
+                keyLows[slot] = low;
+                keys[slot] = key;
+            }
+            return key;
+        }
+
+        private void setValue(byte[] value) {
+            for (int i = 0; i < DataWordImpl.BYTES; i++) {
+                buffer.put(VALUE_OFFSET + i, value[i]);
+            }
+        }
+    }
 
     /**
      * Pushes a pair of context and repository into the callback stack.
@@ -43,12 +119,12 @@ public class Callback {
      * @param pair
      */
     public static void push(Pair<TransactionContext, KernelInterfaceForFastVM> pair) {
-        stack.push(pair);
+        stack.get().push(pair);
     }
 
     /** Pops the last <context, repository> pair */
     public static void pop() {
-        stack.pop();
+        stack.get().pop();
     }
 
     /**
@@ -57,7 +133,7 @@ public class Callback {
      * @return
      */
     public static TransactionContext context() {
-        return stack.peek().getLeft();
+        return stack.get().peek().getLeft();
     }
 
     /**
@@ -66,7 +142,7 @@ public class Callback {
      * @return
      */
     public static KernelInterfaceForFastVM kernelRepo() {
-        return stack.peek().getRight();
+        return stack.get().peek().getRight();
     }
 
     /**
@@ -76,6 +152,7 @@ public class Callback {
      * @return
      */
     public static byte[] getBlockHash(long number) {
+        ViewCallCache.markNotMemoizable();
         byte[] hash = kernelRepo().getBlockHashByNumber(number);
         return hash == null ? new byte[32] : hash;
     }
@@ -87,7 +164,10 @@ public class Callback {
      * @return
      */
     public static byte[] getCode(byte[] address) {
-        byte[] code = kernelRepo().getCode(Address.wrap(address));
+        Address addr = Address.wrap(address);
+        ViewCallCache.markNotMemoizable();
+        AccessTracker.readAccount(addr);
+        byte[] code = kernelRepo().getCode(addr);
         return code == null ? new byte[0] : code;
     }
 
@@ -98,7 +178,10 @@ public class Callback {
      * @return
      */
     public static byte[] getBalance(byte[] address) {
-        BigInteger balance = kernelRepo().getBalance(Address.wrap(address));
+        Address addr = Address.wrap(address);
+        ViewCallCache.markNotMemoizable();
+        AccessTracker.readAccount(addr);
+        BigInteger balance = kernelRepo().getBalance(addr);
         return balance == null ? DataWordImpl.ZERO.getData() : new DataWordImpl(balance).getData();
     }
 
@@ -109,7 +192,10 @@ public class Callback {
      * @return
      */
     public static boolean exists(byte[] address) {
-        return kernelRepo().hasAccountState(Address.wrap(address));
+        Address addr = Address.wrap(address);
+        ViewCallCache.markNotMemoizable();
+        AccessTracker.readAccount(addr);
+        return kernelRepo().hasAccountState(addr);
     }
 
     /**
@@ -124,7 +210,34 @@ public class Callback {
         // Hex.toHexString(key) + ", value = " + (value == null ?
         // "":Hex.toHexString(value.getData())));
 
-        return kernelRepo().getStorage(Address.wrap(address), key);
+        return getStorage(Address.wrap(address), key);
+    }
+
+    /**
+     * Returns the storage buffer of the current thread. It is looked up once per thread by the
+     * native side.
+     *
+     * @return
+     */
+    static ByteBuffer storageBuffer() {
+        return storageBuffers.get().buffer;
+    }
+
+    /**
+     * Reads the value that is mapped to the address and key in the storage buffer, and writes it
+     * back into the buffer.
+     */
+    public static void getStorage() {
+        StorageBuffer sb = storageBuffers.get();
+        sb.setValue(getStorage(sb.address(), sb.key()));
+    }
+
+    private static byte[] getStorage(Address address, byte[] key) {
+        AccessTracker.readStorage(address, key);
+        StoragePrefetcher.recordRead(address, key);
+        byte[] value = kernelRepo().getStorage(address, key);
+        ViewCallCache.recordRead(address, key, value);
+        return value;
     }
 
     /**
@@ -139,10 +252,46 @@ public class Callback {
         // System.err.println("PUT_STORAGE: address = " + Hex.toHexString(address) + ", key = " +
         // Hex.toHexString(key) + ", value = " + Hex.toHexString(value));
 
+        putStorage(Address.wrap(address), key, value);
+    }
+
+    /**
+     * Sets a batch of storage values, written back by the native side when an execution frame
+     * succeeds. The entries are in the format |32b - address|16b - key|16b - value|, in the order
+     * they were first written.
+     *
+     * @param entries
+     */
+    public static void putStorageBatch(byte[] entries) {
+        int entryLength = StorageBuffer.SIZE;
+        Address address = null;
+        for (int offset = 0; offset + entryLength <= entries.length; offset += entryLength) {
+            if (address == null
+                    || !Arrays.equals(
+                            address.toBytes(),
+                            0,
+                            Address.SIZE,
+                            entries,
+                            offset,
+                            offset + Address.SIZE)) {
+                address = Address.wrap(Arrays.copyOfRange(entries, offset, offset + Address.SIZE));
+            }
+            int keyOffset = offset + StorageBuffer.KEY_OFFSET;
+            int valueOffset = offset + StorageBuffer.VALUE_OFFSET;
+            putStorage(
+                    address,
+                    Arrays.copyOfRange(entries, keyOffset, valueOffset),
+                    Arrays.copyOfRange(entries, valueOffset, offset + entryLength));
+        }
+    }
+
+    private static void putStorage(Address address, byte[] key, byte[] value) {
+        ViewCallCache.markNotMemoizable();
+        AccessTracker.writeStorage(address, key);
         if (value == null || value.length == 0 || isZero(value)) {
-            kernelRepo().removeStorage(Address.wrap(address), key);
+            kernelRepo().removeStorage(address, key);
         } else {
-            kernelRepo().putStorage(Address.wrap(address), key, value);
+            kernelRepo().putStorage(address, key, value);
         }
     }
 
@@ -163,6 +312,10 @@ public class Callback {
      * @param beneficiary
      */
     public static void selfDestruct(byte[] owner, byte[] beneficiary) {
+        ViewCallCache.markNotMemoizable();
+        AccessTracker.destroyAccount(Address.wrap(owner));
+        AccessTracker.writeAccount(Address.wrap(beneficiary));
+
         BigInteger balance = kernelRepo().getBalance(Address.wrap(owner));
 
         // add internal transaction
@@ -193,6 +346,7 @@ public class Callback {
      * @param data
      */
     public static void log(byte[] address, byte[] topics, byte[] data) {
+        ViewCallCache.markNotMemoizable();
         List<byte[]> list = new ArrayList<>();
 
         for (int i = 0; i < topics.length; i += 32) {
@@ -209,6 +363,7 @@ public class Callback {
      * instances of the fast vm and contract factory.
      */
     static byte[] performCall(byte[] message, FastVM vm, ContractFactory factory) {
+        ViewCallCache.markNotMemoizable();
         ExecutionContext ctx = parseMessage(message);
 
         // check call stack depth
@@ -217,6 +372,7 @@ public class Callback {
         }
 
         // check value
+        AccessTracker.readAccount(ctx.getSenderAddress());
         BigInteger endowment = ctx.getTransferValue();
         BigInteger callersBalance = kernelRepo().getBalance(ctx.getSenderAddress());
         if (callersBalance.compareTo(endowment) < 0) {
@@ -250,7 +406,7 @@ public class Callback {
      * @return
      */
     public static byte[] call(byte[] message) {
-        return performCall(message, new FastVM(), new ContractFactory());
+        return performCall(message, FastVM.current(), new ContractFactory());
     }
 
     /**
@@ -268,6 +424,7 @@ public class Callback {
         }
 
         // Check that the destination address is safe to call from this VM.
+        AccessTracker.readAccount(codeAddress);
         if (!kernelRepo().destinationAddressIsSafeForThisVM(codeAddress)) {
             return new FastVmTransactionResult(
                     FastVmResultCode.INCOMPATIBLE_CONTRACT_CALL, ctx.getTransactionEnergy());
@@ -293,12 +450,15 @@ public class Callback {
         if (ctx.getTransactionKind() != ExecutionContext.DELEGATECALL
                 && ctx.getTransactionKind() != ExecutionContext.CALLCODE) {
             BigInteger transferAmount = ctx.getTransferValue();
+            AccessTracker.transfer(
+                    track, ctx.getSenderAddress(), ctx.getDestinationAddress(), transferAmount);
             track.adjustBalance(ctx.getSenderAddress(), transferAmount.negate());
             track.adjustBalance(ctx.getDestinationAddress(), transferAmount);
         }
 
         PrecompiledContract pc = factory.getPrecompiledContract(ctx, track);
         if (pc != null) {
+            AccessTracker.markOpaque();
             result = pc.execute(ctx.getTransactionData(), ctx.getTransactionEnergy());
         } else {
             // get the code
@@ -342,6 +502,8 @@ public class Callback {
         Address newAddress =
                 Address.wrap(HashUtil.calcNewAddr(ctx.getSenderAddress().toBytes(), nonce));
         ctx.setDestinationAddress(newAddress);
+        AccessTracker.writeAccount(ctx.getSenderAddress());
+        AccessTracker.writeAccount(newAddress);
 
         // add internal transaction
         // TODO: should the `to` address be null?
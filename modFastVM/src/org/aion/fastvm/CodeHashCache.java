@@ -0,0 +1,98 @@
+package org.aion.fastvm;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.aion.crypto.HashUtil;
+import org.aion.types.ByteArrayWrapper;
+
+/**
+ * A bounded cache of contract code hashes, used to identify compiled code without hashing the
+ * whole bytecode on every execution.
+ *
+ * <p>Lookups first try a small direct-mapped table keyed by array identity, which hits whenever
+ * the kernel hands out the same code array again. Otherwise they fall back to an LRU map keyed by
+ * the code content. The cache keeps its own copy of every code it has hashed, and a hash is only
+ * returned for a code equal to that copy, so callers may reuse or modify their arrays.
+ */
+final class CodeHashCache {
+
+    private static final class Entry {
+        private final byte[] code;
+        private final byte[] hash;
+
+        private Entry(byte[] code, byte[] hash) {
+            this.code = code;
+            this.hash = hash;
+        }
+    }
+
+    /** Entry of the identity table; the array of the caller is not kept alive by the cache. */
+    private static final class IdentityEntry {
+        private final WeakReference<byte[]> array;
+        private final Entry entry;
+
+        private IdentityEntry(byte[] array, Entry entry) {
+            this.array = new WeakReference<>(array);
+            this.entry = entry;
+        }
+    }
+
+    private final AtomicReferenceArray<IdentityEntry> identity;
+    private final int mask;
+    private final Map<ByteArrayWrapper, Entry> content;
+
+    /**
+     * Creates a code hash cache.
+     *
+     * @param identitySlots number of slots of the identity table, rounded down to a power of two
+     * @param capacity maximum number of entries of the content map
+     */
+    CodeHashCache(int identitySlots, int capacity) {
+        int slots = Integer.highestOneBit(Math.max(1, identitySlots));
+        this.identity = new AtomicReferenceArray<>(slots);
+        this.mask = slots - 1;
+        this.content =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Entry> e) {
+                        return size() > capacity;
+                    }
+                };
+    }
+
+    /**
+     * Returns the hash of the given code, computing it only if it is not cached.
+     *
+     * @param code contract code
+     * @return 32-byte code hash
+     */
+    byte[] hashOf(byte[] code) {
+        // The array may have been modified since it was hashed; comparing it with the copy is
+        // still much cheaper than hashing it.
+        int slot = System.identityHashCode(code) & mask;
+        IdentityEntry identityEntry = identity.get(slot);
+        if (identityEntry != null
+                && identityEntry.array.get() == code
+                && Arrays.equals(identityEntry.entry.code, code)) {
+            return identityEntry.entry.hash;
+        }
+
+        Entry entry;
+        synchronized (content) {
+            entry = content.get(new ByteArrayWrapper(code));
+        }
+        if (entry == null) {
+            byte[] copy = Arrays.copyOf(code, code.length);
+            entry = new Entry(copy, HashUtil.h256(copy));
+            synchronized (content) {
+                content.put(new ByteArrayWrapper(copy), entry);
+            }
+        }
+
+        identity.set(slot, new IdentityEntry(code, entry));
+        return entry.hash;
+    }
+}
@@ -0,0 +1,72 @@
+package org.aion.fastvm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Thread-owned direct buffers used to pass execution contexts into the native VM and results back
+ * out of it, without allocating Java arrays for every frame.
+ *
+ * <p>There is one buffer per nesting level: the native side reads the call data of a frame in
+ * place, so a nested call must not overwrite the buffer of its caller.
+ */
+final class ContextBuffers {
+
+    static final int INITIAL_CAPACITY = 16 * 1024;
+    static final int MAX_CAPACITY = 1024 * 1024;
+
+    private static final ThreadLocal<ContextBuffers> current =
+            ThreadLocal.withInitial(ContextBuffers::new);
+
+    private ByteBuffer[] buffers = new ByteBuffer[4];
+    private int level;
+
+    private ContextBuffers() {}
+
+    /**
+     * Returns the buffers of the current thread.
+     *
+     * @return
+     */
+    static ContextBuffers current() {
+        return current.get();
+    }
+
+    /**
+     * Enters a new nesting level and returns its buffer, cleared and holding at least {@code size}
+     * bytes. Every call must be paired with {@link #release()}.
+     *
+     * @param size the number of bytes needed
+     * @return a direct buffer, or null if {@code size} exceeds {@link #MAX_CAPACITY}
+     */
+    ByteBuffer acquire(int size) {
+        int index = level++;
+        if (size > MAX_CAPACITY) {
+            return null;
+        }
+
+        if (index == buffers.length) {
+            ByteBuffer[] grown = new ByteBuffer[buffers.length * 2];
+            System.arraycopy(buffers, 0, grown, 0, buffers.length);
+            buffers = grown;
+        }
+
+        ByteBuffer buffer = buffers[index];
+        if (buffer == null || buffer.capacity() < size) {
+            int capacity = INITIAL_CAPACITY;
+            while (capacity < size) {
+                capacity <<= 1;
+            }
+            buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.BIG_ENDIAN);
+            buffers[index] = buffer;
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Leaves the current nesting level. */
+    void release() {
+        level--;
+    }
+}
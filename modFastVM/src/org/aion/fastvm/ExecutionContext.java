@@ -147,13 +147,24 @@ public class ExecutionContext implements TransactionContext {
      */
     @Override
     public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodingLength());
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Writes the binary encoding described in {@link #toBytes()} into the given buffer, starting
+     * at its current position.
+     *
+     * @param buffer a buffer with at least {@link #getEncodingLength()} bytes remaining
+     */
+    void writeTo(ByteBuffer buffer) {
 
         // If this is a CREATE then we do not want to serialize the callData.
         if (transaction != null && transaction.isContractCreationTransaction()) {
             callData = ByteUtil.EMPTY_BYTE_ARRAY;
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(getEncodingLength());
         buffer.order(ByteOrder.BIG_ENDIAN);
         buffer.put(address.toBytes());
         buffer.put(origin.toBytes());
@@ -171,7 +182,6 @@ public class ExecutionContext implements TransactionContext {
         buffer.putLong(blockTimestamp);
         buffer.putLong(blockNrgLimit);
         buffer.put(blockDifficulty.getData());
-        return buffer.array();
     }
 
     /** @return the transaction hash. */
@@ -305,9 +315,12 @@ public class ExecutionContext implements TransactionContext {
     /**
      * Returns the length of the big-endian binary encoding of this ExecutionContext.
      *
-     * @return the legtn of this ExecutionContext's binary encoding.
+     * @return the length of this ExecutionContext's binary encoding.
      */
-    private int getEncodingLength() {
+    int getEncodingLength() {
+        if (transaction != null && transaction.isContractCreationTransaction()) {
+            return ENCODE_BASE_LEN;
+        }
         return ENCODE_BASE_LEN + callData.length;
     }
 
@@ -1,7 +1,15 @@
 package org.aion.fastvm;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 import org.aion.util.file.NativeLoader;
 import org.aion.mcf.vm.types.KernelInterfaceForFastVM;
+import org.aion.types.ByteArrayWrapper;
 import org.aion.vm.api.interfaces.KernelInterface;
 import org.aion.vm.api.interfaces.TransactionContext;
 import org.apache.commons.lang3.tuple.Pair;
@@ -9,6 +17,9 @@ import org.apache.commons.lang3.tuple.Pair;
 /**
  * The FastVM implementation. It calls into the jit library via JNI.
  *
+ * <p>The native VM instance is created on first use and kept until {@link #close()}, so that it
+ * is not created and destroyed for every execution. A FastVM may be shared by several threads.
+ *
  * @author yulong
  */
 public class FastVM {
@@ -28,9 +39,60 @@ public class FastVM {
         init();
     }
 
+    private static final ThreadLocal<FastVM> current = ThreadLocal.withInitial(FastVM::new);
+
+    private static final CodeHashCache codeHashes = new CodeHashCache(1024, 4096);
+
+    private static final StoragePrefetcher prefetcher = new StoragePrefetcher(4096);
+
+    // memoized results of read-only executions, null if disabled
+    private static volatile ViewCallCache viewCalls;
+
+    // the native VM instance, 0 if not created yet or closed
+    private volatile long instance;
+
     /** Creates a FastVM instance. */
     public FastVM() {}
 
+    /**
+     * Returns the FastVM owned by the current thread, which is never closed.
+     *
+     * @return
+     */
+    public static FastVM current() {
+        return current.get();
+    }
+
+    /** Creates the native VM instance, if not created yet. */
+    public void open() {
+        instance();
+    }
+
+    /**
+     * Destroys the native VM instance. It must not be called while an execution is running; the
+     * instance is re-created if this FastVM is used again.
+     */
+    public synchronized void close() {
+        if (instance != 0) {
+            destroy(instance);
+            instance = 0;
+        }
+    }
+
+    private long instance() {
+        long handle = instance;
+        if (handle == 0) {
+            synchronized (this) {
+                handle = instance;
+                if (handle == 0) {
+                    handle = create();
+                    instance = handle;
+                }
+            }
+        }
+        return handle;
+    }
+
     /** Initializes library. One time */
     private static native void init();
 
@@ -41,41 +103,273 @@ public class FastVM {
      */
     private static native long create();
 
-    /** Executes the given code and returns the execution results. */
-    private static native byte[] run(long instance, byte[] code, byte[] context, int revision);
+    /**
+     * Executes the given code and returns the execution results. If the code hash is null, it is
+     * computed by the native side. The storage slots, if not null, are made available to the code
+     * without upcalls; see {@link StoragePrefetcher#begin}.
+     */
+    private static native byte[] run(
+            long instance,
+            byte[] code,
+            byte[] codeHash,
+            byte[] context,
+            byte[] storage,
+            int revision);
+
+    /**
+     * Executes the given code with the execution context encoded in a direct buffer. The results
+     * are written back into the buffer, in which case null is returned; if they do not fit, they
+     * are returned as an array instead.
+     */
+    private static native byte[] runDirect(
+            long instance,
+            byte[] code,
+            byte[] codeHash,
+            ByteBuffer context,
+            byte[] storage,
+            int revision);
+
+    /**
+     * Compiles the given codes ahead of their first execution, in parallel.
+     *
+     * @return the number of codes compiled
+     */
+    private static native int compile(
+            long instance, byte[][] codes, byte[][] codeHashes, int revision, int flags);
+
+    /**
+     * Returns the most executed compiled codes, encoded as |32b - code hash|4b - revision|4b -
+     * flags|8b - hits| repeated.
+     */
+    private static native byte[] hotSet(long instance, int max);
 
     /** Destroys the given VM instance. */
     private static native void destroy(long instance);
 
-    @SuppressWarnings("unchecked")
-    public FastVmTransactionResult run(byte[] code, TransactionContext ctx, KernelInterface repo) {
-        if (!(repo instanceof KernelInterfaceForFastVM)) {
-            throw new IllegalArgumentException("repo must be type KernelInterfaceForFastVM!");
+    /**
+     * Compiles the given contract codes in parallel, so that their first executions do not pay
+     * the compilation. Meant to be called on startup, before block processing resumes.
+     *
+     * @param codes contract codes
+     * @param revision the revision the codes will be executed with
+     * @return the number of codes compiled
+     */
+    public int warmUp(Collection<byte[]> codes, int revision) {
+        return warmUp(codes, revision, 0);
+    }
+
+    /**
+     * Compiles the codes listed by a hot set manifest, see {@link #warmUp(Collection, int)}.
+     *
+     * @param manifest the codes to compile
+     * @param codes returns the code of the given code hash, or null if it is unknown
+     * @return the number of codes compiled
+     */
+    public int warmUp(HotSetManifest manifest, Function<byte[], byte[]> codes) {
+        Map<Pair<Integer, Integer>, List<byte[]>> codesByRevision = new LinkedHashMap<>();
+        for (HotSetManifest.Entry entry : manifest.entries()) {
+            byte[] code = codes.apply(entry.getCodeHash());
+            if (code != null) {
+                codesByRevision
+                        .computeIfAbsent(
+                                Pair.of(entry.getRevision(), entry.getFlags()),
+                                k -> new ArrayList<>())
+                        .add(code);
+            }
         }
 
-        KernelInterfaceForFastVM kernelRepo = (KernelInterfaceForFastVM) repo;
-        Callback.push(Pair.of(ctx, kernelRepo));
-        long instance = create();
-        byte[] result = run(instance, code, ctx.toBytes(), REVISION_AION);
-        destroy(instance);
-        Callback.pop();
+        int compiled = 0;
+        for (Map.Entry<Pair<Integer, Integer>, List<byte[]>> e : codesByRevision.entrySet()) {
+            compiled += warmUp(e.getValue(), e.getKey().getLeft(), e.getKey().getRight());
+        }
+        return compiled;
+    }
 
-        return FastVmTransactionResult.fromBytes(result);
+    private int warmUp(Collection<byte[]> codes, int revision, int flags) {
+        byte[][] codeArray = codes.toArray(new byte[0][]);
+        byte[][] hashes = new byte[codeArray.length][];
+        for (int i = 0; i < codeArray.length; i++) {
+            hashes[i] = codeHashes.hashOf(codeArray[i]);
+        }
+        return compile(instance(), codeArray, hashes, revision, flags);
+    }
+
+    /**
+     * Enables the memoization of read-only executions, i.e. executions flagged {@link
+     * #FLAG_STATIC}, e.g. on nodes serving many identical view calls against the same state. A
+     * memoized result is reused while the storage its execution read is unchanged; executions
+     * that read other state or make calls are always executed.
+     *
+     * @param capacity the maximum number of results to remember, or 0 to disable memoization
+     */
+    public static void memoizeViewCalls(int capacity) {
+        viewCalls = capacity > 0 ? new ViewCallCache(capacity) : null;
+    }
+
+    /**
+     * Returns the most executed compiled codes, e.g. to be written at shutdown and replayed with
+     * {@link #warmUp(HotSetManifest, Function)} on the next startup.
+     *
+     * @param max the maximum number of codes
+     * @return
+     */
+    public HotSetManifest hotSet(int max) {
+        return HotSetManifest.fromBytes(hotSet(instance(), max));
+    }
+
+    public FastVmTransactionResult run(byte[] code, TransactionContext ctx, KernelInterface repo) {
+        return run(code, codeHashes.hashOf(code), ctx, repo);
+    }
+
+    /**
+     * Executes the given code, identified by a precomputed code hash.
+     *
+     * @param code contract code
+     * @param codeHash 32-byte hash of the code, which identifies the compiled code
+     * @param ctx execution context
+     * @param repo kernel interface
+     * @return the execution results
+     */
+    public FastVmTransactionResult run(
+            byte[] code, byte[] codeHash, TransactionContext ctx, KernelInterface repo) {
+        return execute(code, codeHash, ctx, repo, null, REVISION_AION);
+    }
+
+    /**
+     * Executes the given code, loading the storage slots it is expected to read beforehand.
+     *
+     * @param code contract code
+     * @param ctx execution context
+     * @param repo kernel interface
+     * @param hint the expected accesses, or null
+     * @return the execution results
+     */
+    public FastVmTransactionResult run(
+            byte[] code, TransactionContext ctx, KernelInterface repo, AccessHint hint) {
+        return execute(code, codeHashes.hashOf(code), ctx, repo, hint, REVISION_AION);
     }
 
-    @SuppressWarnings("unchecked")
     public FastVmTransactionResult run_v1(byte[] code, TransactionContext ctx, KernelInterface repo) {
+        return run_v1(code, codeHashes.hashOf(code), ctx, repo);
+    }
+
+    /**
+     * Executes the given code with the AION_V1 revision, identified by a precomputed code hash.
+     *
+     * @param code contract code
+     * @param codeHash 32-byte hash of the code, which identifies the compiled code
+     * @param ctx execution context
+     * @param repo kernel interface
+     * @return the execution results
+     */
+    public FastVmTransactionResult run_v1(
+            byte[] code, byte[] codeHash, TransactionContext ctx, KernelInterface repo) {
+        return execute(code, codeHash, ctx, repo, null, REVISION_AION_V1);
+    }
+
+    /**
+     * Executes the given code with the AION_V1 revision, loading the storage slots it is expected
+     * to read beforehand.
+     *
+     * @param code contract code
+     * @param ctx execution context
+     * @param repo kernel interface
+     * @param hint the expected accesses, or null
+     * @return the execution results
+     */
+    public FastVmTransactionResult run_v1(
+            byte[] code, TransactionContext ctx, KernelInterface repo, AccessHint hint) {
+        return execute(code, codeHashes.hashOf(code), ctx, repo, hint, REVISION_AION_V1);
+    }
+
+    private FastVmTransactionResult execute(
+            byte[] code,
+            byte[] codeHash,
+            TransactionContext ctx,
+            KernelInterface repo,
+            AccessHint hint,
+            int rev) {
         if (!(repo instanceof KernelInterfaceForFastVM)) {
             throw new IllegalArgumentException("repo must be type KernelInterfaceForFastVM!");
         }
+        if (codeHash != null && codeHash.length != 32) {
+            throw new IllegalArgumentException("codeHash must be 32 bytes!");
+        }
 
         KernelInterfaceForFastVM kernelRepo = (KernelInterfaceForFastVM) repo;
+
+        ViewCallCache cache = viewCalls;
+        boolean memoize =
+                cache != null
+                        && codeHash != null
+                        && (ctx.getFlags() & FLAG_STATIC) != 0
+                        && ctx.getTransactionKind() != ExecutionContext.CREATE;
+        ByteArrayWrapper key = null;
+        if (memoize) {
+            key = ViewCallCache.keyOf(codeHash, rev, ctx.toBytes());
+            FastVmTransactionResult memoized = cache.lookup(key, kernelRepo);
+            if (memoized != null) {
+                return memoized;
+            }
+        }
+
         Callback.push(Pair.of(ctx, kernelRepo));
-        long instance = create();
-        byte[] result = run(instance, code, ctx.toBytes(), REVISION_AION_V1);
-        destroy(instance);
-        Callback.pop();
 
-        return FastVmTransactionResult.fromBytes(result);
+        // contract creations start with empty storage, so there is nothing to load; memoized
+        // executions must report all their reads, so nothing is loaded for them either
+        boolean prefetch =
+                hint != null
+                        && codeHash != null
+                        && !memoize
+                        && ctx.getTransactionKind() != ExecutionContext.CREATE;
+        if (memoize) {
+            ViewCallCache.begin();
+        }
+        FastVmTransactionResult result = null;
+        try {
+            byte[] storage =
+                    prefetch
+                            ? prefetcher.begin(
+                                    code, codeHash, ctx.getDestinationAddress(), hint, kernelRepo)
+                            : null;
+            result =
+                    ctx instanceof ExecutionContext
+                            ? executeDirect(code, codeHash, (ExecutionContext) ctx, storage, rev)
+                            : FastVmTransactionResult.fromBytes(
+                                    run(instance(), code, codeHash, ctx.toBytes(), storage, rev));
+            return result;
+        } finally {
+            if (memoize) {
+                cache.end(key, result);
+            }
+            if (prefetch) {
+                prefetcher.end(codeHash);
+            }
+            Callback.pop();
+        }
+    }
+
+    /** Passes the context and the results through a thread-owned direct buffer. */
+    private FastVmTransactionResult executeDirect(
+            byte[] code, byte[] codeHash, ExecutionContext ctx, byte[] storage, int rev) {
+        ContextBuffers buffers = ContextBuffers.current();
+        try {
+            ByteBuffer buffer = buffers.acquire(ctx.getEncodingLength());
+            if (buffer == null) {
+                return FastVmTransactionResult.fromBytes(
+                        run(instance(), code, codeHash, ctx.toBytes(), storage, rev));
+            }
+
+            ctx.writeTo(buffer);
+            byte[] result = runDirect(instance(), code, codeHash, buffer, storage, rev);
+            if (result != null) {
+                return FastVmTransactionResult.fromBytes(result);
+            }
+
+            buffer.clear();
+            return FastVmTransactionResult.fromBuffer(buffer);
+        } finally {
+            buffers.release();
+        }
     }
 }
@@ -2,6 +2,10 @@ package org.aion.fastvm;
 
 import java.math.BigInteger;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.aion.interfaces.db.RepositoryCache;
 import org.aion.interfaces.tx.Transaction;
 import org.aion.mcf.vm.types.DataWordImpl;
@@ -23,14 +27,47 @@ public class FastVirtualMachine implements VirtualMachine {
     // updates in each separately returned KernelInterface and must flushTo its intended repository.
     private KernelInterface kernelSnapshot;
 
+    // Whether the transactions of a batch are executed speculatively in parallel.
+    private final boolean parallel;
+
+    // The VM used by all executions between start() and shutdown(); null when not started, in
+    // which case the FastVM of the calling thread is used.
+    private volatile FastVM fvm;
+
+    public FastVirtualMachine() {
+        this(false);
+    }
+
+    /**
+     * Creates a virtual machine.
+     *
+     * @param parallel if true, the transactions of a batch are first executed speculatively in
+     *     parallel and then committed in order; a transaction that read state written by an
+     *     earlier one is executed again before it is committed.
+     */
+    public FastVirtualMachine(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /** Creates the native VM instance that is reused by every execution until shutdown. */
     @Override
-    public void start() {
-        throw new UnsupportedOperationException("The FastVirtualMachine is not long-lived.");
+    public synchronized void start() {
+        if (this.fvm != null) {
+            throw new IllegalStateException("The FastVirtualMachine is already started.");
+        }
+        FastVM vm = new FastVM();
+        vm.open();
+        this.fvm = vm;
     }
 
+    /** Releases the native VM instance created by {@link #start()}. */
     @Override
-    public void shutdown() {
-        throw new UnsupportedOperationException("The FastVirtualMachine is not long-lived.");
+    public synchronized void shutdown() {
+        if (this.fvm == null) {
+            throw new IllegalStateException("The FastVirtualMachine is not started.");
+        }
+        this.fvm.close();
+        this.fvm = null;
     }
 
     /**
@@ -57,6 +94,12 @@ public class FastVirtualMachine implements VirtualMachine {
                 new FastVmSimpleFuture[contexts.length];
 
         boolean fork040Enable = ((KernelInterfaceForFastVM) kernel).isFork040Enable();
+        FastVM vm = this.fvm != null ? this.fvm : FastVM.current();
+        if (this.parallel && contexts.length > 1) {
+            runInParallel(kernel, transactions, contexts, transactionResults, fork040Enable, vm);
+            return transactionResults;
+        }
+
         for (int i = 0; i < contexts.length; i++) {
 
             TransactionExecutor executor =
@@ -64,33 +107,123 @@ public class FastVirtualMachine implements VirtualMachine {
                             (Transaction) contexts[i].getTransaction(),
                             contexts[i],
                             this.kernelSnapshot.makeChildKernelInterface(),
-                            fork040Enable);
+                            fork040Enable,
+                            vm);
 
             transactionResults[i] = new FastVmSimpleFuture();
             transactionResults[i].setResult(executor.execute());
-
-            // We want to flush back up to the snapshot without losing any state, so that we can
-            // pass that state to the caller.
-            KernelInterfaceForFastVM fvmKernel =
-                    (KernelInterfaceForFastVM) transactionResults[i].result.getKernelInterface();
-            RepositoryCache fvmKernelRepo = fvmKernel.getRepositoryCache();
-            KernelInterfaceForFastVM snapshotKernel =
-                    (KernelInterfaceForFastVM) this.kernelSnapshot;
-            fvmKernelRepo.flushCopiesTo(snapshotKernel.getRepositoryCache(), false);
-
-            // Mock the updateRepo call
-            TransactionResult txResult = transactionResults[i].result;
-            AionTransaction transaction = (AionTransaction) contexts[i].getTransaction();
-            Address miner = contexts[i].getMinerAddress();
-            List<Address> accountsToDelete = contexts[i].getSideEffects().getAddressesToBeDeleted();
-
-            updateSnapshot(txResult, transaction, miner, accountsToDelete);
-            txResult.getSideEffects().merge(contexts[i].getSideEffects());
+            commitToSnapshot(transactionResults[i].result, contexts[i]);
         }
 
         return transactionResults;
     }
 
+    /**
+     * Executes every transaction speculatively against the snapshot on the worker pool, then
+     * commits them in order. A transaction whose reads overlap the writes of the transactions
+     * committed before it is executed again, serially, on the updated snapshot.
+     */
+    private void runInParallel(
+            KernelInterface kernel,
+            TransactionInterface[] transactions,
+            TransactionContext[] contexts,
+            FastVmSimpleFuture<TransactionResult>[] transactionResults,
+            boolean fork040Enable,
+            FastVM vm) {
+        int n = contexts.length;
+        AccessTracker[] trackers = new AccessTracker[n];
+        TransactionResult[] speculativeResults = new TransactionResult[n];
+
+        // The child kernels are created up front; no writes reach the snapshot until all the
+        // speculative executions are done.
+        Future<?>[] futures = new Future<?>[n];
+        for (int i = 0; i < n; i++) {
+            int index = i;
+            TransactionExecutor executor =
+                    new TransactionExecutor(
+                            (Transaction) contexts[i].getTransaction(),
+                            contexts[i],
+                            this.kernelSnapshot.makeChildKernelInterface(),
+                            fork040Enable,
+                            vm);
+            trackers[i] = new AccessTracker();
+            futures[i] =
+                    SpeculationPool.INSTANCE.submit(
+                            () -> speculativeResults[index] = execute(executor, trackers[index]));
+        }
+
+        for (int i = 0; i < n; i++) {
+            try {
+                futures[i].get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                // the speculative state was inconsistent; execute it again below
+                speculativeResults[i] = null;
+            }
+        }
+
+        AccessTracker committed = new AccessTracker();
+        for (int i = 0; i < n; i++) {
+            TransactionResult result = speculativeResults[i];
+            AccessTracker tracker = trackers[i];
+
+            if (result == null || tracker.conflictsWith(committed)) {
+                contexts[i] = constructTransactionContext(transactions[i], kernel);
+                TransactionExecutor executor =
+                        new TransactionExecutor(
+                                (Transaction) contexts[i].getTransaction(),
+                                contexts[i],
+                                this.kernelSnapshot.makeChildKernelInterface(),
+                                fork040Enable,
+                                vm);
+                tracker = new AccessTracker();
+                result = execute(executor, tracker);
+            }
+
+            transactionResults[i] = new FastVmSimpleFuture();
+            transactionResults[i].setResult(result);
+            commitToSnapshot(result, contexts[i]);
+
+            if (!result.getResultCode().isRejected()) {
+                committed.addWrites(tracker);
+                committed.addAccountWrite(contexts[i].getMinerAddress());
+            }
+        }
+    }
+
+    private static TransactionResult execute(TransactionExecutor executor, AccessTracker tracker) {
+        AccessTracker.begin(tracker);
+        try {
+            return executor.execute();
+        } finally {
+            AccessTracker.end();
+        }
+    }
+
+    /**
+     * Flushes the state changes of an executed transaction into the snapshot and applies the
+     * refund, mining fee and account deletions.
+     */
+    private void commitToSnapshot(TransactionResult txResult, TransactionContext context) {
+        // We want to flush back up to the snapshot without losing any state, so that we can
+        // pass that state to the caller.
+        KernelInterfaceForFastVM fvmKernel =
+                (KernelInterfaceForFastVM) txResult.getKernelInterface();
+        RepositoryCache fvmKernelRepo = fvmKernel.getRepositoryCache();
+        KernelInterfaceForFastVM snapshotKernel = (KernelInterfaceForFastVM) this.kernelSnapshot;
+        fvmKernelRepo.flushCopiesTo(snapshotKernel.getRepositoryCache(), false);
+
+        // Mock the updateRepo call
+        AionTransaction transaction = (AionTransaction) context.getTransaction();
+        Address miner = context.getMinerAddress();
+        List<Address> accountsToDelete = context.getSideEffects().getAddressesToBeDeleted();
+
+        updateSnapshot(txResult, transaction, miner, accountsToDelete);
+        txResult.getSideEffects().merge(context.getSideEffects());
+    }
+
     private void updateSnapshot(
             TransactionResult txResult,
             AionTransaction tx,
@@ -185,6 +318,18 @@ public class FastVirtualMachine implements VirtualMachine {
                 blockDifficulty);
     }
 
+    /** Daemon workers shared by all the virtual machines running in parallel mode. */
+    private static final class SpeculationPool {
+        private static final ExecutorService INSTANCE =
+                Executors.newFixedThreadPool(
+                        Runtime.getRuntime().availableProcessors(),
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "fastvm-speculation");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+    }
+
     private class FastVmSimpleFuture<R> implements SimpleFuture {
         private R result;
 
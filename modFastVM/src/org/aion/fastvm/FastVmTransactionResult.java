@@ -94,7 +94,17 @@ public final class FastVmTransactionResult implements TransactionResult {
      * @return The {@code TransactionResult} object obtained from the byte array representation.
      */
     public static FastVmTransactionResult fromBytes(byte[] bytes) {
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return fromBuffer(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Returns a {@code TransactionResult} object from the partial representation obtained via the
+     * {@code toBytes()} method, read from the given buffer starting at its current position.
+     *
+     * @param buffer A buffer holding a partial representation of a {@code TransactionResult}.
+     * @return The {@code TransactionResult} object obtained from the representation.
+     */
+    static FastVmTransactionResult fromBuffer(ByteBuffer buffer) {
         buffer.order(ByteOrder.BIG_ENDIAN);
 
         FastVmResultCode code = FastVmResultCode.fromInt(buffer.getInt());
@@ -0,0 +1,146 @@
+package org.aion.fastvm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.aion.util.conversions.Hex;
+
+/**
+ * The compiled contract codes that were executed the most. A manifest taken from a running VM with
+ * {@link FastVM#hotSet(int)} can be written at shutdown and replayed with {@link
+ * FastVM#warmUp(HotSetManifest, java.util.function.Function)} on the next startup, so that the hot
+ * contracts are compiled before block processing resumes.
+ *
+ * <p>The file format is one entry per line, most executed first: the hex code hash, revision,
+ * flags and number of executions, separated by spaces.
+ */
+public final class HotSetManifest {
+
+    /** A compiled code of the manifest. */
+    public static final class Entry {
+        private final byte[] codeHash;
+        private final int revision;
+        private final int flags;
+        private final long hits;
+
+        Entry(byte[] codeHash, int revision, int flags, long hits) {
+            this.codeHash = codeHash;
+            this.revision = revision;
+            this.flags = flags;
+            this.hits = hits;
+        }
+
+        public byte[] getCodeHash() {
+            return codeHash;
+        }
+
+        public int getRevision() {
+            return revision;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+    }
+
+    private static final int CODE_HASH_LENGTH = 32;
+    private static final int ENTRY_LENGTH = CODE_HASH_LENGTH + 4 + 4 + 8;
+
+    private final List<Entry> entries;
+
+    HotSetManifest(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Returns the entries, most executed first.
+     *
+     * @return
+     */
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Decodes a manifest returned by the native VM.
+     *
+     * @param bytes |32b - code hash|4b - revision|4b - flags|8b - hits| repeated
+     * @return
+     */
+    static HotSetManifest fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        List<Entry> entries = new ArrayList<>(bytes.length / ENTRY_LENGTH);
+        while (buffer.remaining() >= ENTRY_LENGTH) {
+            byte[] codeHash = new byte[CODE_HASH_LENGTH];
+            buffer.get(codeHash);
+            entries.add(new Entry(codeHash, buffer.getInt(), buffer.getInt(), buffer.getLong()));
+        }
+        return new HotSetManifest(entries);
+    }
+
+    /**
+     * Writes the manifest to the given file, replacing it atomically.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(Path file) throws IOException {
+        List<String> lines = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            lines.add(
+                    Hex.toHexString(entry.codeHash)
+                            + " "
+                            + entry.revision
+                            + " "
+                            + entry.flags
+                            + " "
+                            + entry.hits);
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(
+                tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a manifest written by {@link #write(Path)}.
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public static HotSetManifest read(Path file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = line.trim().split(" ");
+            try {
+                if (fields.length != 4 || fields[0].length() != 2 * CODE_HASH_LENGTH) {
+                    throw new IllegalArgumentException();
+                }
+                entries.add(
+                        new Entry(
+                                Hex.decode(fields[0]),
+                                Integer.parseInt(fields[1]),
+                                Integer.parseInt(fields[2]),
+                                Long.parseLong(fields[3])));
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed hot set manifest entry: " + line, e);
+            }
+        }
+        return new HotSetManifest(entries);
+    }
+}
@@ -0,0 +1,206 @@
+package org.aion.fastvm;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import org.aion.mcf.vm.types.DataWordImpl;
+import org.aion.mcf.vm.types.KernelInterfaceForFastVM;
+import org.aion.types.Address;
+import org.aion.types.ByteArrayWrapper;
+
+/**
+ * Loads the storage slots a contract execution is expected to read before the execution starts,
+ * and hands them to the native VM in one call instead of one JNI upcall per slot.
+ *
+ * <p>Slots are predicted from an {@link AccessHint}, from the slots that previous executions of
+ * the same code read on demand, and from constant keys found by scanning the code for PUSH+SLOAD
+ * sequences.
+ */
+final class StoragePrefetcher {
+
+    /** The maximum number of slots loaded for, and remembered of, a single execution. */
+    static final int MAX_KEYS = 256;
+
+    private static final int PUSH1 = 0x60;
+    private static final int PUSH32 = 0x7f;
+    private static final int SLOAD = 0x54;
+
+    private static final int ENTRY_LENGTH = Address.SIZE + 2 * DataWordImpl.BYTES;
+
+    /** An execution whose on-demand storage reads are being recorded. */
+    private static final class Frame {
+        private final Address address;
+        private final Set<ByteArrayWrapper> reads = new HashSet<>();
+
+        private Frame(Address address) {
+            this.address = address;
+        }
+    }
+
+    private static final ThreadLocal<Deque<Frame>> frames =
+            ThreadLocal.withInitial(ArrayDeque::new);
+
+    // predicted keys by code hash, least recently used first
+    private final Map<ByteArrayWrapper, Set<ByteArrayWrapper>> predictions;
+
+    /**
+     * Creates a storage prefetcher.
+     *
+     * @param capacity the maximum number of contract codes to remember predictions for
+     */
+    StoragePrefetcher(int capacity) {
+        this.predictions =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<ByteArrayWrapper, Set<ByteArrayWrapper>> e) {
+                        return size() > capacity;
+                    }
+                };
+    }
+
+    /**
+     * Loads the slots of the given contract that the execution is expected to read, and starts
+     * recording the slots it reads on demand. Every call must be paired with {@link #end(byte[])}.
+     *
+     * @param code contract code
+     * @param codeHash 32-byte hash of the code
+     * @param address the contract whose storage the code accesses
+     * @param hint the declared accesses
+     * @param kernel the kernel to load from
+     * @return the loaded slots, in the format |32b - address|16b - key|16b - value| repeated, or
+     *     null if there are none
+     */
+    byte[] begin(
+            byte[] code,
+            byte[] codeHash,
+            Address address,
+            AccessHint hint,
+            KernelInterfaceForFastVM kernel) {
+        frames.get().push(new Frame(address));
+
+        // warm up the declared accounts and the storage of other contracts
+        for (Address account : hint.accounts()) {
+            kernel.getBalance(account);
+        }
+        for (Address owner : hint.storageOwners()) {
+            if (!owner.equals(address)) {
+                for (ByteArrayWrapper key : hint.storageKeys(owner)) {
+                    kernel.getStorage(owner, key.getData());
+                }
+            }
+        }
+
+        Set<ByteArrayWrapper> keys = new LinkedHashSet<>(hint.storageKeys(address));
+        if (hint.isPredicted()) {
+            keys.addAll(predictionsOf(code, codeHash));
+        }
+        if (keys.isEmpty()) {
+            return null;
+        }
+
+        int count = Math.min(keys.size(), MAX_KEYS);
+        byte[] entries = new byte[count * ENTRY_LENGTH];
+        byte[] addressBytes = address.toBytes();
+        int offset = 0;
+        for (ByteArrayWrapper key : keys) {
+            if (offset == entries.length) {
+                break;
+            }
+            // the VM does not report reads of loaded slots, so record them all as read
+            AccessTracker.readStorage(address, key.getData());
+            byte[] value = kernel.getStorage(address, key.getData());
+
+            int keyOffset = offset + Address.SIZE;
+            int valueOffset = keyOffset + DataWordImpl.BYTES;
+            System.arraycopy(addressBytes, 0, entries, offset, Address.SIZE);
+            System.arraycopy(key.getData(), 0, entries, keyOffset, DataWordImpl.BYTES);
+            System.arraycopy(value, 0, entries, valueOffset, DataWordImpl.BYTES);
+            offset += ENTRY_LENGTH;
+        }
+        return entries;
+    }
+
+    /**
+     * Stops recording the current execution, and remembers the slots it read on demand for the
+     * next execution of the same code.
+     *
+     * @param codeHash 32-byte hash of the code
+     */
+    void end(byte[] codeHash) {
+        Frame frame = frames.get().pop();
+        if (frame.reads.isEmpty()) {
+            return;
+        }
+
+        ByteArrayWrapper hash = new ByteArrayWrapper(codeHash);
+        synchronized (predictions) {
+            Set<ByteArrayWrapper> keys = predictions.computeIfAbsent(hash, h -> new HashSet<>());
+            for (ByteArrayWrapper key : frame.reads) {
+                if (keys.size() >= MAX_KEYS) {
+                    break;
+                }
+                keys.add(key);
+            }
+        }
+    }
+
+    /**
+     * Records a storage read that was not served from the loaded slots.
+     *
+     * @param address
+     * @param key
+     */
+    static void recordRead(Address address, byte[] key) {
+        Frame frame = frames.get().peek();
+        if (frame != null && frame.address.equals(address)) {
+            frame.reads.add(new ByteArrayWrapper(key));
+        }
+    }
+
+    private Set<ByteArrayWrapper> predictionsOf(byte[] code, byte[] codeHash) {
+        ByteArrayWrapper hash = new ByteArrayWrapper(codeHash);
+        synchronized (predictions) {
+            Set<ByteArrayWrapper> keys = predictions.get(hash);
+            if (keys == null) {
+                keys = constantKeys(code);
+                predictions.put(hash, keys);
+            }
+            return keys.isEmpty() ? Collections.emptySet() : new HashSet<>(keys);
+        }
+    }
+
+    /**
+     * Returns the storage keys the code loads with a constant key, i.e. a PUSH of at most 16 bytes
+     * immediately followed by SLOAD.
+     *
+     * @param code contract code
+     * @return the 16-byte keys
+     */
+    static Set<ByteArrayWrapper> constantKeys(byte[] code) {
+        Set<ByteArrayWrapper> keys = new HashSet<>();
+        int i = 0;
+        while (i < code.length && keys.size() < MAX_KEYS) {
+            int op = code[i] & 0xff;
+            if (op < PUSH1 || op > PUSH32) {
+                i++;
+                continue;
+            }
+
+            int size = op - PUSH1 + 1;
+            int next = i + 1 + size;
+            if (next < code.length && (code[next] & 0xff) == SLOAD && size <= DataWordImpl.BYTES) {
+                byte[] key = new byte[DataWordImpl.BYTES];
+                System.arraycopy(code, i + 1, key, DataWordImpl.BYTES - size, size);
+                keys.add(new ByteArrayWrapper(key));
+            }
+            i = next;
+        }
+        return keys;
+    }
+}
@@ -38,11 +38,11 @@ import org.apache.commons.lang3.ArrayUtils;
  * Transaction executor is the middle man between kernel and VM. It executes transactions and yields
  * transaction receipts.
  *
+ * <p>Executors working on independent kernel snapshots may run concurrently on different threads.
+ *
  * @author yulong
  */
 public class TransactionExecutor {
-    private static Object LOCK = new Object();
-
     private KernelInterface kernel;
     private KernelInterface kernelChild;
     private KernelInterface kernelGrandChild;
@@ -53,6 +53,10 @@ public class TransactionExecutor {
 
     private boolean fork040Enable;
 
+    private FastVM fvm;
+
+    private AccessHint accessHint;
+
     public TransactionExecutor(
             Transaction transaction, TransactionContext context, KernelInterface kernel) {
 
@@ -65,6 +69,16 @@ public class TransactionExecutor {
             KernelInterface kernel,
             boolean fork040Enable) {
 
+        this(transaction, context, kernel, fork040Enable, FastVM.current());
+    }
+
+    public TransactionExecutor(
+            Transaction transaction,
+            TransactionContext context,
+            KernelInterface kernel,
+            boolean fork040Enable,
+            FastVM fvm) {
+
         this.kernel = kernel;
         this.kernelChild = this.kernel.makeChildKernelInterface();
         this.kernelGrandChild = this.kernelChild.makeChildKernelInterface();
@@ -76,6 +90,7 @@ public class TransactionExecutor {
         this.transactionResult =
                 new FastVmTransactionResult(FastVmResultCode.SUCCESS, energyLeft, new byte[0]);
         this.fork040Enable = fork040Enable;
+        this.fvm = fvm;
     }
 
     /**
@@ -91,47 +106,48 @@ public class TransactionExecutor {
     }
 
     private TransactionResult performChecksAndExecute() {
-        synchronized (LOCK) {
-            // prepare, preliminary check
-            if (performChecks()) {
-
-                KernelInterface track = this.kernelChild.makeChildKernelInterface();
-
-                // increase nonce
-                track.incrementNonce(this.transaction.getSenderAddress());
-
-                // charge nrg cost
-                // Note: if the tx is a inpool tx, it will temp charge more balance for the
-                // account
-                // once the block info been updated. the balance in pendingPool will correct.
-                BigInteger nrgLimit = BigInteger.valueOf(this.transaction.getEnergyLimit());
-                BigInteger nrgPrice = BigInteger.valueOf(this.transaction.getEnergyPrice());
-                BigInteger txNrgCost = nrgLimit.multiply(nrgPrice);
-                track.deductEnergyCost(this.transaction.getSenderAddress(), txNrgCost);
-                track.commit();
-
-                // run the logic
-                if (this.transaction.isContractCreationTransaction()) {
-                    executeContractCreationTransaction();
-                } else {
-                    executeNonContractCreationTransaction();
-                }
-            }
-
-            // kernelGrandchild holds all state changes that must be flushed upon SUCCESS.
-            if (transactionResult.getResultCode().isSuccess()) {
-                this.kernelGrandChild.commit();
+        AccessTracker.readAccount(this.transaction.getSenderAddress());
+
+        // prepare, preliminary check
+        if (performChecks()) {
+            AccessTracker.writeAccount(this.transaction.getSenderAddress());
+
+            KernelInterface track = this.kernelChild.makeChildKernelInterface();
+
+            // increase nonce
+            track.incrementNonce(this.transaction.getSenderAddress());
+
+            // charge nrg cost
+            // Note: if the tx is a inpool tx, it will temp charge more balance for the
+            // account
+            // once the block info been updated. the balance in pendingPool will correct.
+            BigInteger nrgLimit = BigInteger.valueOf(this.transaction.getEnergyLimit());
+            BigInteger nrgPrice = BigInteger.valueOf(this.transaction.getEnergyPrice());
+            BigInteger txNrgCost = nrgLimit.multiply(nrgPrice);
+            track.deductEnergyCost(this.transaction.getSenderAddress(), txNrgCost);
+            track.commit();
+
+            // run the logic
+            if (this.transaction.isContractCreationTransaction()) {
+                executeContractCreationTransaction();
+            } else {
+                executeNonContractCreationTransaction();
             }
+        }
 
-            // kernelChild holds state changes that must be flushed on anything that is not
-            // REJECTED.
-            if (!transactionResult.getResultCode().isRejected()) {
-                this.kernelChild.commit();
-            }
+        // kernelGrandchild holds all state changes that must be flushed upon SUCCESS.
+        if (transactionResult.getResultCode().isSuccess()) {
+            this.kernelGrandChild.commit();
+        }
 
-            transactionResult.setKernelInterface(this.kernel);
-            return transactionResult;
+        // kernelChild holds state changes that must be flushed on anything that is not
+        // REJECTED.
+        if (!transactionResult.getResultCode().isRejected()) {
+            this.kernelChild.commit();
         }
+
+        transactionResult.setKernelInterface(this.kernel);
+        return transactionResult;
     }
 
     /**
@@ -194,23 +210,30 @@ public class TransactionExecutor {
         PrecompiledContract pc =
                 precompiledFactory.getPrecompiledContract(this.context, this.kernelGrandChild);
         if (pc != null) {
+            AccessTracker.markOpaque();
             transactionResult = pc.execute(transaction.getData(), context.getTransactionEnergy());
         } else {
             // execute code
+            AccessTracker.readAccount(transaction.getDestinationAddress());
             byte[] code = this.kernelGrandChild.getCode(transaction.getDestinationAddress());
             if (!ArrayUtils.isEmpty(code)) {
-                FastVM fvm = new FastVM();
                 if (fork040Enable) {
-                    transactionResult = fvm.run_v1(code, context, this.kernelGrandChild);
+                    transactionResult =
+                            fvm.run_v1(code, context, this.kernelGrandChild, accessHint);
 
                 } else {
-                    transactionResult = fvm.run(code, context, this.kernelGrandChild);
+                    transactionResult = fvm.run(code, context, this.kernelGrandChild, accessHint);
                 }
             }
         }
 
         // transfer value
         BigInteger txValue = new BigInteger(1, transaction.getValue());
+        AccessTracker.transfer(
+                this.kernelGrandChild,
+                transaction.getSenderAddress(),
+                transaction.getDestinationAddress(),
+                txValue);
         this.kernelGrandChild.adjustBalance(transaction.getSenderAddress(), txValue.negate());
         this.kernelGrandChild.adjustBalance(transaction.getDestinationAddress(), txValue);
     }
@@ -219,6 +242,7 @@ public class TransactionExecutor {
     private void executeContractCreationTransaction() {
         // TODO: computing contract address needs to be done correctly. This is a hack.
         Address contractAddress = transaction.getContractAddress();
+        AccessTracker.writeAccount(contractAddress);
 
         boolean requireNewAccount = true;
         if (this.kernelGrandChild.hasAccountState(contractAddress)) {
@@ -248,7 +272,6 @@ public class TransactionExecutor {
 
         // execute contract deployer
         if (!ArrayUtils.isEmpty(transaction.getData())) {
-            FastVM fvm = new FastVM();
             if (fork040Enable) {
                 transactionResult =
                         fvm.run_v1(transaction.getData(), context, this.kernelGrandChild);
@@ -267,6 +290,16 @@ public class TransactionExecutor {
         this.kernelGrandChild.adjustBalance(contractAddress, txValue);
     }
 
+    /**
+     * Declares the accounts and storage slots the transaction is expected to access, so that they
+     * are loaded in bulk before the contract code runs.
+     *
+     * @param accessHint the expected accesses, or null to load everything on demand
+     */
+    public void setAccessHint(AccessHint accessHint) {
+        this.accessHint = accessHint;
+    }
+
     public void enableFork040() {
         fork040Enable = true;
     }
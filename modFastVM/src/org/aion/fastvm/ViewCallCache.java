@@ -0,0 +1,167 @@
+package org.aion.fastvm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.aion.mcf.vm.types.KernelInterfaceForFastVM;
+import org.aion.types.Address;
+import org.aion.types.ByteArrayWrapper;
+
+/**
+ * Memoizes the results of read-only executions, i.e. executions flagged {@link
+ * FastVM#FLAG_STATIC}, so that repeated view calls are answered without entering the VM.
+ *
+ * <p>Results are keyed by the code hash, the revision and the encoded execution context, which
+ * holds the contract and caller addresses, the call data and the block fields. A result is reused
+ * only while every storage slot its execution read still holds the value it read. Executions that
+ * read other state (balances, codes, block hashes) or make calls are not memoized.
+ */
+final class ViewCallCache {
+
+    /** A storage slot read by an execution, and the value it read. */
+    private static final class Read {
+        private final Address address;
+        private final byte[] key;
+        private final byte[] value;
+
+        private Read(Address address, byte[] key, byte[] value) {
+            this.address = address;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /** A memoized result and the storage it depends on. */
+    private static final class Entry {
+        private final byte[] result;
+        private final List<Read> reads;
+
+        private Entry(byte[] result, List<Read> reads) {
+            this.result = result;
+            this.reads = reads;
+        }
+    }
+
+    /** An execution whose storage reads are being recorded. */
+    private static final class Frame {
+        private final List<Read> reads = new ArrayList<>();
+        private boolean memoizable = true;
+    }
+
+    private static final ThreadLocal<Deque<Frame>> frames =
+            ThreadLocal.withInitial(ArrayDeque::new);
+
+    // results by key, least recently used first
+    private final Map<ByteArrayWrapper, Entry> results;
+
+    /**
+     * Creates a view call cache.
+     *
+     * @param capacity the maximum number of results to remember
+     */
+    ViewCallCache(int capacity) {
+        this.results =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Entry> e) {
+                        return size() > capacity;
+                    }
+                };
+    }
+
+    /**
+     * Returns the key of an execution.
+     *
+     * @param codeHash 32-byte hash of the code
+     * @param revision
+     * @param context the encoded execution context
+     * @return
+     */
+    static ByteArrayWrapper keyOf(byte[] codeHash, int revision, byte[] context) {
+        ByteBuffer buffer = ByteBuffer.allocate(codeHash.length + Integer.BYTES + context.length);
+        buffer.put(codeHash).putInt(revision).put(context);
+        return new ByteArrayWrapper(buffer.array());
+    }
+
+    /**
+     * Returns the memoized result of an execution, if the storage it read is unchanged in the
+     * given kernel.
+     *
+     * @param key the key of the execution
+     * @param kernel the kernel the execution would run against
+     * @return the result, or null if there is none
+     */
+    FastVmTransactionResult lookup(ByteArrayWrapper key, KernelInterfaceForFastVM kernel) {
+        Entry entry;
+        synchronized (results) {
+            entry = results.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+
+        for (Read read : entry.reads) {
+            AccessTracker.readStorage(read.address, read.key);
+            if (!Arrays.equals(read.value, kernel.getStorage(read.address, read.key))) {
+                synchronized (results) {
+                    results.remove(key, entry);
+                }
+                return null;
+            }
+        }
+        return FastVmTransactionResult.fromBytes(entry.result);
+    }
+
+    /**
+     * Starts recording the storage reads of an execution on the current thread. Every call must
+     * be paired with {@link #end(ByteArrayWrapper, FastVmTransactionResult)}.
+     */
+    static void begin() {
+        frames.get().push(new Frame());
+    }
+
+    /**
+     * Stops recording the current execution, and memoizes its result if it only read storage.
+     *
+     * @param key the key of the execution
+     * @param result the result, or null if the execution failed to complete
+     */
+    void end(ByteArrayWrapper key, FastVmTransactionResult result) {
+        Frame frame = frames.get().pop();
+        if (result == null || !frame.memoizable) {
+            return;
+        }
+
+        Entry entry = new Entry(result.toBytes(), frame.reads);
+        synchronized (results) {
+            results.put(key, entry);
+        }
+    }
+
+    /**
+     * Records a storage read of the current execution.
+     *
+     * @param address
+     * @param key
+     * @param value
+     */
+    static void recordRead(Address address, byte[] key, byte[] value) {
+        Frame frame = frames.get().peek();
+        if (frame != null) {
+            frame.reads.add(new Read(address, key, value));
+        }
+    }
+
+    /** Records an access of the current execution to state other than storage. */
+    static void markNotMemoizable() {
+        Frame frame = frames.get().peek();
+        if (frame != null) {
+            frame.memoizable = false;
+        }
+    }
+}
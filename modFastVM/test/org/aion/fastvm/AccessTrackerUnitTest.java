@@ -0,0 +1,108 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.aion.types.Address;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Test;
+
+/** Unit tests for AccessTracker class. */
+public class AccessTrackerUnitTest {
+    private Address account = Address.wrap(RandomUtils.nextBytes(Address.SIZE));
+    private Address other = Address.wrap(RandomUtils.nextBytes(Address.SIZE));
+    private byte[] key = RandomUtils.nextBytes(16);
+
+    @After
+    public void tearDown() {
+        AccessTracker.end();
+    }
+
+    @Test
+    public void testRecordingWithoutTrackerIsNoOp() {
+        AccessTracker.readAccount(account);
+        AccessTracker.writeStorage(account, key);
+        AccessTracker.markOpaque();
+    }
+
+    @Test
+    public void testReadAfterWriteConflicts() {
+        AccessTracker writer = track(() -> AccessTracker.writeAccount(account));
+        AccessTracker reader = track(() -> AccessTracker.readAccount(account));
+
+        AccessTracker committed = new AccessTracker();
+        committed.addWrites(writer);
+        assertTrue(reader.conflictsWith(committed));
+    }
+
+    @Test
+    public void testDisjointAccessesDoNotConflict() {
+        AccessTracker first =
+                track(
+                        () -> {
+                            AccessTracker.writeAccount(account);
+                            AccessTracker.writeStorage(account, key);
+                        });
+        AccessTracker second =
+                track(
+                        () -> {
+                            AccessTracker.writeAccount(other);
+                            AccessTracker.readStorage(other, key);
+                        });
+
+        AccessTracker committed = new AccessTracker();
+        committed.addWrites(first);
+        assertFalse(second.conflictsWith(committed));
+    }
+
+    @Test
+    public void testStorageSlotConflict() {
+        AccessTracker writer = track(() -> AccessTracker.writeStorage(account, key));
+        AccessTracker sameSlot = track(() -> AccessTracker.readStorage(account, key));
+        AccessTracker otherSlot =
+                track(() -> AccessTracker.readStorage(account, RandomUtils.nextBytes(16)));
+
+        AccessTracker committed = new AccessTracker();
+        committed.addWrites(writer);
+        assertTrue(sameSlot.conflictsWith(committed));
+        assertFalse(otherSlot.conflictsWith(committed));
+    }
+
+    @Test
+    public void testDestroyedAccountConflictsWithStorageRead() {
+        AccessTracker destroyer = track(() -> AccessTracker.destroyAccount(account));
+        AccessTracker reader = track(() -> AccessTracker.readStorage(account, key));
+
+        AccessTracker committed = new AccessTracker();
+        committed.addWrites(destroyer);
+        assertTrue(reader.conflictsWith(committed));
+    }
+
+    @Test
+    public void testOpaqueTransactions() {
+        AccessTracker opaque = track(AccessTracker::markOpaque);
+        AccessTracker reader = track(() -> AccessTracker.readAccount(other));
+
+        AccessTracker committed = new AccessTracker();
+        assertFalse(opaque.conflictsWith(committed));
+
+        committed.addAccountWrite(account);
+        assertTrue(opaque.conflictsWith(committed));
+        assertFalse(reader.conflictsWith(committed));
+
+        committed.addWrites(opaque);
+        assertTrue(reader.conflictsWith(committed));
+    }
+
+    private static AccessTracker track(Runnable accesses) {
+        AccessTracker tracker = new AccessTracker();
+        AccessTracker.begin(tracker);
+        try {
+            accesses.run();
+        } finally {
+            AccessTracker.end();
+        }
+        return tracker;
+    }
+}
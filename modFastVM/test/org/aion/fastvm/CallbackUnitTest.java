@@ -151,6 +151,28 @@ public class CallbackUnitTest {
         fail();
     }
 
+    @Test
+    public void testStackIsThreadLocal() throws InterruptedException {
+        Pair pair = mockEmptyPair();
+        Callback.push(pair);
+
+        boolean[] emptyInOtherThread = new boolean[1];
+        Thread other =
+                new Thread(
+                        () -> {
+                            try {
+                                Callback.pop();
+                            } catch (NoSuchElementException e) {
+                                emptyInOtherThread[0] = true;
+                            }
+                        });
+        other.start();
+        other.join();
+
+        assertTrue(emptyInOtherThread[0]);
+        Callback.pop();
+    }
+
     @Test
     public void testEachDepthOfPoppingLargeStack() {
         int reps = RandomUtils.nextInt(10, 30);
@@ -387,6 +409,36 @@ public class CallbackUnitTest {
                         .getData());
     }
 
+    @Test
+    public void testPutStorageBatch() {
+        RepositoryCache<AccountState, IBlockStoreBase<?, ?>> repo =
+                new AionRepositoryCache(AionRepositoryImpl.createForTesting(repoConfig));
+        pushNewRepo(repo);
+        int num = RandomUtils.nextInt(3, 10);
+        Address[] addresses = new Address[num];
+        byte[][] keys = new byte[num][];
+        byte[][] values = new byte[num][];
+        ByteBuffer entries = ByteBuffer.allocate(num * (Address.SIZE + 2 * DataWordImpl.BYTES));
+        for (int i = 0; i < num; i++) {
+            // consecutive entries share an address
+            addresses[i] = (i % 2 == 1) ? addresses[i - 1] : getNewAddress();
+            keys[i] = RandomUtils.nextBytes(DataWordImpl.BYTES);
+            values[i] = RandomUtils.nextBytes(DataWordImpl.BYTES);
+            entries.put(addresses[i].toBytes()).put(keys[i]).put(values[i]);
+        }
+        Callback.putStorageBatch(entries.array());
+        for (int i = 0; i < num; i++) {
+            assertArrayEquals(
+                    values[i],
+                    new DataWordImpl(
+                                    repo.getStorageValue(
+                                                    addresses[i],
+                                                    new DataWordImpl(keys[i]).toWrapper())
+                                            .getData())
+                            .getData());
+        }
+    }
+
     @Test
     public void testPutStorageMultipleEntries() {
         int num = RandomUtils.nextInt(3, 10);
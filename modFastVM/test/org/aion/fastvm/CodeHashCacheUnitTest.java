@@ -0,0 +1,68 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import org.aion.crypto.HashUtil;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+/** Unit tests for CodeHashCache class. */
+public class CodeHashCacheUnitTest {
+
+    @Test
+    public void testHashMatchesCodeHash() {
+        CodeHashCache cache = new CodeHashCache(16, 16);
+        byte[] code = RandomUtils.nextBytes(1024);
+        assertArrayEquals(HashUtil.h256(code), cache.hashOf(code));
+    }
+
+    @Test
+    public void testSameArrayIsHashedOnce() {
+        CodeHashCache cache = new CodeHashCache(16, 16);
+        byte[] code = RandomUtils.nextBytes(1024);
+        assertSame(cache.hashOf(code), cache.hashOf(code));
+    }
+
+    @Test
+    public void testEqualCopyHitsContentCache() {
+        CodeHashCache cache = new CodeHashCache(16, 16);
+        byte[] code = RandomUtils.nextBytes(1024);
+        byte[] copy = Arrays.copyOf(code, code.length);
+        assertSame(cache.hashOf(code), cache.hashOf(copy));
+    }
+
+    @Test
+    public void testModifiedArrayIsHashedAgain() {
+        CodeHashCache cache = new CodeHashCache(16, 16);
+        byte[] code = RandomUtils.nextBytes(1024);
+        cache.hashOf(code);
+        code[0] ^= 1;
+        assertArrayEquals(HashUtil.h256(code), cache.hashOf(code));
+    }
+
+    @Test
+    public void testContentKeyIsNotTheCallerArray() {
+        CodeHashCache cache = new CodeHashCache(16, 16);
+        byte[] code = RandomUtils.nextBytes(1024);
+        byte[] original = Arrays.copyOf(code, code.length);
+        byte[] hash = cache.hashOf(code);
+        code[0] ^= 1;
+        assertSame(hash, cache.hashOf(original));
+    }
+
+    @Test
+    public void testEvictedEntriesAreRecomputed() {
+        CodeHashCache cache = new CodeHashCache(1, 2);
+        byte[][] codes = new byte[8][];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = RandomUtils.nextBytes(64);
+            cache.hashOf(codes[i]);
+        }
+        for (byte[] code : codes) {
+            byte[] copy = Arrays.copyOf(code, code.length);
+            assertArrayEquals(HashUtil.h256(code), cache.hashOf(copy));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/** Unit tests for ContextBuffers class. */
+public class ContextBuffersUnitTest {
+
+    @Test
+    public void testBufferIsReusedAtSameLevel() {
+        ContextBuffers buffers = ContextBuffers.current();
+
+        ByteBuffer first = buffers.acquire(100);
+        buffers.release();
+        ByteBuffer second = buffers.acquire(200);
+        buffers.release();
+
+        assertSame(first, second);
+        assertTrue(first.isDirect());
+        assertEquals(0, second.position());
+    }
+
+    @Test
+    public void testNestedLevelsUseDistinctBuffers() {
+        ContextBuffers buffers = ContextBuffers.current();
+
+        ByteBuffer[] nested = new ByteBuffer[10];
+        for (int i = 0; i < nested.length; i++) {
+            nested[i] = buffers.acquire(100);
+        }
+        for (int i = 0; i < nested.length; i++) {
+            buffers.release();
+        }
+
+        for (int i = 1; i < nested.length; i++) {
+            assertNotSame(nested[i - 1], nested[i]);
+        }
+    }
+
+    @Test
+    public void testBufferGrows() {
+        ContextBuffers buffers = ContextBuffers.current();
+
+        ByteBuffer buffer = buffers.acquire(ContextBuffers.INITIAL_CAPACITY * 3);
+        buffers.release();
+
+        assertTrue(buffer.capacity() >= ContextBuffers.INITIAL_CAPACITY * 3);
+    }
+
+    @Test
+    public void testOversizedContextFallsBack() {
+        ContextBuffers buffers = ContextBuffers.current();
+
+        assertNull(buffers.acquire(ContextBuffers.MAX_CAPACITY + 1));
+        buffers.release();
+
+        // the level is restored after the fallback
+        ByteBuffer first = buffers.acquire(100);
+        buffers.release();
+        assertSame(first, buffers.acquire(100));
+        buffers.release();
+    }
+}
@@ -121,6 +121,25 @@ public class FastVMTest {
         assertEquals(16, result.getReturnData().length);
     }
 
+    @Test
+    public void testRunAfterClose() {
+        FastVM vm = new FastVM();
+        byte[] code = Hex.decode("6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF60020160E052601060E0F3");
+
+        for (int i = 0; i < 3; i++) {
+            FastVmTransactionResult result =
+                    vm.run(code, newExecutionContext(), wrapInKernelInterface(repo));
+            assertEquals(FastVmResultCode.SUCCESS, result.getResultCode());
+            assertEquals(19985, result.getEnergyRemaining());
+        }
+
+        vm.close();
+        FastVmTransactionResult result =
+                vm.run(code, newExecutionContext(), wrapInKernelInterface(repo));
+        assertEquals(FastVmResultCode.SUCCESS, result.getResultCode());
+        vm.close();
+    }
+
     @Test
     public void testGetCodeByAddress1() {
         ExecutionContext ctx = newExecutionContext();
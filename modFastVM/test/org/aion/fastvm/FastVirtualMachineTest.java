@@ -0,0 +1,324 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.aion.crypto.ECKey;
+import org.aion.crypto.ECKeyFac;
+import org.aion.db.impl.DBVendor;
+import org.aion.db.impl.DatabaseFactory;
+import org.aion.interfaces.db.ContractDetails;
+import org.aion.interfaces.db.PruneConfig;
+import org.aion.interfaces.db.RepositoryConfig;
+import org.aion.interfaces.vm.DataWord;
+import org.aion.mcf.config.CfgPrune;
+import org.aion.mcf.vm.types.DataWordImpl;
+import org.aion.mcf.vm.types.KernelInterfaceForFastVM;
+import org.aion.types.Address;
+import org.aion.types.ByteArrayWrapper;
+import org.aion.util.bytes.ByteUtil;
+import org.aion.util.conversions.Hex;
+import org.aion.vm.api.interfaces.IExecutionLog;
+import org.aion.vm.api.interfaces.KernelInterface;
+import org.aion.vm.api.interfaces.SimpleFuture;
+import org.aion.vm.api.interfaces.TransactionInterface;
+import org.aion.vm.api.interfaces.TransactionResult;
+import org.aion.zero.impl.db.AionRepositoryCache;
+import org.aion.zero.impl.db.AionRepositoryImpl;
+import org.aion.zero.impl.db.ContractDetailsAion;
+import org.aion.zero.types.AionTransaction;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs batches of transactions through the parallel {@link FastVirtualMachine} and checks that the
+ * state and results match those of the sequential one.
+ */
+public class FastVirtualMachineTest {
+
+    // increments slot 0 and logs the new count
+    private static final byte[] COUNTER_CODE =
+            Hex.decode("6000546001018060005560005260106000a000");
+
+    // stores the first call data word at the slot given by the second one
+    private static final byte[] STORE_CODE = Hex.decode("6000356010355500");
+
+    // stores the balance of the coinbase at slot 0
+    private static final byte[] COINBASE_BALANCE_CODE = Hex.decode("413160005500");
+
+    private static final BigInteger FUNDS = BigInteger.TEN.pow(18);
+    private static final long NRG_LIMIT = 100_000L;
+    private static final long NRG_PRICE = 1L;
+
+    private static final int ROUNDS = 10;
+
+    private Address blockCoinbase = Address.wrap(RandomUtils.nextBytes(32));
+    private long blockNumber = 1;
+    private long blockTimestamp = System.currentTimeMillis() / 1000;
+    private long blockNrgLimit = 5000000;
+    private DataWord blockDifficulty = new DataWordImpl(0x100000000L);
+
+    private Address counter = Address.wrap(RandomUtils.nextBytes(32));
+    private Address store = Address.wrap(RandomUtils.nextBytes(32));
+    private Address coinbaseBalance = Address.wrap(RandomUtils.nextBytes(32));
+
+    private List<ECKey> senders;
+    private RepositoryConfig repoConfig;
+
+    @Before
+    public void setup() {
+        senders = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            senders.add(ECKeyFac.inst().create());
+        }
+
+        repoConfig =
+                new RepositoryConfig() {
+                    @Override
+                    public String getDbPath() {
+                        return "";
+                    }
+
+                    @Override
+                    public PruneConfig getPruneConfig() {
+                        return new CfgPrune(false);
+                    }
+
+                    @Override
+                    public ContractDetails contractDetailsImpl() {
+                        return ContractDetailsAion.createForTesting(0, 1000000).getDetails();
+                    }
+
+                    @Override
+                    public Properties getDatabaseConfig(String db_name) {
+                        Properties props = new Properties();
+                        props.setProperty(DatabaseFactory.Props.DB_TYPE, DBVendor.MOCKDB.toValue());
+                        props.setProperty(DatabaseFactory.Props.ENABLE_HEAP_CACHE, "false");
+                        return props;
+                    }
+                };
+    }
+
+    @Test
+    public void testNonConflictingTransactions() {
+        List<AionTransaction> txs = new ArrayList<>();
+        txs.add(transfer(senders.get(0), 0, Address.wrap(RandomUtils.nextBytes(32))));
+        txs.add(transfer(senders.get(1), 0, Address.wrap(RandomUtils.nextBytes(32))));
+        txs.add(call(senders.get(2), 0, store, storeData(1, 1)));
+        txs.add(call(senders.get(3), 0, store, storeData(2, 2)));
+        txs.add(call(senders.get(4), 0, store, storeData(3, 3)));
+
+        assertSameAsSequential(txs);
+    }
+
+    @Test
+    public void testConflictingStorageSlot() {
+        List<AionTransaction> txs = new ArrayList<>();
+        txs.add(call(senders.get(0), 0, counter, new byte[0]));
+        txs.add(call(senders.get(1), 0, store, storeData(7, 1)));
+        txs.add(call(senders.get(2), 0, counter, new byte[0]));
+        txs.add(call(senders.get(3), 0, store, storeData(8, 1)));
+        txs.add(call(senders.get(0), 1, counter, new byte[0]));
+        txs.add(transfer(senders.get(4), 0, Address.wrap(RandomUtils.nextBytes(32))));
+
+        AionRepositoryCache repo = assertSameAsSequential(txs);
+        assertEquals(new DataWordImpl(3), storage(repo, counter, 0));
+        assertEquals(new DataWordImpl(8), storage(repo, store, 1));
+    }
+
+    @Test
+    public void testCoinbase() {
+        List<AionTransaction> txs = new ArrayList<>();
+        txs.add(call(senders.get(0), 0, coinbaseBalance, new byte[0]));
+        txs.add(transfer(senders.get(1), 0, blockCoinbase));
+        txs.add(call(senders.get(2), 0, counter, new byte[0]));
+        txs.add(call(senders.get(3), 0, coinbaseBalance, new byte[0]));
+        txs.add(transfer(senders.get(4), 0, blockCoinbase));
+
+        assertSameAsSequential(txs);
+    }
+
+    @Test
+    public void testConcurrentSnapshotReads() throws Exception {
+        AionRepositoryCache repo =
+                new AionRepositoryCache(AionRepositoryImpl.createForTesting(repoConfig));
+        int numAccounts = 64;
+        Address[] accounts = new Address[numAccounts];
+        for (int i = 0; i < numAccounts; i++) {
+            accounts[i] = Address.wrap(RandomUtils.nextBytes(32));
+            repo.createAccount(accounts[i]);
+            repo.addBalance(accounts[i], BigInteger.valueOf(i + 1));
+            repo.addStorageRow(
+                    accounts[i],
+                    new DataWordImpl(i).toWrapper(),
+                    new ByteArrayWrapper(new DataWordImpl(i + 1).getNoLeadZeroesData()));
+        }
+
+        // the snapshot is read through by all the speculative executions of a batch
+        KernelInterface snapshot = wrapInKernelInterface(repo).makeChildKernelInterface();
+
+        int numThreads = Runtime.getRuntime().availableProcessors() * 2;
+        ExecutorService es = Executors.newFixedThreadPool(numThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            int offset = t;
+            futures.add(
+                    es.submit(
+                            () -> {
+                                start.await();
+                                KernelInterface child = snapshot.makeChildKernelInterface();
+                                for (int i = 0; i < numAccounts; i++) {
+                                    int j = (i + offset) % numAccounts;
+                                    assertEquals(
+                                            BigInteger.valueOf(j + 1),
+                                            child.getBalance(accounts[j]));
+                                    assertArrayEquals(
+                                            new DataWordImpl(j + 1).getData(),
+                                            new DataWordImpl(
+                                                            child.getStorage(
+                                                                    accounts[j],
+                                                                    new DataWordImpl(j).getData()))
+                                                    .getData());
+                                }
+                                return null;
+                            }));
+        }
+
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        es.shutdown();
+        es.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Runs the transactions sequentially and, several times, in parallel on identical
+     * repositories, and checks that the results and state roots are the same.
+     *
+     * @return the repository the transactions were run sequentially on
+     */
+    private AionRepositoryCache assertSameAsSequential(List<AionTransaction> txs) {
+        AionRepositoryImpl expectedDb = AionRepositoryImpl.createForTesting(repoConfig);
+        AionRepositoryCache expectedRepo = newRepository(expectedDb);
+        TransactionResult[] expected = run(new FastVirtualMachine(false), expectedRepo, txs);
+        expectedRepo.flush();
+        expectedDb.flush();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            AionRepositoryImpl db = AionRepositoryImpl.createForTesting(repoConfig);
+            AionRepositoryCache repo = newRepository(db);
+            TransactionResult[] results = run(new FastVirtualMachine(true), repo, txs);
+            repo.flush();
+            db.flush();
+
+            for (int i = 0; i < txs.size(); i++) {
+                assertSameResult(expected[i], results[i]);
+            }
+            assertArrayEquals(expectedDb.getRoot(), db.getRoot());
+        }
+        return expectedRepo;
+    }
+
+    private TransactionResult[] run(
+            FastVirtualMachine vm, AionRepositoryCache repo, List<AionTransaction> txs) {
+        SimpleFuture<TransactionResult>[] futures =
+                vm.run(wrapInKernelInterface(repo), txs.toArray(new TransactionInterface[0]));
+
+        TransactionResult[] results = new TransactionResult[futures.length];
+        for (int i = 0; i < futures.length; i++) {
+            results[i] = futures[i].get();
+            ((KernelInterfaceForFastVM) results[i].getKernelInterface())
+                    .getRepositoryCache()
+                    .flushCopiesTo(repo, false);
+        }
+        return results;
+    }
+
+    private static void assertSameResult(TransactionResult expected, TransactionResult actual) {
+        assertEquals(expected.getResultCode(), actual.getResultCode());
+        assertEquals(expected.getEnergyRemaining(), actual.getEnergyRemaining());
+        assertArrayEquals(expected.getReturnData(), actual.getReturnData());
+
+        List<IExecutionLog> expectedLogs = expected.getSideEffects().getExecutionLogs();
+        List<IExecutionLog> actualLogs = actual.getSideEffects().getExecutionLogs();
+        assertEquals(expectedLogs.size(), actualLogs.size());
+        for (int i = 0; i < expectedLogs.size(); i++) {
+            assertEquals(
+                    expectedLogs.get(i).getSourceAddress(), actualLogs.get(i).getSourceAddress());
+            assertArrayEquals(expectedLogs.get(i).getData(), actualLogs.get(i).getData());
+        }
+    }
+
+    private AionRepositoryCache newRepository(AionRepositoryImpl db) {
+        AionRepositoryCache repo = new AionRepositoryCache(db);
+        repo.createAccount(counter);
+        repo.saveCode(counter, COUNTER_CODE);
+        repo.createAccount(store);
+        repo.saveCode(store, STORE_CODE);
+        repo.createAccount(coinbaseBalance);
+        repo.saveCode(coinbaseBalance, COINBASE_BALANCE_CODE);
+        for (ECKey sender : senders) {
+            repo.addBalance(Address.wrap(sender.getAddress()), FUNDS);
+        }
+        return repo;
+    }
+
+    private static DataWordImpl storage(AionRepositoryCache repo, Address address, int key) {
+        return new DataWordImpl(
+                repo.getStorageValue(address, new DataWordImpl(key).toWrapper()).getData());
+    }
+
+    private static byte[] storeData(int value, int key) {
+        return ByteUtil.merge(new DataWordImpl(value).getData(), new DataWordImpl(key).getData());
+    }
+
+    private static AionTransaction transfer(ECKey sender, long nonce, Address to) {
+        AionTransaction tx =
+                new AionTransaction(
+                        BigInteger.valueOf(nonce).toByteArray(),
+                        to,
+                        BigInteger.valueOf(1000).toByteArray(),
+                        new byte[0],
+                        NRG_LIMIT,
+                        NRG_PRICE);
+        tx.sign(sender);
+        return tx;
+    }
+
+    private static AionTransaction call(ECKey sender, long nonce, Address to, byte[] data) {
+        AionTransaction tx =
+                new AionTransaction(
+                        BigInteger.valueOf(nonce).toByteArray(),
+                        to,
+                        new byte[0],
+                        data,
+                        NRG_LIMIT,
+                        NRG_PRICE);
+        tx.sign(sender);
+        return tx;
+    }
+
+    private KernelInterfaceForFastVM wrapInKernelInterface(AionRepositoryCache cache) {
+        return new KernelInterfaceForFastVM(
+                cache,
+                true,
+                false,
+                blockDifficulty,
+                blockNumber,
+                blockTimestamp,
+                blockNrgLimit,
+                blockCoinbase);
+    }
+}
@@ -0,0 +1,75 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Unit tests for HotSetManifest class. */
+public class HotSetManifestUnitTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFromBytes() {
+        byte[] hash1 = RandomUtils.nextBytes(32);
+        byte[] hash2 = RandomUtils.nextBytes(32);
+        ByteBuffer buffer = ByteBuffer.allocate(2 * 48);
+        buffer.put(hash1).putInt(FastVM.REVISION_AION).putInt(0).putLong(100);
+        buffer.put(hash2).putInt(FastVM.REVISION_AION_V1).putInt(FastVM.FLAG_STATIC).putLong(7);
+
+        HotSetManifest manifest = HotSetManifest.fromBytes(buffer.array());
+
+        assertEquals(2, manifest.entries().size());
+        assertEntry(manifest.entries().get(0), hash1, FastVM.REVISION_AION, 0, 100);
+        assertEntry(
+                manifest.entries().get(1), hash2, FastVM.REVISION_AION_V1, FastVM.FLAG_STATIC, 7);
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        byte[] hash = RandomUtils.nextBytes(32);
+        HotSetManifest manifest =
+                new HotSetManifest(
+                        Collections.singletonList(
+                                new HotSetManifest.Entry(hash, FastVM.REVISION_AION, 0, 42)));
+        Path file = folder.getRoot().toPath().resolve("hotset");
+
+        manifest.write(file);
+        HotSetManifest read = HotSetManifest.read(file);
+
+        assertEquals(1, read.entries().size());
+        assertEntry(read.entries().get(0), hash, FastVM.REVISION_AION, 0, 42);
+    }
+
+    @Test
+    public void testEmptyManifest() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("hotset");
+        new HotSetManifest(Collections.emptyList()).write(file);
+        assertEquals(0, HotSetManifest.read(file).entries().size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadMalformedEntry() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("hotset");
+        Files.write(file, Collections.singletonList("abcd 5 0 1"), StandardCharsets.UTF_8);
+        HotSetManifest.read(file);
+    }
+
+    private static void assertEntry(
+            HotSetManifest.Entry entry, byte[] hash, int revision, int flags, long hits) {
+        assertArrayEquals(hash, entry.getCodeHash());
+        assertEquals(revision, entry.getRevision());
+        assertEquals(flags, entry.getFlags());
+        assertEquals(hits, entry.getHits());
+    }
+}
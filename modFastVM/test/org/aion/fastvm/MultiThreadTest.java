@@ -99,7 +99,7 @@ public class MultiThreadTest {
 
     @Test
     public void testRun() throws InterruptedException {
-        int numThread = 1;
+        int numThread = Runtime.getRuntime().availableProcessors();
         ExecutorService es = Executors.newFixedThreadPool(numThread);
 
         long t1 = System.nanoTime();
@@ -0,0 +1,129 @@
+package org.aion.fastvm;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import org.aion.db.impl.DBVendor;
+import org.aion.db.impl.DatabaseFactory;
+import org.aion.interfaces.db.ContractDetails;
+import org.aion.interfaces.db.PruneConfig;
+import org.aion.interfaces.db.RepositoryConfig;
+import org.aion.mcf.config.CfgPrune;
+import org.aion.mcf.vm.types.DataWordImpl;
+import org.aion.mcf.vm.types.KernelInterfaceForFastVM;
+import org.aion.types.Address;
+import org.aion.zero.impl.db.AionRepositoryCache;
+import org.aion.zero.impl.db.AionRepositoryImpl;
+import org.aion.zero.impl.db.ContractDetailsAion;
+import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Measures the bytes allocated per SLOAD callback. It is not a unit test; run its main method on
+ * the test classpath.
+ *
+ * <p>The repository allocates on its own, so the callbacks are compared with calling the kernel
+ * directly: the difference is the allocation of the callback path. The buffered path should add
+ * nothing. The array path, used before the storage buffer, allocates the address and key arrays
+ * passed by the native side and wraps the address on every call.
+ */
+public class StorageCallbackBenchmark {
+
+    private static final int SLOTS = 64;
+    private static final int WARMUP = 1_000_000;
+    private static final int CALLS = 10_000_000;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        RepositoryConfig repoConfig =
+                new RepositoryConfig() {
+                    @Override
+                    public String getDbPath() {
+                        return "";
+                    }
+
+                    @Override
+                    public PruneConfig getPruneConfig() {
+                        return new CfgPrune(false);
+                    }
+
+                    @Override
+                    public ContractDetails contractDetailsImpl() {
+                        return ContractDetailsAion.createForTesting(0, 1000000).getDetails();
+                    }
+
+                    @Override
+                    public Properties getDatabaseConfig(String db_name) {
+                        Properties props = new Properties();
+                        props.setProperty(DatabaseFactory.Props.DB_TYPE, DBVendor.MOCKDB.toValue());
+                        props.setProperty(DatabaseFactory.Props.ENABLE_HEAP_CACHE, "false");
+                        return props;
+                    }
+                };
+
+        AionRepositoryCache repo =
+                new AionRepositoryCache(AionRepositoryImpl.createForTesting(repoConfig));
+        Address address = Address.wrap(RandomUtils.nextBytes(Address.SIZE));
+        repo.createAccount(address);
+
+        KernelInterfaceForFastVM kernel =
+                new KernelInterfaceForFastVM(
+                        repo,
+                        true,
+                        false,
+                        new DataWordImpl(0x100000000L),
+                        1,
+                        System.currentTimeMillis() / 1000,
+                        5000000,
+                        Address.wrap(RandomUtils.nextBytes(Address.SIZE)));
+        byte[][] keys = new byte[SLOTS][];
+        for (int i = 0; i < SLOTS; i++) {
+            keys[i] = RandomUtils.nextBytes(DataWordImpl.BYTES);
+            kernel.putStorage(address, keys[i], RandomUtils.nextBytes(DataWordImpl.BYTES));
+        }
+        Callback.push(Pair.of(null, kernel));
+
+        ByteBuffer buffer = Callback.storageBuffer();
+        byte[] addressBytes = address.toBytes();
+
+        double direct = measure(i -> kernel.getStorage(address, keys[i % SLOTS]));
+        double buffered =
+                measure(
+                        i -> {
+                            buffer.clear();
+                            buffer.put(addressBytes);
+                            buffer.put(keys[i % SLOTS]);
+                            Callback.getStorage();
+                        });
+        double arrays =
+                measure(i -> Callback.getStorage(addressBytes.clone(), keys[i % SLOTS].clone()));
+
+        Callback.pop();
+
+        System.out.printf("kernel.getStorage:   %6.1f bytes/call%n", direct);
+        System.out.printf(
+                "buffered callback:   %6.1f bytes/call (%+.1f over the kernel)%n",
+                buffered, buffered - direct);
+        System.out.printf(
+                "byte array callback: %6.1f bytes/call (%+.1f over the kernel)%n",
+                arrays, arrays - direct);
+    }
+
+    private interface Call {
+        void run(int i);
+    }
+
+    private static double measure(Call call) {
+        for (int i = 0; i < WARMUP; i++) {
+            call.run(i);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < CALLS; i++) {
+            call.run(i);
+        }
+        return (double) (threads.getThreadAllocatedBytes(threadId) - before) / CALLS;
+    }
+}
@@ -0,0 +1,109 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import org.aion.db.impl.DBVendor;
+import org.aion.db.impl.DatabaseFactory;
+import org.aion.interfaces.db.ContractDetails;
+import org.aion.interfaces.db.PruneConfig;
+import org.aion.interfaces.db.RepositoryConfig;
+import org.aion.mcf.config.CfgPrune;
+import org.aion.mcf.vm.types.DataWordImpl;
+import org.aion.mcf.vm.types.KernelInterfaceForFastVM;
+import org.aion.types.Address;
+import org.aion.zero.impl.db.AionRepositoryCache;
+import org.aion.zero.impl.db.AionRepositoryImpl;
+import org.aion.zero.impl.db.ContractDetailsAion;
+import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests the buffered storage callbacks used by the native side. */
+public class StorageCallbackTest {
+    private Address address = Address.wrap(RandomUtils.nextBytes(32));
+    private byte[] key = RandomUtils.nextBytes(16);
+    private byte[] value = RandomUtils.nextBytes(16);
+
+    @Before
+    public void setup() {
+        RepositoryConfig repoConfig =
+                new RepositoryConfig() {
+                    @Override
+                    public String getDbPath() {
+                        return "";
+                    }
+
+                    @Override
+                    public PruneConfig getPruneConfig() {
+                        return new CfgPrune(false);
+                    }
+
+                    @Override
+                    public ContractDetails contractDetailsImpl() {
+                        return ContractDetailsAion.createForTesting(0, 1000000).getDetails();
+                    }
+
+                    @Override
+                    public Properties getDatabaseConfig(String db_name) {
+                        Properties props = new Properties();
+                        props.setProperty(DatabaseFactory.Props.DB_TYPE, DBVendor.MOCKDB.toValue());
+                        props.setProperty(DatabaseFactory.Props.ENABLE_HEAP_CACHE, "false");
+                        return props;
+                    }
+                };
+
+        AionRepositoryCache repo =
+                new AionRepositoryCache(AionRepositoryImpl.createForTesting(repoConfig));
+        repo.createAccount(address);
+
+        KernelInterfaceForFastVM kernel =
+                new KernelInterfaceForFastVM(
+                        repo,
+                        true,
+                        false,
+                        new DataWordImpl(0x100000000L),
+                        1,
+                        System.currentTimeMillis() / 1000,
+                        5000000,
+                        Address.wrap(RandomUtils.nextBytes(32)));
+        Callback.push(Pair.of(null, kernel));
+    }
+
+    @After
+    public void tearDown() {
+        while (true) {
+            try {
+                Callback.pop();
+            } catch (NoSuchElementException e) {
+                break;
+            }
+        }
+    }
+
+    @Test
+    public void testPutAndGetThroughBuffer() {
+        Callback.putStorage(address.toBytes(), key, value);
+
+        ByteBuffer buffer = Callback.storageBuffer();
+        buffer.position(Address.SIZE + key.length);
+        buffer.put(new byte[16]);
+        writeSlot(buffer, address.toBytes(), key);
+        Callback.getStorage();
+
+        byte[] read = new byte[16];
+        buffer.position(Address.SIZE + key.length);
+        buffer.get(read);
+        assertArrayEquals(value, read);
+    }
+
+    private static void writeSlot(ByteBuffer buffer, byte[] address, byte[] key) {
+        buffer.clear();
+        buffer.put(address);
+        buffer.put(key);
+    }
+}
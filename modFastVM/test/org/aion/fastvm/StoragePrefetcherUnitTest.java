@@ -0,0 +1,137 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Set;
+import org.aion.mcf.vm.types.DataWordImpl;
+import org.aion.mcf.vm.types.KernelInterfaceForFastVM;
+import org.aion.types.Address;
+import org.aion.types.ByteArrayWrapper;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/** Unit tests for StoragePrefetcher class. */
+public class StoragePrefetcherUnitTest {
+    private static final int ENTRY_LENGTH = Address.SIZE + 2 * DataWordImpl.BYTES;
+
+    private StoragePrefetcher prefetcher;
+    private KernelInterfaceForFastVM kernel;
+    private Address address;
+    private byte[] value;
+
+    @Before
+    public void setup() {
+        prefetcher = new StoragePrefetcher(16);
+        kernel = mock(KernelInterfaceForFastVM.class);
+        address = Address.wrap(RandomUtils.nextBytes(Address.SIZE));
+        value = RandomUtils.nextBytes(DataWordImpl.BYTES);
+        when(kernel.getStorage(Mockito.any(Address.class), Mockito.any(byte[].class)))
+                .thenReturn(value);
+    }
+
+    @Test
+    public void testConstantKeys() {
+        byte[] code = {
+            0x60, 0x05, 0x54, // PUSH1 0x05 SLOAD
+            0x61, 0x01, 0x02, 0x54, // PUSH2 0x0102 SLOAD
+            0x60, 0x07, 0x55, // PUSH1 0x07 SSTORE
+            0x61, 0x54, 0x54, 0x00 // PUSH2 0x5454 STOP
+        };
+
+        Set<ByteArrayWrapper> keys = StoragePrefetcher.constantKeys(code);
+
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains(key(0x05)));
+        assertTrue(keys.contains(key(0x01, 0x02)));
+    }
+
+    @Test
+    public void testConstantKeysIgnoreTruncatedPush() {
+        byte[] code = {0x62, 0x01, 0x54};
+        assertTrue(StoragePrefetcher.constantKeys(code).isEmpty());
+    }
+
+    @Test
+    public void testHintedSlotsAreLoaded() {
+        byte[] code = {0x00};
+        byte[] key = RandomUtils.nextBytes(DataWordImpl.BYTES);
+        AccessHint hint = new AccessHint(false).addStorage(address, key);
+
+        byte[] entries = prefetcher.begin(code, codeHash(code), address, hint, kernel);
+        prefetcher.end(codeHash(code));
+
+        assertEquals(ENTRY_LENGTH, entries.length);
+        assertEntry(entries, 0, key);
+    }
+
+    @Test
+    public void testPredictedSlotsAreLearned() {
+        byte[] code = {0x00};
+        byte[] key = RandomUtils.nextBytes(DataWordImpl.BYTES);
+
+        assertNull(prefetcher.begin(code, codeHash(code), address, AccessHint.predicted(), kernel));
+        StoragePrefetcher.recordRead(address, key);
+        prefetcher.end(codeHash(code));
+
+        byte[] entries =
+                prefetcher.begin(code, codeHash(code), address, AccessHint.predicted(), kernel);
+        prefetcher.end(codeHash(code));
+
+        assertEquals(ENTRY_LENGTH, entries.length);
+        assertEntry(entries, 0, key);
+    }
+
+    @Test
+    public void testReadsOfOtherContractsAreNotLearned() {
+        byte[] code = {0x00};
+        Address other = Address.wrap(RandomUtils.nextBytes(Address.SIZE));
+
+        prefetcher.begin(code, codeHash(code), address, AccessHint.predicted(), kernel);
+        StoragePrefetcher.recordRead(other, RandomUtils.nextBytes(DataWordImpl.BYTES));
+        prefetcher.end(codeHash(code));
+
+        assertNull(prefetcher.begin(code, codeHash(code), address, AccessHint.predicted(), kernel));
+        prefetcher.end(codeHash(code));
+    }
+
+    @Test
+    public void testPredictionsAreNotUsedUnlessRequested() {
+        byte[] code = {0x60, 0x05, 0x54};
+        assertNull(prefetcher.begin(code, codeHash(code), address, new AccessHint(false), kernel));
+        prefetcher.end(codeHash(code));
+
+        byte[] entries =
+                prefetcher.begin(code, codeHash(code), address, AccessHint.predicted(), kernel);
+        prefetcher.end(codeHash(code));
+        assertEntry(entries, 0, key(0x05).getData());
+    }
+
+    private void assertEntry(byte[] entries, int index, byte[] key) {
+        int offset = index * ENTRY_LENGTH;
+        int keyOffset = offset + Address.SIZE;
+        int valueOffset = keyOffset + DataWordImpl.BYTES;
+        assertArrayEquals(address.toBytes(), Arrays.copyOfRange(entries, offset, keyOffset));
+        assertArrayEquals(key, Arrays.copyOfRange(entries, keyOffset, valueOffset));
+        assertArrayEquals(value, Arrays.copyOfRange(entries, valueOffset, offset + ENTRY_LENGTH));
+    }
+
+    private static ByteArrayWrapper key(int... bytes) {
+        byte[] key = new byte[DataWordImpl.BYTES];
+        for (int i = 0; i < bytes.length; i++) {
+            key[DataWordImpl.BYTES - bytes.length + i] = (byte) bytes[i];
+        }
+        return new ByteArrayWrapper(key);
+    }
+
+    private static byte[] codeHash(byte[] code) {
+        return new CodeHashCache(1, 1).hashOf(code);
+    }
+}
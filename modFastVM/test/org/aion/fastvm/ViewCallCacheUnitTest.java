@@ -0,0 +1,106 @@
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.aion.mcf.vm.types.DataWordImpl;
+import org.aion.mcf.vm.types.KernelInterfaceForFastVM;
+import org.aion.types.Address;
+import org.aion.types.ByteArrayWrapper;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Unit tests for ViewCallCache class. */
+public class ViewCallCacheUnitTest {
+
+    private ViewCallCache cache;
+    private KernelInterfaceForFastVM kernel;
+    private Address address;
+    private byte[] key;
+    private byte[] value;
+    private ByteArrayWrapper callKey;
+    private FastVmTransactionResult result;
+
+    @Before
+    public void setup() {
+        cache = new ViewCallCache(16);
+        kernel = mock(KernelInterfaceForFastVM.class);
+        address = Address.wrap(RandomUtils.nextBytes(Address.SIZE));
+        key = RandomUtils.nextBytes(DataWordImpl.BYTES);
+        value = RandomUtils.nextBytes(DataWordImpl.BYTES);
+        when(kernel.getStorage(address, key)).thenReturn(value);
+        callKey =
+                ViewCallCache.keyOf(
+                        RandomUtils.nextBytes(32), FastVM.REVISION_AION, RandomUtils.nextBytes(64));
+        result =
+                new FastVmTransactionResult(
+                        FastVmResultCode.SUCCESS, 1000, RandomUtils.nextBytes(32));
+    }
+
+    @Test
+    public void testResultIsReused() {
+        ViewCallCache.begin();
+        ViewCallCache.recordRead(address, key, value);
+        cache.end(callKey, result);
+
+        FastVmTransactionResult memoized = cache.lookup(callKey, kernel);
+
+        assertNotNull(memoized);
+        assertEquals(result.getResultCode(), memoized.getResultCode());
+        assertEquals(result.getEnergyRemaining(), memoized.getEnergyRemaining());
+        assertArrayEquals(result.getReturnData(), memoized.getReturnData());
+    }
+
+    @Test
+    public void testResultIsDroppedWhenStorageChanges() {
+        ViewCallCache.begin();
+        ViewCallCache.recordRead(address, key, value);
+        cache.end(callKey, result);
+
+        when(kernel.getStorage(address, key)).thenReturn(RandomUtils.nextBytes(DataWordImpl.BYTES));
+        assertNull(cache.lookup(callKey, kernel));
+
+        // the entry is removed even if the value is restored
+        when(kernel.getStorage(address, key)).thenReturn(value);
+        assertNull(cache.lookup(callKey, kernel));
+    }
+
+    @Test
+    public void testOtherAccessesAreNotMemoized() {
+        ViewCallCache.begin();
+        ViewCallCache.recordRead(address, key, value);
+        ViewCallCache.markNotMemoizable();
+        cache.end(callKey, result);
+
+        assertNull(cache.lookup(callKey, kernel));
+    }
+
+    @Test
+    public void testNestedFramesAreRecordedSeparately() {
+        ByteArrayWrapper nestedKey =
+                ViewCallCache.keyOf(
+                        RandomUtils.nextBytes(32), FastVM.REVISION_AION, RandomUtils.nextBytes(64));
+
+        ViewCallCache.begin();
+        ViewCallCache.markNotMemoizable();
+        ViewCallCache.begin();
+        ViewCallCache.recordRead(address, key, value);
+        cache.end(nestedKey, result);
+        cache.end(callKey, result);
+
+        assertNotNull(cache.lookup(nestedKey, kernel));
+        assertNull(cache.lookup(callKey, kernel));
+    }
+
+    @Test
+    public void testRecordingWithoutFrameIsIgnored() {
+        ViewCallCache.recordRead(address, key, value);
+        ViewCallCache.markNotMemoizable();
+        assertNull(cache.lookup(callKey, kernel));
+    }
+}